@@ -0,0 +1,56 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AccountImage: copy of everything a snapshot (or an audit) keeps about a User, taken at its cut
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+class AccountImage {
+	final int _accountNumber;
+	final long _balance;	// minor units
+	final long _sumUnfulfilledOut;
+	final long _sumUnfulfilledIn;
+	final int _unfulfilledCountOut;	// as the User counts them, for audits (see Auditor)
+	final int _unfulfilledCountIn;
+	final long _journalSeq;
+	
+	// the User's unfulfilled outgoing payments (every unfulfilled payment is outgoing for exactly 
+	// one User, so their incoming sides are rebuilt from these)
+	final long[] _pendingIds;
+	final int[] _pendingPayees;
+	final long[] _pendingAmounts;
+	final long[] _pendingTimesRequested;
+	
+	// caller owns the User (holds its lock), whose payments are in payments
+	AccountImage(User user, PaymentStore payments) {
+		_accountNumber = user.getAccountNumber();
+		_balance = user.getBalanceMinorUnits();
+		_sumUnfulfilledOut = user.getSumUnfulfilledMinorUnits(Direction.OUT);
+		_sumUnfulfilledIn = user.getSumUnfulfilledMinorUnits(Direction.IN);
+		_unfulfilledCountOut = user.getUnfulfilledCount(Direction.OUT);
+		_unfulfilledCountIn = user.getUnfulfilledCount(Direction.IN);
+		_journalSeq = user._journalSeq;
+		
+		// the length of the list rather than the count, which an audit checks against it
+		int count = 0;
+		for (int slot = user.firstPending(Direction.OUT); slot != PaymentStore.NONE; slot = payments.next(slot, Direction.OUT)) {
+			count++;
+		}
+		_pendingIds = new long[count];
+		_pendingPayees = new int[count];
+		_pendingAmounts = new long[count];
+		_pendingTimesRequested = new long[count];
+		int i = 0;
+		for (int slot = user.firstPending(Direction.OUT); slot != PaymentStore.NONE; slot = payments.next(slot, Direction.OUT)) {
+			_pendingIds[i] = payments.id(slot);
+			_pendingPayees[i] = payments.to(slot).getAccountNumber();
+			_pendingAmounts[i] = payments.amount(slot);
+			_pendingTimesRequested[i] = payments.timeRequested(slot);
+			i++;
+		}
+	}
+	
+	int encodedLength() {
+		return 4 + 8 + 8 + 8 + 8 + 4 + _pendingIds.length * (8 + 4 + 8 + 8);
+	}
+}
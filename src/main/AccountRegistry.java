@@ -0,0 +1,137 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AccountRegistry: every User known to the PaymentSystem, keyed by account number
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+public class AccountRegistry {
+
+	// The registry is split into shards so that registrations only contend within a shard. Each shard
+	// is an open-addressing table of Users: a User knows its own account number, so there is no
+	// separate key array and no boxing of the int key.
+	// Lookups never lock. A slot is written at most once, and on resize the new table is fully built
+	// before it is published, so a reader still holding the old table sees every User registered
+	// before the resize started.
+	private static final int SHARD_BITS = 6;
+	private static final int NUM_SHARDS = 1 << SHARD_BITS;
+	private static final int INITIAL_SHARD_CAPACITY = 64;	// must be a power of 2
+
+	private final Shard[] _shards;
+
+	public AccountRegistry() {
+		_shards = new Shard[NUM_SHARDS];
+		for (int i = 0; i < NUM_SHARDS; i++) {
+			_shards[i] = new Shard();
+		}
+	}
+
+	// return the User with this account number, or null if there isn't one
+	public User get(int accountNumber) {
+		int hash = hash(accountNumber);
+		return _shards[hash & (NUM_SHARDS - 1)].get(accountNumber, hash);
+	}
+
+	// return false (and leave the registry unchanged) if the account number is already taken
+	boolean add(User user) {
+		int hash = hash(user.getAccountNumber());
+		return _shards[hash & (NUM_SHARDS - 1)].add(user, hash);
+	}
+
+	// visit every User. Users added while this runs may or may not be visited.
+	void forEach(Consumer<User> action) {
+		for (int i = 0; i < NUM_SHARDS; i++) {
+			AtomicReferenceArray<User> table = _shards[i]._table;
+			for (int slot = 0; slot < table.length(); slot++) {
+				User user = table.get(slot);
+				if (user != null) {
+					action.accept(user);
+				}
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < NUM_SHARDS; i++) {
+			size += _shards[i]._size;
+		}
+		return size;
+	}
+
+	// spread the account number over all the bits (sequential account numbers are the common case),
+	// the low bits pick the shard and the remaining bits pick the slot within it
+	private static int hash(int accountNumber) {
+		int h = accountNumber;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+
+	private static class Shard {
+		private volatile AtomicReferenceArray<User> _table;
+		private volatile int _size;
+
+		Shard() {
+			_table = new AtomicReferenceArray<User>(INITIAL_SHARD_CAPACITY);
+			_size = 0;
+		}
+
+		User get(int accountNumber, int hash) {
+			AtomicReferenceArray<User> table = _table;
+			int mask = table.length() - 1;
+			int slot = (hash >>> SHARD_BITS) & mask;
+			while (true) {
+				User user = table.get(slot);
+				if (user == null) {
+					return null;
+				}
+				if (user.getAccountNumber() == accountNumber) {
+					return user;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		synchronized boolean add(User user, int hash) {
+			if (get(user.getAccountNumber(), hash) != null) {
+				return false;
+			}
+			// keep the table at most half full so probe sequences stay short
+			if ((_size + 1) * 2 > _table.length()) {
+				resize();
+			}
+			insert(_table, user, hash);
+			_size++;
+			return true;
+		}
+
+		private void resize() {
+			AtomicReferenceArray<User> oldTable = _table;
+			AtomicReferenceArray<User> newTable = new AtomicReferenceArray<User>(oldTable.length() * 2);
+			for (int i = 0; i < oldTable.length(); i++) {
+				User user = oldTable.get(i);
+				if (user != null) {
+					insert(newTable, user, hash(user.getAccountNumber()));
+				}
+			}
+			_table = newTable;
+		}
+
+		private static void insert(AtomicReferenceArray<User> table, User user, int hash) {
+			int mask = table.length() - 1;
+			int slot = (hash >>> SHARD_BITS) & mask;
+			while (table.get(slot) != null) {
+				slot = (slot + 1) & mask;
+			}
+			table.set(slot, user);
+		}
+	}
+}
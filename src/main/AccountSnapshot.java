@@ -0,0 +1,45 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AccountSnapshot: a User's balance and unfulfilled sums, all as of the same point in time
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.math.BigDecimal;
+
+public class AccountSnapshot {
+	private final int _accountNumber;
+	public int getAccountNumber() {
+		return _accountNumber;
+	}
+	private final long _balance;	// in minor units, see Money
+	public BigDecimal getBalance() {
+		return Money.toBigDecimal(_balance);
+	}
+	public long getBalanceMinorUnits() {
+		return _balance;
+	}
+	private final long[] _sumUnfulfilled;	// indexed by Direction, minor units
+	public BigDecimal getSumUnfulfilled(Direction direction) {
+		return Money.toBigDecimal(_sumUnfulfilled[direction._val]);
+	}
+	public long getSumUnfulfilledMinorUnits(Direction direction) {
+		return _sumUnfulfilled[direction._val];
+	}
+	
+	AccountSnapshot(int accountNumber, long balance, long sumUnfulfilledOut, long sumUnfulfilledIn) {
+		_accountNumber = accountNumber;
+		_balance = balance;
+		_sumUnfulfilled = new long[2];
+		_sumUnfulfilled[Direction.OUT._val] = sumUnfulfilledOut;
+		_sumUnfulfilled[Direction.IN._val] = sumUnfulfilledIn;
+	}
+	
+	@Override
+	public String toString() {
+		return "account: " + _accountNumber + "\n" +
+				"balance: " + getBalance() + "\n" +
+				"sum unfulfilled out: " + getSumUnfulfilled(Direction.OUT) + "\n" +
+				"sum unfulfilled in: " + getSumUnfulfilled(Direction.IN) + "\n";
+	}
+}
@@ -0,0 +1,149 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AccountStore: the scalar state of every User (balance, unfulfilled sums and counts) in off-heap
+//				columns, so that millions of accounts cost the heap and the GC next to nothing
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+class AccountStore {
+
+	// Each account gets a row when its User is made, in the order they're made (account numbers
+	// may be sparse, the AccountRegistry maps them to Users and each User knows its row). Rows are
+	// grouped in fixed-size chunks, each one direct buffer laid out column by column, and chunks
+	// never move once allocated, so a User keeps a reference to its chunk.
+	// Every row has a version for a sequence lock: a writer (which owns the User, so there is only
+	// one at a time) makes it odd, changes the row and makes it even again. Readers read the version,
+	// the values and the version again, and retry if it was odd or changed, so reads never block.
+	static final int DEFAULT_CHUNK_ROWS = 1 << 16;	// 2.5 MB per chunk
+	private static final int ROW_BYTES = 8 + 8 + 8 + 8 + 4 + 4;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final int _chunkBits;
+	private volatile Chunk[] _chunks = new Chunk[0];	// replaced (under this) when one is added
+	private volatile int _rows;	// rows handed out, written under this
+
+	// chunkRows: a power of 2, small for stores that only ever hold a few accounts
+	AccountStore(int chunkRows) {
+		if (Integer.bitCount(chunkRows) != 1) {
+			throw new RuntimeException("invalid chunk size: " + chunkRows);
+		}
+		_chunkBits = Integer.numberOfTrailingZeros(chunkRows);
+	}
+
+	// a new row with this balance and nothing unfulfilled
+	synchronized int allocate(long balance) {
+		int row = _rows;
+		int chunk = row >>> _chunkBits;
+		if (chunk == _chunks.length) {
+			Chunk[] chunks = new Chunk[chunk + 1];
+			System.arraycopy(_chunks, 0, chunks, 0, chunk);
+			chunks[chunk] = new Chunk(1 << _chunkBits);
+			_chunks = chunks;
+		}
+		_chunks[chunk].setBalance(rowInChunk(row), balance);	// the rest of a new chunk is already zero
+		_rows = row + 1;
+		return row;
+	}
+
+	Chunk chunkOf(int row) {
+		return _chunks[row >>> _chunkBits];
+	}
+
+	int rowInChunk(int row) {
+		return row & ((1 << _chunkBits) - 1);
+	}
+
+	// { accounts with a nonzero unfulfilled sum in this direction, the largest such sum }, from a scan
+	// of that column alone. Sums are read one at a time, without the sequence lock.
+	long[] pendingGauges(Direction direction) {
+		long[] gauges = new long[2];
+		int rows = _rows;
+		Chunk[] chunks = _chunks;
+		int chunkRows = 1 << _chunkBits;
+		for (int c = 0; c * chunkRows < rows; c++) {
+			int end = Math.min(chunkRows, rows - c * chunkRows);
+			for (int r = 0; r < end; r++) {
+				long sum = chunks[c].sumOpaque(r, direction);
+				if (sum != 0) {
+					gauges[0]++;
+					gauges[1] = Math.max(gauges[1], sum);
+				}
+			}
+		}
+		return gauges;
+	}
+
+
+	// Offsets are in bytes. Every column starts at a multiple of 8, which the atomic accesses of
+	// the version need.
+	static final class Chunk {
+		private final ByteBuffer _buffer;
+		private final int _balances;
+		private final int[] _sums;	// by Direction._val
+		private final int[] _counts;
+
+		Chunk(int rows) {
+			_buffer = ByteBuffer.allocateDirect(rows * ROW_BYTES);
+			_balances = rows * 8;	// the versions come first
+			_sums = new int[] { rows * 16, rows * 24 };
+			_counts = new int[] { rows * 32, rows * 36 };
+		}
+
+		// sequence lock, see above
+		long beginRead(int row) {
+			return (long) LONGS.getAcquire(_buffer, row * 8);
+		}
+
+		boolean validate(int row, long version) {
+			VarHandle.loadLoadFence();
+			return (version & 1) == 0 && (long) LONGS.getOpaque(_buffer, row * 8) == version;
+		}
+
+		void beginWrite(int row) {
+			LONGS.setOpaque(_buffer, row * 8, (long) LONGS.get(_buffer, row * 8) + 1);
+			VarHandle.storeStoreFence();
+		}
+
+		void endWrite(int row) {
+			LONGS.setRelease(_buffer, row * 8, (long) LONGS.get(_buffer, row * 8) + 1);
+		}
+
+		// plain reads: the writer's own, or a reader's between beginRead and validate
+		long balance(int row) {
+			return (long) LONGS.get(_buffer, _balances + row * 8);
+		}
+
+		long sum(int row, Direction direction) {
+			return (long) LONGS.get(_buffer, _sums[direction._val] + row * 8);
+		}
+
+		int count(int row, Direction direction) {
+			return (int) INTS.get(_buffer, _counts[direction._val] + row * 4);
+		}
+
+		long sumOpaque(int row, Direction direction) {
+			return (long) LONGS.getOpaque(_buffer, _sums[direction._val] + row * 8);
+		}
+
+		// only between beginWrite and endWrite (or before anyone else can see the row)
+		void setBalance(int row, long balance) {
+			LONGS.set(_buffer, _balances + row * 8, balance);
+		}
+
+		void setSum(int row, Direction direction, long sum) {
+			LONGS.set(_buffer, _sums[direction._val] + row * 8, sum);
+		}
+
+		void setCount(int row, Direction direction, int count) {
+			INTS.set(_buffer, _counts[direction._val] + row * 4, count);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AuditReport: what PaymentSystem.audit checked, what it found wrong and how long it took
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.Collections;
+import java.util.List;
+
+public class AuditReport {
+	private final int _accounts;	// accounts in the cut
+	public int getAccountsChecked() {
+		return _accounts;
+	}
+	private final long _payments;	// unfulfilled payments in the cut
+	public long getPaymentsChecked() {
+		return _payments;
+	}
+	private final long _totalBalance;	// minor units, over the accounts in the cut
+	public long getTotalBalanceMinorUnits() {
+		return _totalBalance;
+	}
+	private final long _expectedTotalBalance;	// the money added with those accounts
+	public long getExpectedTotalBalanceMinorUnits() {
+		return _expectedTotalBalance;
+	}
+	private final List<AuditViolation> _violations;
+	public List<AuditViolation> getViolations() {
+		return _violations;
+	}
+	public boolean isClean() {
+		return _violations.isEmpty();
+	}
+	private final long _cutNanos;	// imaging every account
+	public long getCutNanos() {
+		return _cutNanos;
+	}
+	private final long _checkNanos;	// checking the images
+	public long getCheckNanos() {
+		return _checkNanos;
+	}
+	public long getDurationNanos() {
+		return _cutNanos + _checkNanos;
+	}
+
+	AuditReport(int accounts, long payments, long totalBalance, long expectedTotalBalance,
+			List<AuditViolation> violations, long cutNanos, long checkNanos) {
+		_accounts = accounts;
+		_payments = payments;
+		_totalBalance = totalBalance;
+		_expectedTotalBalance = expectedTotalBalance;
+		_violations = Collections.unmodifiableList(violations);
+		_cutNanos = cutNanos;
+		_checkNanos = checkNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(String.format("audit of %d accounts and %d unfulfilled payments: %d violations, "
+				+ "cut %.1f ms, check %.1f ms", _accounts, _payments, _violations.size(), _cutNanos / 1e6, _checkNanos / 1e6));
+		for (AuditViolation violation : _violations) {
+			sb.append("\n  ").append(violation);
+		}
+		return sb.toString();
+	}
+}
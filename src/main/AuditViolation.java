@@ -0,0 +1,51 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AuditViolation: one thing an audit (PaymentSystem.audit) found wrong
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+public class AuditViolation {
+
+	public enum Kind {
+		MONEY_NOT_CONSERVED,	// the balances don't add up to the money added with the Users
+		NEGATIVE_BALANCE,
+		SUM_OUT_MISMATCH,	// the unfulfilled OUT sum isn't the sum of the User's unfulfilled payments
+		SUM_IN_MISMATCH,	// the unfulfilled IN sum isn't the sum of the payments to the User
+		COUNT_OUT_MISMATCH,
+		COUNT_IN_MISMATCH,
+		UNKNOWN_PAYEE	// an unfulfilled payment is to an account that wasn't in the cut
+	}
+
+	private final Kind _kind;
+	public Kind getKind() {
+		return _kind;
+	}
+	// -1 for MONEY_NOT_CONSERVED, which is about every account
+	private final int _accountNumber;
+	public int getAccountNumber() {
+		return _accountNumber;
+	}
+	// minor units for sums and balances, payments for counts, the payee's account for UNKNOWN_PAYEE
+	private final long _expected;
+	public long getExpected() {
+		return _expected;
+	}
+	private final long _actual;
+	public long getActual() {
+		return _actual;
+	}
+
+	AuditViolation(Kind kind, int accountNumber, long expected, long actual) {
+		_kind = kind;
+		_accountNumber = accountNumber;
+		_expected = expected;
+		_actual = actual;
+	}
+
+	@Override
+	public String toString() {
+		return _kind + (_accountNumber >= 0 ? " account " + _accountNumber : "") + ": expected " + _expected
+				+ ", actual " + _actual;
+	}
+}
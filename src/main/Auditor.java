@@ -0,0 +1,163 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Auditor: checks the images of every User taken at one cut (see PaymentSystem.audit) against
+//			each other, in parallel
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class Auditor {
+
+	// Two passes with fork-join over ranges of accounts. The first checks each account's own
+	// unfulfilled payments against its OUT sum and count, adds up the balances, and adds each
+	// payment to its payee's incoming total (atomically, as the payee may be in another task's
+	// range). The second checks those totals against each account's IN sum and count. Every
+	// unfulfilled payment is outgoing for exactly one User, so this covers both sides of all of them.
+	private static final int ACCOUNTS_PER_TASK = 1024;
+
+	private final AccountImage[] _images;	// sorted by account number
+	private final int[] _accountNumbers;	// of _images, for binary search
+	private final AtomicLongArray _incomingSums;
+	private final AtomicIntegerArray _incomingCounts;
+
+	Auditor(List<AccountImage> images) {
+		_images = images.toArray(new AccountImage[images.size()]);
+		Arrays.parallelSort(_images, new Comparator<AccountImage>() {
+			public int compare(AccountImage image1, AccountImage image2) {
+				return Integer.compare(image1._accountNumber, image2._accountNumber);
+			}
+		});
+		_accountNumbers = new int[_images.length];
+		for (int i = 0; i < _images.length; i++) {
+			_accountNumbers[i] = _images[i]._accountNumber;
+		}
+		_incomingSums = new AtomicLongArray(_images.length);
+		_incomingCounts = new AtomicIntegerArray(_images.length);
+	}
+
+	// expectedTotal: the money added with the Users in the cut (minor units). cutNanos: how long
+	// taking the images took, for the report.
+	AuditReport audit(long expectedTotal, long cutNanos) {
+		long start = System.nanoTime();
+		Totals totals = new OutgoingPass(0, _images.length).invoke();
+		List<AuditViolation> violations = totals._violations;
+		violations.addAll(new IncomingPass(0, _images.length).invoke());
+		if (totals._balance != expectedTotal) {
+			violations.add(0, new AuditViolation(AuditViolation.Kind.MONEY_NOT_CONSERVED, -1, expectedTotal, totals._balance));
+		}
+		return new AuditReport(_images.length, totals._payments, totals._balance, expectedTotal, violations,
+				cutNanos, System.nanoTime() - start);
+	}
+
+	private static class Totals {
+		long _balance = 0;
+		long _payments = 0;
+		final List<AuditViolation> _violations = new ArrayList<AuditViolation>();
+
+		void add(Totals other) {
+			_balance += other._balance;
+			_payments += other._payments;
+			_violations.addAll(other._violations);
+		}
+	}
+
+	private class OutgoingPass extends RecursiveTask<Totals> {
+		private static final long serialVersionUID = 1L;	// ForkJoinTask is Serializable, never serialized here
+		private final int _from;
+		private final int _to;
+
+		OutgoingPass(int from, int to) {
+			_from = from;
+			_to = to;
+		}
+
+		@Override
+		protected Totals compute() {
+			if (_to - _from > ACCOUNTS_PER_TASK) {
+				int middle = (_from + _to) >>> 1;
+				OutgoingPass left = new OutgoingPass(_from, middle);
+				left.fork();
+				Totals totals = new OutgoingPass(middle, _to).compute();
+				Totals leftTotals = left.join();
+				leftTotals.add(totals);	// keeps the violations in account order
+				return leftTotals;
+			}
+			Totals totals = new Totals();
+			for (int i = _from; i < _to; i++) {
+				AccountImage image = _images[i];
+				totals._balance += image._balance;
+				totals._payments += image._pendingIds.length;
+				if (image._balance < 0) {
+					totals._violations.add(new AuditViolation(AuditViolation.Kind.NEGATIVE_BALANCE, image._accountNumber,
+							0, image._balance));
+				}
+				long sum = 0;
+				for (int p = 0; p < image._pendingIds.length; p++) {
+					sum += image._pendingAmounts[p];
+					int payee = Arrays.binarySearch(_accountNumbers, image._pendingPayees[p]);
+					if (payee < 0) {
+						totals._violations.add(new AuditViolation(AuditViolation.Kind.UNKNOWN_PAYEE, image._accountNumber,
+								image._pendingPayees[p], image._pendingPayees[p]));
+					} else {
+						_incomingSums.addAndGet(payee, image._pendingAmounts[p]);
+						_incomingCounts.incrementAndGet(payee);
+					}
+				}
+				if (sum != image._sumUnfulfilledOut) {
+					totals._violations.add(new AuditViolation(AuditViolation.Kind.SUM_OUT_MISMATCH, image._accountNumber,
+							sum, image._sumUnfulfilledOut));
+				}
+				if (image._pendingIds.length != image._unfulfilledCountOut) {
+					totals._violations.add(new AuditViolation(AuditViolation.Kind.COUNT_OUT_MISMATCH, image._accountNumber,
+							image._pendingIds.length, image._unfulfilledCountOut));
+				}
+			}
+			return totals;
+		}
+	}
+
+	private class IncomingPass extends RecursiveTask<List<AuditViolation>> {
+		private static final long serialVersionUID = 1L;	// ForkJoinTask is Serializable, never serialized here
+		private final int _from;
+		private final int _to;
+
+		IncomingPass(int from, int to) {
+			_from = from;
+			_to = to;
+		}
+
+		@Override
+		protected List<AuditViolation> compute() {
+			if (_to - _from > ACCOUNTS_PER_TASK) {
+				int middle = (_from + _to) >>> 1;
+				IncomingPass left = new IncomingPass(_from, middle);
+				left.fork();
+				List<AuditViolation> right = new IncomingPass(middle, _to).compute();
+				List<AuditViolation> violations = left.join();
+				violations.addAll(right);
+				return violations;
+			}
+			List<AuditViolation> violations = new ArrayList<AuditViolation>();
+			for (int i = _from; i < _to; i++) {
+				AccountImage image = _images[i];
+				if (_incomingSums.get(i) != image._sumUnfulfilledIn) {
+					violations.add(new AuditViolation(AuditViolation.Kind.SUM_IN_MISMATCH, image._accountNumber,
+							_incomingSums.get(i), image._sumUnfulfilledIn));
+				}
+				if (_incomingCounts.get(i) != image._unfulfilledCountIn) {
+					violations.add(new AuditViolation(AuditViolation.Kind.COUNT_IN_MISMATCH, image._accountNumber,
+							_incomingCounts.get(i), image._unfulfilledCountIn));
+				}
+			}
+			return violations;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// BackpressurePolicy: what a payment event Subscription does when its listener falls behind
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+public enum BackpressurePolicy {
+	BLOCK,	// payments wait for the listener once the ring buffer is full, no event is lost
+	DROP,	// payments carry on, the listener skips the events overwritten meanwhile (and counts them)
+	SPILL	// events are copied from the ring buffer to a file the listener reads from, no event is lost
+}
@@ -0,0 +1,44 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// BufferPool: direct ByteBuffers of one size, reused rather than allocated for every connection
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BufferPool {
+
+	// Direct buffers are costly to allocate and only freed by GC, so released buffers are kept for
+	// the next acquire, up to maxFree of them. Beyond that they are left to the GC.
+	private final int _bufferSize;
+	private final int _maxFree;
+	private final ConcurrentLinkedQueue<ByteBuffer> _free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger _freeCount = new AtomicInteger();
+
+	BufferPool(int bufferSize, int maxFree) {
+		_bufferSize = bufferSize;
+		_maxFree = maxFree;
+	}
+
+	// a cleared buffer
+	ByteBuffer acquire() {
+		ByteBuffer buffer = _free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(_bufferSize);
+		}
+		_freeCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		if (_freeCount.incrementAndGet() <= _maxFree) {
+			_free.offer(buffer);
+		} else {
+			_freeCount.decrementAndGet();
+		}
+	}
+}
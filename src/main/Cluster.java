@@ -0,0 +1,135 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Cluster: accounts sharded across several ClusterNodes, each its own PaymentSystem, with
+//				payments between accounts on different nodes done in two phases (see ClusterNode)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.math.BigDecimal;
+
+public class Cluster {
+
+	// Account n lives on node n mod (number of nodes). Node i hands out payment ids i + 1,
+	// i + 1 + nodes, ... so the node that requested a payment (the payer's, which coordinates it)
+	// is known from its id. The nodes talk over a LoopbackTransport, so they share a process but
+	// nothing else. Nodes keep their state in memory only: no journal or snapshots.
+	private final ClusterNode[] _nodes;
+	private final LoopbackTransport _transport;
+
+	public Cluster(int numNodes) {
+		this(numNodes, new PaymentSystemConfig());
+	}
+
+	// config: for every node's PaymentSystem (history capacity and metrics are used)
+	public Cluster(int numNodes, PaymentSystemConfig config) {
+		if (numNodes < 1 || config == null) {
+			throw new RuntimeException("invalid input to Cluster constructor: nodes = " + numNodes);
+		}
+		if (config.getJournalPath() != null || config.getSnapshotPath() != null || config.getPartitions() > 0 
+				|| config.getPaymentTtlMillis() > 0 || config.getHotAccounts().length > 0) {
+			throw new RuntimeException("cluster nodes have no journal, snapshots, partitions, payment TTL or hot accounts");
+		}
+		_nodes = new ClusterNode[numNodes];
+		_transport = new LoopbackTransport(numNodes);
+		for (int i = 0; i < numNodes; i++) {
+			PaymentSystemConfig nodeConfig = new PaymentSystemConfig()
+					.setPaymentHistoryCapacity(config.getPaymentHistoryCapacity())
+					.setMetricsEnabled(config.isMetricsEnabled())
+					.setMetricsDumpSeconds(config.getMetricsDumpSeconds())
+					.setPaymentIds(i + 1, numNodes);
+			_nodes[i] = new ClusterNode(i, numNodes, nodeConfig, _transport);
+			_transport.register(i, _nodes[i]);
+		}
+	}
+
+	public int getNodeCount() {
+		return _nodes.length;
+	}
+
+	public ClusterNode getNode(int node) {
+		return _nodes[node];
+	}
+
+	// for simulating nodes that can't be reached
+	public LoopbackTransport getTransport() {
+		return _transport;
+	}
+
+	// the node an account lives on
+	public int nodeOf(int accountNumber) {
+		return nodeOf(accountNumber, _nodes.length);
+	}
+
+	static int nodeOf(int accountNumber, int numNodes) {
+		return Math.floorMod(accountNumber, numNodes);
+	}
+
+	public User addUser(int accountNumber, BigDecimal balance) {
+		return addUser(accountNumber, Money.toMinorUnits(balance));
+	}
+
+	public User addUser(int accountNumber, long balance) {
+		return _nodes[nodeOf(accountNumber)].getSystem().addUser(accountNumber, balance);
+	}
+
+	// return the new payment's id. Throws if the payee's node can't be reached.
+	public long requestPayment(BigDecimal amount, int fromAcct, int toAcct) {
+		return requestPayment(Money.toMinorUnits(amount), fromAcct, toAcct);
+	}
+
+	public long requestPayment(long amount, int fromAcct, int toAcct) {
+		if (fromAcct == toAcct) {
+			throw new RuntimeException("cannot request payment for oneself: acct id = " + fromAcct);
+		}
+		return _nodes[nodeOf(fromAcct)].requestPayment(amount, fromAcct, toAcct);
+	}
+
+	// Return false if the payer's balance is too low. Throws if there is no unfulfilled payment with
+	// this id, or the payee's node can't be reached (the payment stays unfulfilled).
+	public boolean fulfill(long paymentId) {
+		return _nodes[requesterOf(paymentId)].fulfill(paymentId);
+	}
+
+	// return false if there is no unfulfilled payment with this id, or it is being fulfilled
+	public boolean cancel(long paymentId) {
+		return _nodes[requesterOf(paymentId)].cancel(paymentId);
+	}
+
+	public BigDecimal getBalance(int accountNumber) {
+		return lookupUser(accountNumber).getBalance();
+	}
+
+	public long getBalanceMinorUnits(int accountNumber) {
+		return lookupUser(accountNumber).getBalanceMinorUnits();
+	}
+
+	public BigDecimal getUnfulfilledAmt(int accountNumber, Direction direction) {
+		return Money.toBigDecimal(getUnfulfilledMinorUnits(accountNumber, direction));
+	}
+
+	public long getUnfulfilledMinorUnits(int accountNumber, Direction direction) {
+		return lookupUser(accountNumber).getSumUnfulfilledMinorUnits(direction);
+	}
+
+	public void shutdown() {
+		for (ClusterNode node : _nodes) {
+			node.shutdown();
+		}
+	}
+
+	private int requesterOf(long paymentId) {
+		if (paymentId < 1) {
+			throw new RuntimeException("invalid payment id: " + paymentId);
+		}
+		return (int) ((paymentId - 1) % _nodes.length);
+	}
+
+	private User lookupUser(int accountNumber) {
+		User user = _nodes[nodeOf(accountNumber)].getSystem().getUser(accountNumber);
+		if (user == null) {
+			throw new RuntimeException("unknown account number: " + accountNumber);
+		}
+		return user;
+	}
+}
@@ -0,0 +1,51 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ClusterMessage: what one ClusterNode asks of another about the payee's half of a payment
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.nio.ByteBuffer;
+
+class ClusterMessage {
+
+	// types, sent by the payer's node (the coordinator) to the payee's node
+	static final byte REQUEST_IN = 1;	// add the payee's half of a new payment, false if no such account
+	static final byte FULFILL_PREPARE = 2;	// vote on fulfilling: true if the payee's half is still pending
+	static final byte FULFILL_COMMIT = 3;	// credit the payee and complete its half
+	static final byte CANCEL_IN = 4;	// drop the payee's half (cancelled, or its request abandoned)
+
+	// type, payment id, from account, to account, amount, time
+	static final int ENCODED_LENGTH = 1 + 8 + 4 + 4 + 8 + 8;
+
+	final byte _type;
+	final long _paymentId;
+	final int _fromAcct;
+	final int _toAcct;
+	final long _amount;	// minor units
+	final long _time;	// millis since epoch: requested for REQUEST_IN, fulfilled for FULFILL_COMMIT
+
+	ClusterMessage(byte type, long paymentId, int fromAcct, int toAcct, long amount, long time) {
+		_type = type;
+		_paymentId = paymentId;
+		_fromAcct = fromAcct;
+		_toAcct = toAcct;
+		_amount = amount;
+		_time = time;
+	}
+
+	// a message about payment, with the time that matters for its type
+	ClusterMessage(byte type, Payment payment, long time) {
+		this(type, payment.getId(), payment.from().getAccountNumber(), payment.to().getAccountNumber(),
+				payment.getAmountMinorUnits(), time);
+	}
+
+	void encode(ByteBuffer buffer) {
+		buffer.put(_type).putLong(_paymentId).putInt(_fromAcct).putInt(_toAcct).putLong(_amount).putLong(_time);
+	}
+
+	static ClusterMessage decode(ByteBuffer buffer) {
+		return new ClusterMessage(buffer.get(), buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getLong(),
+				buffer.getLong());
+	}
+}
@@ -0,0 +1,316 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ClusterNode: one shard of a Cluster, a PaymentSystem holding the accounts assigned to this node
+//				plus what it takes to pay accounts on other nodes
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class ClusterNode {
+
+	// A payment between accounts on two nodes has a half on each: the payer's node keeps the
+	// payment as its payer's OUT, the payee's node keeps a copy as its payee's IN. On either node
+	// the other account is a stand-in User (with no balance) from _remoteUsers. Both halves are in
+	// their node's pending index under the same id while unfulfilled. The payer's node coordinates
+	// every change, and never holds a lock while it waits on the payee's node:
+	//	request: the payee's node adds its half first (which checks the payee exists), then the
+	//		payer's node adds its half. If the payee's node can't be reached the request fails, and
+	//		whatever it may have added is dropped later (CANCEL_IN).
+	//	fulfill (two phases): the payer's node reserves the amount from the payer's balance, and
+	//		asks the payee's node whether its half is still pending (FULFILL_PREPARE). If so the
+	//		payer's half is fulfilled and the payee's node told to credit the payee (FULFILL_COMMIT),
+	//		otherwise the amount is put back and the fulfill fails. The payment can't be cancelled
+	//		while reserved.
+	//	cancel: the payer's half is cancelled, then the payee's half (CANCEL_IN).
+	// Commits and cancels that can't be sent when they happen are kept and sent again by a resolver
+	// thread until the payee's node has them. Handling any message twice changes nothing.
+	// There is no crash recovery: nodes keep every account, reservation and undelivered message in 
+	// memory only, and nothing records a prepare or commit decision. A node that stopped between 
+	// FULFILL_PREPARE and FULFILL_COMMIT would leave the amount reserved from its payer and the 
+	// payee never credited. That is fine for the LoopbackTransport (nodes share a process, and only 
+	// become unreachable, they never lose state); a transport between processes would need the 
+	// decisions journaled first.
+	private static final long RETRY_NANOS = 10000000L;	// 10 ms between rounds of resending
+	private static final int REMOTE_CHUNK_ROWS = 1024;
+
+	private final int _index;
+	private final int _numNodes;
+	private final PaymentSystem _system;
+	private final Transport _transport;
+	private final AccountRegistry _remoteUsers = new AccountRegistry();	// stand-ins for accounts on other nodes
+	private final AccountStore _remoteStore = new AccountStore(REMOTE_CHUNK_ROWS);
+
+	// messages that have to get to their node eventually, and the thread that keeps sending them
+	private final ConcurrentLinkedQueue<Undelivered> _undelivered = new ConcurrentLinkedQueue<Undelivered>();
+	private final Thread _resolver;
+	private volatile boolean _stopped;
+
+	private static class Undelivered {
+		final int _node;
+		final ClusterMessage _message;
+		Undelivered(int node, ClusterMessage message) {
+			_node = node;
+			_message = message;
+		}
+	}
+
+	ClusterNode(int index, int numNodes, PaymentSystemConfig config, Transport transport) {
+		_index = index;
+		_numNodes = numNodes;
+		_system = new PaymentSystem(config);
+		_transport = transport;
+		_resolver = new Thread(new Runnable() {
+			public void run() {
+				while (!_stopped) {
+					LockSupport.parkNanos(RETRY_NANOS);
+					resend();
+				}
+			}
+		}, "cluster-resolver-" + index);
+		_resolver.setDaemon(true);
+		_resolver.start();
+	}
+
+	// The accounts on this node, and the payments they make to each other. Only for the Cluster: 
+	// changing a payment with another node's half directly would bypass the two phases.
+	PaymentSystem getSystem() {
+		return _system;
+	}
+
+	// commits and cancels still waiting to get to another node
+	public int getUndeliveredCount() {
+		return _undelivered.size();
+	}
+
+	// return the new payment's id
+	long requestPayment(long amount, int fromAcct, int toAcct) {
+		int payeeNode = Cluster.nodeOf(toAcct, _numNodes);
+		if (payeeNode == _index) {
+			return _system.requestPaymentId(amount, fromAcct, toAcct);
+		}
+		User payer = _system.getUser(fromAcct);
+		if (payer == null) {
+			throw new RuntimeException("unknown account number: " + fromAcct);
+		}
+		// the payer's half, in a slot of its own until it is added
+		Payment payment = _system.newPayment(amount, payer, remoteUser(toAcct), false);
+		ClusterMessage requestIn = new ClusterMessage(ClusterMessage.REQUEST_IN, payment,
+				payment.getTimeRequestedMillis());
+		boolean added;
+		try {
+			added = _transport.send(payeeNode, requestIn);
+		} catch (RuntimeException e) {
+			// the payee's half may have been added, so make sure it goes
+			deliver(payeeNode, new ClusterMessage(ClusterMessage.CANCEL_IN, payment, 0));
+			_system.getPayments().free(payment._slot);
+			throw new RuntimeException("payment request failed: acct id = " + toAcct + " unreachable", e);
+		}
+		if (!added) {
+			_system.getPayments().free(payment._slot);
+			throw new RuntimeException("unknown account number: " + toAcct);
+		}
+		payer._lock.lock();
+		try {
+			_system.requestOut(payment);
+		} finally {
+			payer._lock.unlock();
+		}
+		return payment.getId();
+	}
+
+	// fulfill a payment requested on this node: return false if the payer's balance is too low,
+	// throw if there is no such unfulfilled payment or the payee's node can't complete it
+	boolean fulfill(long paymentId) {
+		Payment payment = _system.pendingView(paymentId);
+		if (payment == null) {
+			throw new RuntimeException("no unfulfilled payment with id " + paymentId);
+		}
+		int payeeNode = Cluster.nodeOf(payment.to().getAccountNumber(), _numNodes);
+		if (payeeNode == _index) {
+			return _system.fulfill(payment);
+		}
+
+		User payer = payment.from();
+		payer._lock.lock();
+		try {
+			PaymentSystem.checkFulfillable(payment);
+			if (payment.isReserved()) {
+				throw new RuntimeException("payment is already being fulfilled: id = " + paymentId);
+			}
+			if (!payer.reserve(payment)) {
+				return false;
+			}
+			payment.setReserved(true);
+		} finally {
+			payer._lock.unlock();
+		}
+
+		boolean prepared = false;
+		RuntimeException failure = null;
+		try {
+			prepared = _transport.send(payeeNode, new ClusterMessage(ClusterMessage.FULFILL_PREPARE, payment, 0));
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		long now = System.currentTimeMillis();
+		payer._lock.lock();
+		try {
+			payment.setReserved(false);
+			if (prepared) {
+				payer.fulfillReserved(payment, now);
+				_system.getPendingIndex().remove(paymentId);
+				_system.endParked(payment, true);
+				_system.getPayments().free(payment._slot);	// there is no payee's half on this node
+			} else {
+				payer.release(payment);
+			}
+		} finally {
+			payer._lock.unlock();
+		}
+		if (!prepared) {
+			_system.credited(payer);	// the reservation may have held up its parked payments
+		}
+		if (failure != null) {
+			throw new RuntimeException("payment not fulfilled: acct id = " + payment.to().getAccountNumber() +
+					" unreachable", failure);
+		}
+		if (!prepared) {
+			throw new RuntimeException("payment not fulfilled: payee has no unfulfilled payment with id " + paymentId);
+		}
+		deliver(payeeNode, new ClusterMessage(ClusterMessage.FULFILL_COMMIT, payment, now));
+		return true;
+	}
+
+	// cancel a payment requested on this node: return false if there is no such unfulfilled payment,
+	// or it is being fulfilled
+	boolean cancel(long paymentId) {
+		Payment payment = _system.pendingView(paymentId);
+		if (payment == null) {
+			return false;
+		}
+		int payeeNode = Cluster.nodeOf(payment.to().getAccountNumber(), _numNodes);
+		if (payeeNode == _index) {
+			return _system.cancel(paymentId);
+		}
+
+		User payer = payment.from();
+		payer._lock.lock();
+		try {
+			if (!payment.isPending() || payment.isReserved()) {
+				return false;
+			}
+			_system.cancelOut(payment);
+			_system.endParked(payment, false);	// the payee's half is on another node
+			_system.getPayments().free(payment._slot);
+		} finally {
+			payer._lock.unlock();
+		}
+		deliver(payeeNode, new ClusterMessage(ClusterMessage.CANCEL_IN, payment, 0));
+		return true;
+	}
+
+	// handle a message from the payer's node about the payee's half of a payment
+	boolean receive(ClusterMessage message) {
+		PendingIndex pending = _system.getPendingIndex();
+		PaymentStore payments = _system.getPayments();
+		Payment half;
+		switch (message._type) {
+		case ClusterMessage.REQUEST_IN:
+			User payee = _system.getUser(message._toAcct);
+			if (payee == null) {
+				return false;
+			}
+			User payer = remoteUser(message._fromAcct);
+			payee._lock.lock();
+			try {
+				if (pending.get(message._paymentId) == PaymentStore.NONE) {
+					int slot = payments.allocate(message._paymentId, message._amount, payer, payee, message._time);
+					pending.add(message._paymentId, slot);
+					_system.requestIn(payments.view(slot, message._paymentId), 0);
+				}
+			} finally {
+				payee._lock.unlock();
+			}
+			return true;
+
+		case ClusterMessage.FULFILL_PREPARE:
+			// nothing but the payer's node changes the payee's half, so once pending it stays so until
+			// the payer's node says otherwise
+			return pending.get(message._paymentId) != PaymentStore.NONE;
+
+		case ClusterMessage.FULFILL_COMMIT:
+		case ClusterMessage.CANCEL_IN:
+			half = _system.pendingView(message._paymentId);
+			if (half == null) {
+				return true;	// already done, or the request never got here
+			}
+			boolean credited = false;
+			half.to()._lock.lock();
+			try {
+				if (pending.remove(message._paymentId) != PaymentStore.NONE) {
+					if (message._type == ClusterMessage.FULFILL_COMMIT) {
+						payments.complete(half, PaymentStore.FULFILLED, message._time);
+						_system.fulfillIn(half, message._time, 0);
+						credited = true;
+					} else {
+						payments.complete(half, PaymentStore.CANCELLED, 0);
+						_system.cancelIn(half, 0);
+					}
+				}
+			} finally {
+				half.to()._lock.unlock();
+			}
+			if (credited) {
+				_system.credited(half.to());	// as fulfill() does for a payee on the payer's node
+			}
+			return true;
+
+		default:
+			throw new RuntimeException("unknown cluster message type: " + message._type);
+		}
+	}
+
+	void shutdown() {
+		_stopped = true;
+		LockSupport.unpark(_resolver);
+		_system.shutdown();
+	}
+
+	private User remoteUser(int accountNumber) {
+		User user = _remoteUsers.get(accountNumber);
+		if (user == null) {
+			user = new User(accountNumber, 0, 0, _remoteStore);
+			if (!_remoteUsers.add(user)) {
+				user = _remoteUsers.get(accountNumber);	// someone else added it first
+			}
+		}
+		return user;
+	}
+
+	// send message now if the node can be reached, otherwise leave it for the resolver
+	private void deliver(int node, ClusterMessage message) {
+		try {
+			_transport.send(node, message);
+		} catch (RuntimeException e) {
+			_undelivered.add(new Undelivered(node, message));
+		}
+	}
+
+	// one attempt at everything undelivered, in the order it was left
+	private void resend() {
+		for (int n = _undelivered.size(); n > 0; n--) {
+			Undelivered undelivered = _undelivered.poll();
+			if (undelivered == null) {
+				return;
+			}
+			try {
+				_transport.send(undelivered._node, undelivered._message);
+			} catch (RuntimeException e) {
+				_undelivered.add(undelivered);
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// EventRing: preallocated ring buffer of payment events, written by any thread that changes a
+//			payment and read by every Subscription at its own pace
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+class EventRing {
+
+	// Event n goes in slot n & _mask, its fields in parallel primitive columns. Publishing claims n
+	// with one getAndIncrement and writes the slot under a per-slot stamp: 0 before any event,
+	// 2n + 1 while event n is being written, 2n + 2 once it is. A reader checks the stamp before
+	// and after copying the fields (a sequence lock), so it sees event n whole or learns that it
+	// has been overwritten by a later lap. There are no consumer locks and nothing for a publisher
+	// to signal: readers poll.
+	// Subscriptions that mustn't lose events (BLOCK, SPILL) are gating: a publisher doesn't claim
+	// past a lap ahead of the slowest of them. The slowest position is cached, so a publisher only
+	// looks at the gating cursors when it is about to lap the cache.
+	private final int _mask;
+	private final AtomicLongArray _stamps;
+	private final byte[] _types;
+	private final long[] _paymentIds;
+	private final int[] _fromAccounts;
+	private final int[] _toAccounts;
+	private final long[] _amounts;
+	private final long[] _times;
+	private final AtomicLong _next = new AtomicLong();	// next event to claim
+
+	// the next event each gating Subscription will read, replaced whole under this monitor
+	private volatile AtomicLong[] _gating = new AtomicLong[0];
+	private volatile long _gatingMin = Long.MAX_VALUE;
+	private volatile int _subscriptions = 0;	// publishing is skipped without any
+
+	EventRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		_mask = size - 1;
+		_stamps = new AtomicLongArray(size);
+		_types = new byte[size];
+		_paymentIds = new long[size];
+		_fromAccounts = new int[size];
+		_toAccounts = new int[size];
+		_amounts = new long[size];
+		_times = new long[size];
+	}
+
+	int capacity() {
+		return _mask + 1;
+	}
+
+	boolean hasSubscriptions() {
+		return _subscriptions > 0;
+	}
+
+	// the next event to be claimed, where a new Subscription starts
+	long next() {
+		return _next.get();
+	}
+
+	void publish(PaymentEvent.Type type, long paymentId, int fromAccount, int toAccount, long amount, long time) {
+		long seq = _next.getAndIncrement();
+		int slot = (int) seq & _mask;
+		long lapped = seq - _mask - 1;	// the slot's previous event
+		if (lapped >= _gatingMin) {
+			awaitGating(lapped);
+		}
+		// a publisher a lap behind may still be writing the slot
+		long free = lapped < 0 ? 0 : 2 * lapped + 2;
+		while (_stamps.getAcquire(slot) != free) {
+			Thread.onSpinWait();
+		}
+		_stamps.setOpaque(slot, 2 * seq + 1);
+		VarHandle.storeStoreFence();
+		_types[slot] = (byte) type.ordinal();
+		_paymentIds[slot] = paymentId;
+		_fromAccounts[slot] = fromAccount;
+		_toAccounts[slot] = toAccount;
+		_amounts[slot] = amount;
+		_times[slot] = time;
+		_stamps.setRelease(slot, 2 * seq + 2);
+	}
+
+	// wait until every gating Subscription has read event lapped
+	private void awaitGating(long lapped) {
+		int waits = 0;
+		while (true) {
+			long min = refreshGatingMin();
+			if (lapped < min) {
+				return;
+			}
+			if (++waits < 100) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(10000);
+			}
+		}
+	}
+
+	// The slowest gating cursor, cached. Under this monitor, like the changes to _gating: a min
+	// computed from an array that a new Subscription has replaced since would cache a position
+	// past the new cursor, and publishers would lap it.
+	private synchronized long refreshGatingMin() {
+		long min = Long.MAX_VALUE;
+		for (AtomicLong cursor : _gating) {
+			min = Math.min(min, cursor.get());
+		}
+		_gatingMin = min;
+		return min;
+	}
+
+	// Results of read()
+	static final int READ = 0;
+	static final int NOT_YET = 1;	// not published yet
+	static final int OVERWRITTEN = 2;	// a later lap has replaced it
+
+	// copy event seq into into[index], return READ, NOT_YET or OVERWRITTEN
+	int read(long seq, PaymentEvent[] into, int index) {
+		int slot = (int) seq & _mask;
+		long stamp = _stamps.getAcquire(slot);
+		if (stamp != 2 * seq + 2) {
+			return stamp > 2 * seq + 2 ? OVERWRITTEN : NOT_YET;
+		}
+		byte type = _types[slot];
+		long paymentId = _paymentIds[slot];
+		int fromAccount = _fromAccounts[slot];
+		int toAccount = _toAccounts[slot];
+		long amount = _amounts[slot];
+		long time = _times[slot];
+		VarHandle.loadLoadFence();
+		if (_stamps.getOpaque(slot) != stamp) {
+			return OVERWRITTEN;
+		}
+		into[index] = new PaymentEvent(PaymentEvent.TYPES[type], seq, paymentId, fromAccount, toAccount, amount, time);
+		return READ;
+	}
+
+	synchronized void addSubscription(AtomicLong gatingCursor) {
+		if (gatingCursor != null) {
+			AtomicLong[] gating = new AtomicLong[_gating.length + 1];
+			System.arraycopy(_gating, 0, gating, 0, _gating.length);
+			gating[_gating.length] = gatingCursor;
+			_gating = gating;
+			_gatingMin = Math.min(_gatingMin, gatingCursor.get());
+		}
+		_subscriptions++;
+	}
+
+	synchronized void removeSubscription(AtomicLong gatingCursor) {
+		if (gatingCursor != null) {
+			AtomicLong[] gating = new AtomicLong[_gating.length - 1];
+			int i = 0;
+			for (AtomicLong cursor : _gating) {
+				if (cursor != gatingCursor) {
+					gating[i++] = cursor;
+				}
+			}
+			_gating = gating;
+			_gatingMin = Long.MIN_VALUE;	// recomputed by the next publisher that checks it
+		}
+		_subscriptions--;
+	}
+}
@@ -0,0 +1,158 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Histogram: counts of recorded durations (nanos) in log-linear buckets, for reading off
+//			percentiles: Metrics' latencies, and the load tests' (test.PaymentSystemTest and the
+//			benchmarks)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+public class Histogram {
+
+	// Values below 2^subBucketBits get a bucket each. Above that, every power of 2 is split into
+	// 2^subBucketBits equal buckets, so a bucket is never wider than 1/2^subBucketBits of the values
+	// in it: a percentile is within about 6% of the true value with 4 bits, 1.5% with 6.
+	// Counts are atomic, so threads can record while another reads or drains them. A striped
+	// histogram spreads recording threads over stripes (by thread id) so they rarely share a cache
+	// line, and reads add the stripes up.
+	private static final int MAX_STRIPES = 16;
+
+	private final int _subBucketBits;
+	private final int _subBuckets;
+	private final int _numBuckets;
+	private final AtomicLongArray[] _stripes;
+	private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+	// striped: for many threads recording at once (one stripe per core, up to 16), otherwise one
+	public Histogram(int subBucketBits, boolean striped) {
+		if (subBucketBits < 1 || subBucketBits > 16) {
+			throw new RuntimeException("invalid sub-bucket bits: " + subBucketBits);
+		}
+		_subBucketBits = subBucketBits;
+		_subBuckets = 1 << subBucketBits;
+		_numBuckets = (64 - subBucketBits + 1) * _subBuckets;
+		int stripes = 1;
+		while (striped && stripes < Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES)) {
+			stripes *= 2;
+		}
+		_stripes = new AtomicLongArray[stripes];
+		for (int i = 0; i < stripes; i++) {
+			_stripes[i] = new AtomicLongArray(_numBuckets);
+		}
+	}
+
+	// negative values count as 0
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		int stripe = (int) Thread.currentThread().getId() & (_stripes.length - 1);
+		_stripes[stripe].incrementAndGet(bucketOf(value));
+		_max.accumulate(value);
+	}
+
+	// Move everything recorded so far into other (of the same sub-bucket bits), and reset this.
+	// Values recorded meanwhile end up in one or the other.
+	public void drainInto(Histogram other) {
+		checkCompatible(other);
+		other._max.accumulate(_max.getThenReset());
+		for (AtomicLongArray stripe : _stripes) {
+			for (int i = 0; i < _numBuckets; i++) {
+				long count = stripe.getAndSet(i, 0);
+				if (count != 0) {
+					other._stripes[0].addAndGet(i, count);
+				}
+			}
+		}
+	}
+
+	// add other's counts (of the same sub-bucket bits) to this
+	public void add(Histogram other) {
+		checkCompatible(other);
+		for (AtomicLongArray stripe : other._stripes) {
+			for (int i = 0; i < _numBuckets; i++) {
+				long count = stripe.get(i);
+				if (count != 0) {
+					_stripes[0].addAndGet(i, count);
+				}
+			}
+		}
+		_max.accumulate(other._max.get());
+	}
+
+	public void reset() {
+		for (AtomicLongArray stripe : _stripes) {
+			for (int i = 0; i < _numBuckets; i++) {
+				stripe.set(i, 0);
+			}
+		}
+		_max.reset();
+	}
+
+	public long count() {
+		long count = 0;
+		for (AtomicLongArray stripe : _stripes) {
+			for (int i = 0; i < _numBuckets; i++) {
+				count += stripe.get(i);
+			}
+		}
+		return count;
+	}
+
+	public long max() {
+		return _max.get();
+	}
+
+	// the upper end of the bucket holding the given percentile (0 - 100), capped by the max seen.
+	// Values recorded while this runs may or may not be counted.
+	public long percentile(double percentile) {
+		long[] counts = new long[_numBuckets];
+		long count = 0;
+		for (AtomicLongArray stripe : _stripes) {
+			for (int i = 0; i < _numBuckets; i++) {
+				long bucketCount = stripe.get(i);
+				counts[i] += bucketCount;
+				count += bucketCount;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long max = max();
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < _numBuckets; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueIn(i), max);
+			}
+		}
+		return max;
+	}
+
+	private void checkCompatible(Histogram other) {
+		if (other._subBucketBits != _subBucketBits) {
+			throw new RuntimeException("histograms with different sub-bucket bits: " + _subBucketBits + ", "
+					+ other._subBucketBits);
+		}
+	}
+
+	private int bucketOf(long value) {
+		if (value < _subBuckets) {
+			return (int) value;
+		}
+		// shift value right until it's in [_subBuckets, 2 * _subBuckets)
+		int shift = 64 - (_subBucketBits + 1) - Long.numberOfLeadingZeros(value);
+		return (shift + 1) * _subBuckets + (int) ((value >>> shift) - _subBuckets);
+	}
+
+	private long highestValueIn(int bucket) {
+		if (bucket < _subBuckets) {
+			return bucket;
+		}
+		int shift = bucket / _subBuckets - 1;
+		long low = (long) (bucket % _subBuckets + _subBuckets) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,141 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// HotCells: striped counters a hot account's incoming credits and incoming unfulfilled sum and
+//			count go into, so payers crediting it don't contend on its lock or its row
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class HotCells {
+
+	// Each stripe is a cache line of its own holding a delta for each field, added to by whichever
+	// threads hash to it, so payers on different cores touch different lines. The true value of a
+	// field is the User's column plus the sum over the stripes. Credits only ever grow until the
+	// owner folds them into its balance (see User.foldCredits); the IN sum and count go up and down
+	// and stay in the stripes.
+	// A payment changes several fields at once (fulfilling one moves its amount from the IN sum to
+	// the credits), so a stripe is changed as a whole under its own version, like an AccountStore
+	// row: a writer makes it odd with a CAS (threads sharing a stripe take turns), changes the
+	// fields and makes it even again, and readers of a stripe retry while it's odd or changed. A
+	// reader then sees each payment's change to all of the fields or to none of them. It still
+	// isn't one instant across the stripes: a sum read while others add sees some of their adds.
+	static final int CREDIT = 0;
+	static final int SUM_IN = 1;
+	static final int COUNT_IN = 2;
+	static final int FIELDS = 3;
+
+	private static final int VERSION = 0;	// then the fields
+	private static final int LONGS_PER_STRIPE = 8;	// 64 bytes
+	private static final int MAX_STRIPES = 64;
+
+	private final AtomicLongArray _cells;
+	private final int _mask;	// stripes - 1
+
+	HotCells() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, cores * 2 - 1)) << 1);
+		_mask = stripes - 1;
+		// a stripe's worth of padding in front too, so the first isn't on the array header's line
+		_cells = new AtomicLongArray((stripes + 1) * LONGS_PER_STRIPE);
+	}
+
+	// one payment's change to the fields, made as one
+	void add(long credit, long sumIn, long countIn) {
+		int base = base(stripe());
+		long version = lock(base);
+		_cells.setPlain(base + 1 + CREDIT, _cells.getPlain(base + 1 + CREDIT) + credit);
+		_cells.setPlain(base + 1 + SUM_IN, _cells.getPlain(base + 1 + SUM_IN) + sumIn);
+		_cells.setPlain(base + 1 + COUNT_IN, _cells.getPlain(base + 1 + COUNT_IN) + countIn);
+		_cells.setRelease(base + VERSION, version + 2);
+	}
+
+	long sum(int field) {
+		long sum = 0;
+		for (int stripe = 0; stripe <= _mask; stripe++) {
+			int base = base(stripe);
+			for (int spins = 0; ; spins++) {
+				long version = _cells.getAcquire(base + VERSION);
+				long value = _cells.getPlain(base + 1 + field);
+				if (validate(base, version)) {
+					sum += value;
+					break;
+				}
+				backOff(spins);
+			}
+		}
+		return sum;
+	}
+
+	// every field (by CREDIT, SUM_IN, COUNT_IN), each stripe read whole, for readers of more than one
+	long[] sums() {
+		long[] sums = new long[FIELDS];
+		for (int stripe = 0; stripe <= _mask; stripe++) {
+			int base = base(stripe);
+			for (int spins = 0; ; spins++) {
+				long version = _cells.getAcquire(base + VERSION);
+				long credit = _cells.getPlain(base + 1 + CREDIT);
+				long sumIn = _cells.getPlain(base + 1 + SUM_IN);
+				long countIn = _cells.getPlain(base + 1 + COUNT_IN);
+				if (validate(base, version)) {
+					sums[CREDIT] += credit;
+					sums[SUM_IN] += sumIn;
+					sums[COUNT_IN] += countIn;
+					break;
+				}
+				backOff(spins);
+			}
+		}
+		return sums;
+	}
+
+	// sum and zero the stripes of field, for the owner to fold into its column
+	long take(int field) {
+		long sum = 0;
+		for (int stripe = 0; stripe <= _mask; stripe++) {
+			int base = base(stripe);
+			long version = lock(base);
+			sum += _cells.getPlain(base + 1 + field);
+			_cells.setPlain(base + 1 + field, 0);
+			_cells.setRelease(base + VERSION, version + 2);
+		}
+		return sum;
+	}
+
+	// make the stripe's version odd, return what it was
+	private long lock(int base) {
+		for (int spins = 0; ; spins++) {
+			long version = _cells.get(base + VERSION);
+			if ((version & 1) == 0 && _cells.compareAndSet(base + VERSION, version, version + 1)) {
+				VarHandle.storeStoreFence();
+				return version;
+			}
+			backOff(spins);
+		}
+	}
+
+	private boolean validate(int base, long version) {
+		VarHandle.loadLoadFence();
+		return (version & 1) == 0 && _cells.getOpaque(base + VERSION) == version;
+	}
+
+	// A stripe is only odd for a few instructions, unless its writer has been descheduled
+	private static void backOff(int spins) {
+		if (spins < 100) {
+			Thread.onSpinWait();
+		} else {
+			Thread.yield();
+		}
+	}
+
+	// threads keep to one stripe (ids hashed so consecutive ones spread out)
+	private int stripe() {
+		return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 40) & _mask;
+	}
+
+	private static int base(int stripe) {
+		return (stripe + 1) * LONGS_PER_STRIPE;
+	}
+}
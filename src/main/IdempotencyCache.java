@@ -0,0 +1,272 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// IdempotencyCache: what each client idempotency key was used for, and its result, for a window
+//				after it was first seen, so a retried call returns the original result
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class IdempotencyCache {
+
+	// States of an entry. EMPTY slots end a probe run; a FAILED entry's call threw, so the key can
+	// be used again (it keeps its slot, keys are never removed from a generation).
+	static final byte EMPTY = 0;
+	static final byte IN_PROGRESS = 1;
+	static final byte REQUESTED = 2;	// requestPayment, its Payment is the entry's payment
+	static final byte FULFILLED = 3;	// fulfill returned true
+	static final byte NOT_FULFILLED = 4;	// fulfill returned false (balance too low)
+	static final byte FAILED = 5;
+
+	// Split into segments by the low bits of the hashed key, each guarded by its own lock (held for
+	// a probe, never while a call runs; a ReentrantLock, so a virtual thread waiting for a call with
+	// the same key doesn't pin its carrier). Each segment has two generations of keys: new keys go
+	// into the current one; once it is a window old (or full), the previous generation is dropped
+	// in one go and the current one takes its place, so every entry is kept for at least a window
+	// unless the cache fills up first, and eviction costs nothing per entry. Calls still in
+	// progress aren't dropped: they are carried over into the new generation, as their callers and
+	// anyone waiting on them still need them. The generations are
+	// open-addressing tables of primitive keys preallocated at twice their entries (memory stays
+	// flat), interleaved in one array so a key's home slot in both is on the same cache line: a
+	// new key, which is nearly every call, usually costs one cache miss to look up and claim.
+	private static final int SEGMENT_BITS = 6;
+	private static final int NUM_SEGMENTS = 1 << SEGMENT_BITS;
+
+	private final long _windowMillis;
+	private final Segment[] _segments;
+
+	// capacity: entries kept per generation over all segments
+	IdempotencyCache(long windowMillis, int capacity) {
+		_windowMillis = windowMillis;
+		int entriesPerSegment = Math.max(1, (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+		_segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			_segments[i] = new Segment(entriesPerSegment);
+		}
+	}
+
+	// Claim key for a call, as of now (millis). Return null if the key is new (or its last call
+	// failed): the caller makes the call and then records its outcome with complete() or fail().
+	// Otherwise wait until the key's call is over and return its entry.
+	Entry begin(long key, long now) {
+		int hash = hash(key);
+		return _segments[hash & (NUM_SEGMENTS - 1)].begin(key, hash, now, _windowMillis);
+	}
+
+	// the call that claimed key ended with state (REQUESTED, FULFILLED or NOT_FULFILLED), payment
+	// is the Payment requested or fulfilled
+	void complete(long key, byte state, Payment payment) {
+		int hash = hash(key);
+		_segments[hash & (NUM_SEGMENTS - 1)].complete(key, hash, state, payment);
+	}
+
+	// the call that claimed key threw, a retry makes the call again
+	void fail(long key) {
+		int hash = hash(key);
+		_segments[hash & (NUM_SEGMENTS - 1)].complete(key, hash, FAILED, null);
+	}
+
+	int size() {
+		int size = 0;
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			size += _segments[i].size();
+		}
+		return size;
+	}
+
+	// clients' keys may be sequential, spread them over all the bits (murmur3 finalizer)
+	private static int hash(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	// the outcome of a key's earlier call
+	static class Entry {
+		final byte _state;
+		final Payment _payment;
+
+		Entry(byte state, Payment payment) {
+			_state = state;
+			_payment = payment;
+		}
+	}
+
+
+	private static class Segment {
+		// per slot: key and meta of generation 0, then of generation 1. Meta is the entry's state
+		// in the top byte and the time it was claimed (millis) below, 0 for an empty slot.
+		private final long[] _entries;
+		private final Payment[] _payments;	// per slot, of generation 0 then 1
+		private final int _mask;	// slots - 1
+		private final int _maxEntries;	// per generation
+		private final int[] _sizes = new int[2];
+		private int _current = 0;	// generation new keys go into
+		private long _currentStart = 0;	// millis, when _current started taking keys
+		private final ReentrantLock _lock = new ReentrantLock();
+		private final Condition _callEnded = _lock.newCondition();
+		private int _waiters = 0;	// threads waiting for a call in progress
+
+		Segment(int maxEntries) {
+			int slots = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;	// at most half full
+			_entries = new long[slots * 4];
+			_payments = new Payment[slots * 2];
+			_mask = slots - 1;
+			_maxEntries = maxEntries;
+		}
+
+		Entry begin(long key, int hash, long now, long windowMillis) {
+			_lock.lock();
+			try {
+				while (true) {
+					int index = find(_current, key, hash);
+					byte state = state(index);
+					if (state == EMPTY || state == FAILED) {
+						index = find(1 - _current, key, hash);
+						state = state(index);
+					}
+					if (state == IN_PROGRESS) {
+						_waiters++;
+						try {
+							_callEnded.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RuntimeException("interrupted waiting for a call with the same idempotency key");
+						} finally {
+							_waiters--;
+						}
+						continue;
+					}
+					if (state != EMPTY && state != FAILED && now - time(index) < windowMillis) {
+						return new Entry(state, _payments[index]);
+					}
+					claim(key, hash, now, windowMillis);
+					return null;
+				}
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		private void claim(long key, int hash, long now, long windowMillis) {
+			if (now - _currentStart >= windowMillis || _sizes[_current] >= _maxEntries) {
+				rotate(now);
+				if (_sizes[_current] >= _maxEntries) {
+					// every entry carried over is a call in progress: this one goes untracked, as
+					// if the cache had dropped it (complete() finds nothing to record)
+					return;
+				}
+			}
+			int index = find(_current, key, hash);
+			if (state(index) == EMPTY) {
+				_entries[index * 2] = key;
+				_sizes[_current]++;
+			}
+			_entries[index * 2 + 1] = meta(IN_PROGRESS, now);
+			_payments[index] = null;
+		}
+
+		void complete(long key, int hash, byte state, Payment payment) {
+			_lock.lock();
+			try {
+				// the claim is in either generation (carried over by any rotation since), unless the
+				// cache was too full of calls in progress to track it
+				int index = find(_current, key, hash);
+				if (state(index) != IN_PROGRESS) {
+					index = find(1 - _current, key, hash);
+				}
+				if (state(index) == IN_PROGRESS) {
+					_entries[index * 2 + 1] = meta(state, time(index));
+					_payments[index] = payment;
+				}
+				if (_waiters > 0) {
+					_callEnded.signalAll();
+				}
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		int size() {
+			_lock.lock();
+			try {
+				return _sizes[0] + _sizes[1];
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		// The previous generation is dropped and becomes the current one, but for its calls in
+		// progress, which go into it again (rotations are once a window or once full, so copying
+		// those few out costs next to nothing).
+		private void rotate(long now) {
+			int next = 1 - _current;
+			long[] inProgress = null;	// key, meta pairs
+			int carried = 0;
+			for (int index = next; index < _payments.length; index += 2) {
+				if (state(index) == IN_PROGRESS) {
+					if (inProgress == null) {
+						inProgress = new long[_sizes[next] * 2];
+					}
+					inProgress[carried * 2] = _entries[index * 2];
+					inProgress[carried * 2 + 1] = _entries[index * 2 + 1];
+					carried++;
+				}
+			}
+			clear(next);
+			_current = next;
+			_currentStart = now;
+			for (int i = 0; i < carried; i++) {
+				long key = inProgress[i * 2];
+				int index = find(next, key, hash(key));
+				_entries[index * 2] = key;
+				_entries[index * 2 + 1] = inProgress[i * 2 + 1];
+				_sizes[next]++;
+			}
+		}
+
+		// Linear probing within one generation. Returns the entry index (slot * 2 + generation) of
+		// key, or of the empty slot where it would go. Keys are never removed until the whole
+		// generation is cleared, so there are no tombstones.
+		private int find(int generation, long key, int hash) {
+			int slot = (hash >>> SEGMENT_BITS) & _mask;
+			while (true) {
+				int index = slot * 2 + generation;
+				if (_entries[index * 2 + 1] == 0 || _entries[index * 2] == key) {
+					return index;
+				}
+				slot = (slot + 1) & _mask;
+			}
+		}
+
+		private void clear(int generation) {
+			if (_sizes[generation] > 0) {
+				for (int index = generation; index < _payments.length; index += 2) {
+					_entries[index * 2 + 1] = 0;
+					_payments[index] = null;
+				}
+				_sizes[generation] = 0;
+			}
+		}
+
+		private byte state(int index) {
+			return (byte) (_entries[index * 2 + 1] >>> 56);
+		}
+
+		private long time(int index) {
+			return _entries[index * 2 + 1] & TIME_MASK;
+		}
+
+		private static long meta(byte state, long time) {
+			return ((long) state << 56) | (time & TIME_MASK);
+		}
+	}
+
+	private static final long TIME_MASK = (1L << 56) - 1;
+}
@@ -0,0 +1,462 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Journal: append-only binary log of every change to the system's Users, replayed on startup
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+class Journal {
+
+	// Record layout: int length of the body, body (byte type + fields), int CRC32C of the body.
+	// A crash can leave a partial record at the end of the file: replay stops at the first record
+	// that is incomplete or fails its checksum and truncates the file there.
+	static final byte ADD_USER = 1;		// int account, long balance
+	static final byte REQUEST = 2;		// long payment id, int from, int to, long amount, long time
+	static final byte FULFILL = 3;		// long payment id, long time
+	static final byte CANCEL = 4;		// long payment id
+	// A settlement (see PaymentSystem.settleNetted) is one NETTED record per payment it fulfills, 
+	// followed by a SETTLE record. Replay applies it as a whole once the SETTLE record is read, and 
+	// cuts off the NETTED records of one that never got its SETTLE record.
+	static final byte NETTED = 5;		// long payment id
+	static final byte SETTLE = 6;		// long time, int number of NETTED records before it
+
+	private static final int MAX_BODY_LENGTH = 64;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// what replay hands each record to, along with its sequence number
+	interface Listener {
+		void addUser(long seq, int accountNumber, long balance);
+		void request(long seq, long paymentId, int fromAcct, int toAcct, long amount, long timeRequested);
+		void fulfill(long seq, long paymentId, long timeFulfilled);
+		void cancel(long seq, long paymentId);
+		void settle(long seq, long[] paymentIds, int count, long timeFulfilled);	// seq of the SETTLE record
+	}
+
+	// a point in the journal: the number of records before it, and the file offset the next one starts at
+	static class Position {
+		static final Position START = new Position(0, 0);
+
+		final long _seq;
+		final long _offset;
+
+		Position(long seq, long offset) {
+			_seq = seq;
+			_offset = offset;
+		}
+	}
+
+	private final FileChannel _channel;
+	private final JournalDurability _durability;
+	private final int _groupCommitRecords;
+	private final long _groupCommitNanos;
+	private final Thread _flusher;
+	private final CRC32C _crc = new CRC32C();	// guarded by _lock
+
+	// Appenders fill _activeBuffer holding _lock, the flusher thread swaps it for _flushBuffer and 
+	// then writes (and fsyncs) the full one without holding the lock, so appends never wait for the 
+	// disk unless the whole active buffer fills up first. 
+	// (A Lock rather than this object's monitor because the group commit timer needs sub-millisecond waits.)
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _flushNeeded = _lock.newCondition();	// the flusher waits on this
+	private final Condition _bufferSwapped = _lock.newCondition();	// appenders waiting for space wait on this
+	private ByteBuffer _activeBuffer;
+	private ByteBuffer _flushBuffer;
+	private int _recordStart;	// position in _activeBuffer of the record being appended
+	private long _appendedSeq;	// number of records appended, guarded by _lock
+	private long _appendedBytes;	// file offset after the last record appended, guarded by _lock
+	private int _pendingRecords;	// appended but not yet handed to the flusher, guarded by _lock
+	private long _firstPendingNanos;	// when the oldest of those was appended
+	private volatile long _durableSeq;	// number of records written (and fsynced, unless BUFFERED)
+	private final ReentrantLock _durableLock = new ReentrantLock();	// waiters for _durableSeq ...
+	private final Condition _durableChanged = _durableLock.newCondition();	// ... wait on this
+	private volatile boolean _closed;
+	private IOException _failure;	// guarded by _durableLock, once set every later wait throws
+
+	// open the journal for appending at end, the Position replay() returned
+	Journal(Path path, JournalDurability durability, int groupCommitRecords, long groupCommitMicros, Position end)
+			throws IOException {
+		_channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		_channel.position(end._offset);
+		_durability = durability;
+		// SYNC is group commit of whatever piled up while the previous fsync ran, starting at once
+		_groupCommitRecords = durability == JournalDurability.SYNC ? 1 : groupCommitRecords;
+		_groupCommitNanos = durability == JournalDurability.SYNC ? 0 : groupCommitMicros * 1000L;
+		_activeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		_flushBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		_appendedSeq = end._seq;
+		_appendedBytes = end._offset;
+		_durableSeq = end._seq;
+		_pendingRecords = 0;
+		_closed = false;
+
+		_flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "journal-flusher");
+		_flusher.setDaemon(true);
+		_flusher.start();
+	}
+
+	// each append returns the record's sequence number, to be passed to awaitDurable()
+	long appendAddUser(int accountNumber, long balance) {
+		_lock.lock();
+		try {
+			ByteBuffer body = startRecord(ADD_USER);
+			body.putInt(accountNumber).putLong(balance);
+			return endRecord(body);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	long appendRequest(long paymentId, int fromAcct, int toAcct, long amount, long timeRequested) {
+		_lock.lock();
+		try {
+			ByteBuffer body = startRecord(REQUEST);
+			body.putLong(paymentId).putInt(fromAcct).putInt(toAcct).putLong(amount).putLong(timeRequested);
+			return endRecord(body);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	long appendFulfill(long paymentId, long timeFulfilled) {
+		_lock.lock();
+		try {
+			ByteBuffer body = startRecord(FULFILL);
+			body.putLong(paymentId).putLong(timeFulfilled);
+			return endRecord(body);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	long appendCancel(long paymentId) {
+		_lock.lock();
+		try {
+			ByteBuffer body = startRecord(CANCEL);
+			body.putLong(paymentId);
+			return endRecord(body);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	// Append a settlement's records, and return the sequence number of the last. The caller makes 
+	// sure nobody else appends meanwhile (the appends can wait for the flusher, releasing _lock).
+	long appendSettlement(long[] paymentIds, int count, long timeFulfilled) {
+		_lock.lock();
+		try {
+			for (int i = 0; i < count; i++) {
+				ByteBuffer body = startRecord(NETTED);
+				body.putLong(paymentIds[i]);
+				endRecord(body);
+			}
+			ByteBuffer body = startRecord(SETTLE);
+			body.putLong(timeFulfilled).putInt(count);
+			return endRecord(body);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	long getAppendedSequence() {
+		_lock.lock();
+		try {
+			return _appendedSeq;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	Position getAppendedPosition() {
+		_lock.lock();
+		try {
+			return new Position(_appendedSeq, _appendedBytes);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	// Block until record seq is as durable as the configured level promises: on disk for GROUP/SYNC,
+	// no wait at all for BUFFERED. Callers must not hold any User's lock while waiting.
+	// (A Lock rather than a monitor wait, which would pin a virtual thread to its carrier.)
+	void awaitDurable(long seq) {
+		if (_durability == JournalDurability.BUFFERED || _durableSeq >= seq) {
+			return;
+		}
+		_durableLock.lock();
+		try {
+			while (_durableSeq < seq) {
+				if (_failure != null) {
+					throw new UncheckedIOException("journal write failed", _failure);
+				}
+				_durableChanged.awaitUninterruptibly();
+			}
+		} finally {
+			_durableLock.unlock();
+		}
+	}
+
+	// flush everything appended so far and close the file
+	void close() {
+		_lock.lock();
+		try {
+			_closed = true;
+			_flushNeeded.signal();
+		} finally {
+			_lock.unlock();
+		}
+		try {
+			_flusher.join();
+			_channel.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	// caller holds _lock
+	private ByteBuffer startRecord(byte type) {
+		if (_closed) {
+			throw new RuntimeException("journal is closed");
+		}
+		// wait for the flusher if the active buffer can't take another record
+		while (isActiveBufferFull()) {
+			_flushNeeded.signal();
+			_bufferSwapped.awaitUninterruptibly();
+		}
+		ByteBuffer buffer = _activeBuffer;
+		_recordStart = buffer.position();
+		buffer.position(_recordStart + 4);	// length, filled in by endRecord
+		buffer.put(type);
+		return buffer;
+	}
+
+	// caller holds _lock
+	private long endRecord(ByteBuffer buffer) {
+		int bodyStart = _recordStart + 4;
+		int end = buffer.position();
+		buffer.putInt(_recordStart, end - bodyStart);
+		ByteBuffer body = buffer.duplicate();
+		body.position(bodyStart).limit(end);
+		_crc.reset();
+		_crc.update(body);
+		buffer.putInt((int) _crc.getValue());
+
+		_appendedSeq++;
+		_appendedBytes += buffer.position() - _recordStart;
+		if (_pendingRecords++ == 0) {
+			_firstPendingNanos = System.nanoTime();
+			_flushNeeded.signal();	// start the flusher's group commit timer
+		} else if (_pendingRecords == _groupCommitRecords) {
+			_flushNeeded.signal();
+		}
+		return _appendedSeq;
+	}
+
+	// caller holds _lock
+	private boolean isActiveBufferFull() {
+		return _activeBuffer.remaining() < 4 + MAX_BODY_LENGTH + 4;
+	}
+
+	static int bodyLength(byte type) {
+		switch (type) {
+		case ADD_USER:
+			return 1 + 4 + 8;
+		case REQUEST:
+			return 1 + 8 + 4 + 4 + 8 + 8;
+		case FULFILL:
+			return 1 + 8 + 8;
+		case CANCEL:
+			return 1 + 8;
+		case NETTED:
+			return 1 + 8;
+		case SETTLE:
+			return 1 + 8 + 4;
+		default:
+			return -1;
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			long seq;
+			boolean closing;
+			_lock.lock();
+			try {
+				// wait for a first record, then for the group to fill up or time out
+				while (_pendingRecords == 0 && !_closed) {
+					_flushNeeded.awaitUninterruptibly();
+				}
+				while (_pendingRecords < _groupCommitRecords && !_closed && !isActiveBufferFull()) {
+					long remaining = _firstPendingNanos + _groupCommitNanos - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					_flushNeeded.awaitNanos(remaining);
+				}
+				closing = _closed;
+				ByteBuffer full = _activeBuffer;
+				_activeBuffer = _flushBuffer;
+				_flushBuffer = full;
+				_activeBuffer.clear();
+				seq = _appendedSeq;
+				_pendingRecords = 0;
+				_bufferSwapped.signalAll();
+			} catch (InterruptedException e) {
+				return;	// only a stray interrupt of our own daemon thread could get here
+			} finally {
+				_lock.unlock();
+			}
+
+			try {
+				_flushBuffer.flip();
+				while (_flushBuffer.hasRemaining()) {
+					_channel.write(_flushBuffer);
+				}
+				if (_durability != JournalDurability.BUFFERED) {
+					_channel.force(false);
+				}
+			} catch (IOException e) {
+				_durableLock.lock();
+				try {
+					_failure = e;
+					_durableChanged.signalAll();
+				} finally {
+					_durableLock.unlock();
+				}
+				return;
+			}
+			_durableLock.lock();
+			try {
+				_durableSeq = seq;
+				_durableChanged.signalAll();
+			} finally {
+				_durableLock.unlock();
+			}
+			if (closing) {
+				return;
+			}
+		}
+	}
+
+
+	// Read every complete record of the journal at path (if there is one) in order, starting at from
+	// (a Position taken earlier, or Position.START). A partial or corrupt record at the end is cut off. 
+	// Return the Position after the last good record.
+	static Position replay(Path path, Position from, Listener listener) throws IOException {
+		if (!Files.exists(path)) {
+			if (from._offset > 0) {
+				throw new IOException("journal " + path + " is missing, a snapshot refers to it");
+			}
+			return Position.START;
+		}
+		long seq = from._seq;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (from._offset > channel.size()) {
+				throw new IOException("journal " + path + " is shorter than the snapshot that refers to it");
+			}
+			channel.position(from._offset);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			CRC32C crc = new CRC32C();
+			long goodEnd = from._offset;	// file offset after the last good record
+			// the NETTED records of a settlement whose SETTLE record hasn't been read yet
+			long[] netted = new long[64];
+			int numNetted = 0;
+			long settlementSeq = seq;	// where it started
+			long settlementOffset = goodEnd;
+			boolean eof = false;
+			while (!eof) {
+				eof = channel.read(buffer) < 0;
+				buffer.flip();
+				while (buffer.remaining() >= 4) {
+					int start = buffer.position();
+					int bodyLength = buffer.getInt(start);
+					if (bodyLength <= 0 || bodyLength > MAX_BODY_LENGTH) {
+						eof = true;
+						break;
+					}
+					if (buffer.remaining() < 4 + bodyLength + 4) {
+						break;	// need more of the file
+					}
+					ByteBuffer body = buffer.duplicate();
+					body.position(start + 4).limit(start + 4 + bodyLength);
+					crc.reset();
+					crc.update(body.duplicate());
+					byte type = body.get();
+					if ((int) crc.getValue() != buffer.getInt(start + 4 + bodyLength) || bodyLength(type) != bodyLength) {
+						eof = true;
+						break;
+					}
+					seq++;
+					if (type == NETTED) {
+						if (numNetted == 0) {
+							settlementSeq = seq - 1;
+							settlementOffset = goodEnd;
+						}
+						if (numNetted == netted.length) {
+							netted = Arrays.copyOf(netted, numNetted * 2);
+						}
+						netted[numNetted++] = body.getLong();
+					} else if (type == SETTLE) {
+						long time = body.getLong();
+						if (body.getInt() != numNetted) {
+							throw new IOException("journal " + path + ": settlement at record " + seq + " is missing payments");
+						}
+						listener.settle(seq, netted, numNetted, time);
+						numNetted = 0;
+					} else if (numNetted > 0) {
+						throw new IOException("journal " + path + ": record " + seq + " inside a settlement");
+					} else {
+						dispatch(seq, type, body, listener);
+					}
+					buffer.position(start + 4 + bodyLength + 4);
+					goodEnd += 4 + bodyLength + 4;
+				}
+				buffer.compact();
+			}
+			if (numNetted > 0) {
+				// the settlement never finished being written, as if it hadn't started
+				seq = settlementSeq;
+				goodEnd = settlementOffset;
+			}
+			if (goodEnd < channel.size()) {
+				channel.truncate(goodEnd);
+			}
+			return new Position(seq, goodEnd);
+		}
+	}
+
+	private static void dispatch(long seq, byte type, ByteBuffer body, Listener listener) {
+		switch (type) {
+		case ADD_USER:
+			listener.addUser(seq, body.getInt(), body.getLong());
+			break;
+		case REQUEST:
+			listener.request(seq, body.getLong(), body.getInt(), body.getInt(), body.getLong(), body.getLong());
+			break;
+		case FULFILL:
+			listener.fulfill(seq, body.getLong(), body.getLong());
+			break;
+		case CANCEL:
+			listener.cancel(seq, body.getLong());
+			break;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// JournalDurability: how long a caller waits for its change to reach the journal file
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+public enum JournalDurability {
+	// never wait: records are written to the file every group commit interval but never fsynced,
+	// so an OS crash can lose them (a process crash loses at most the last interval)
+	BUFFERED,
+	// wait until an fsync covers the record; one fsync is shared by every record appended within 
+	// the group commit interval or up to the group commit record count, whichever comes first
+	GROUP,
+	// wait until an fsync covers the record, fsyncing as soon as the previous fsync finishes 
+	// (records appended while an fsync is in progress still share the next one)
+	SYNC
+}
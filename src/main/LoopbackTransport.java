@@ -0,0 +1,51 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// LoopbackTransport: a Transport between ClusterNodes in the same process, which can pretend
+//				that nodes have failed
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoopbackTransport implements Transport {
+
+	// Every message is encoded and decoded again, so nodes share nothing but bytes, and is handled
+	// on the sending thread. A node marked unreachable gets nothing: sends to it throw before
+	// delivering anything.
+	private final ClusterNode[] _nodes;
+	private final AtomicIntegerArray _unreachable;	// 1 for nodes that sends fail to
+	private final LongAdder _messages = new LongAdder();
+
+	LoopbackTransport(int numNodes) {
+		_nodes = new ClusterNode[numNodes];
+		_unreachable = new AtomicIntegerArray(numNodes);
+	}
+
+	void register(int node, ClusterNode clusterNode) {
+		_nodes[node] = clusterNode;
+	}
+
+	// a node that isn't reachable keeps its state, and gets whatever was held back once it is again
+	public void setReachable(int node, boolean reachable) {
+		_unreachable.set(node, reachable ? 0 : 1);
+	}
+
+	// messages delivered so far
+	public long getMessageCount() {
+		return _messages.sum();
+	}
+
+	public boolean send(int node, ClusterMessage message) {
+		if (_unreachable.get(node) != 0) {
+			throw new RuntimeException("cluster node " + node + " is unreachable");
+		}
+		ByteBuffer wire = ByteBuffer.allocate(ClusterMessage.ENCODED_LENGTH);
+		message.encode(wire);
+		wire.flip();
+		_messages.increment();
+		return _nodes[node].receive(ClusterMessage.decode(wire));
+	}
+}
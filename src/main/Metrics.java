@@ -0,0 +1,199 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Metrics: counts and timings of what a PaymentSystem does, for PaymentSystem.getMetrics() and
+//				the optional periodic dump (see PaymentSystemConfig.setMetricsEnabled)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+	// Synchronous calls of each operation. Batch calls count once per payment under REQUEST or
+	// FULFILL, without a latency. A call fails if it returns false (fulfill: payer's balance too low,
+	// cancel: payment no longer pending) or throws.
+	public enum Operation {
+		REQUEST,
+		FULFILL,
+		CANCEL
+	}
+
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p99.9" };
+	private static final int SUB_BUCKET_BITS = 4;	// percentiles within about 6%, see Histogram
+
+	// counters are LongAdders, striped so that threads counting at once don't contend
+	private final LongAdder[] _calls;
+	private final LongAdder[] _successes;
+	private final LongAdder[] _failures;
+	private final Histogram[] _latencies;	// per Operation
+	private final Histogram _lockWaits;	// time taken to lock the Users a change touches
+	private final LongAdder _expired;	// payments cancelled by PaymentExpiry, not counted as calls
+	private final LongAdder _expiryFailures;	// ticks of PaymentExpiry that threw, their payments still pending
+
+	// for the pending gauges, which are read when asked for rather than kept up to date
+	private final AccountStore _store;
+	private final PendingIndex _pending;
+
+	private Thread _dumper;	// null unless dumping periodically
+
+	Metrics(AccountStore store, PendingIndex pending) {
+		int numOperations = Operation.values().length;
+		_calls = new LongAdder[numOperations];
+		_successes = new LongAdder[numOperations];
+		_failures = new LongAdder[numOperations];
+		_latencies = new Histogram[numOperations];
+		for (int i = 0; i < numOperations; i++) {
+			_calls[i] = new LongAdder();
+			_successes[i] = new LongAdder();
+			_failures[i] = new LongAdder();
+			_latencies[i] = new Histogram(SUB_BUCKET_BITS, true);
+		}
+		_lockWaits = new Histogram(SUB_BUCKET_BITS, true);
+		_expired = new LongAdder();
+		_expiryFailures = new LongAdder();
+		_store = store;
+		_pending = pending;
+	}
+
+	public long getCalls(Operation operation) {
+		return _calls[operation.ordinal()].sum();
+	}
+
+	public long getSuccesses(Operation operation) {
+		return _successes[operation.ordinal()].sum();
+	}
+
+	public long getFailures(Operation operation) {
+		return _failures[operation.ordinal()].sum();
+	}
+
+	// percentile (0 - 100) of the time single calls of the operation took, within about 6%
+	public long getLatencyNanos(Operation operation, double percentile) {
+		return _latencies[operation.ordinal()].percentile(percentile);
+	}
+
+	public long getMaxLatencyNanos(Operation operation) {
+		return _latencies[operation.ordinal()].max();
+	}
+
+	// percentile (0 - 100) of the time changes waited to lock their Users (locking engine only)
+	public long getLockWaitNanos(double percentile) {
+		return _lockWaits.percentile(percentile);
+	}
+
+	public long getMaxLockWaitNanos() {
+		return _lockWaits.max();
+	}
+
+	public long getLockWaitCount() {
+		return _lockWaits.count();
+	}
+
+	// payments cancelled because nobody fulfilled them within their TTL
+	public long getExpiredPayments() {
+		return _expired.sum();
+	}
+
+	// times PaymentExpiry failed to cancel a batch (e.g. the journal threw), see
+	// PaymentSystem.getLastExpiryFailure()
+	public long getExpiryFailures() {
+		return _expiryFailures.sum();
+	}
+
+	// unfulfilled payments in the whole system
+	public int getPendingPayments() {
+		return _pending.size();
+	}
+
+	// Accounts with a nonzero unfulfilled sum in this direction: OUT owe money, IN are owed it. A scan
+	// of that sum for every account (one off-heap column, without blocking).
+	public long getPendingAccounts(Direction direction) {
+		return _store.pendingGauges(direction)[0];
+	}
+
+	// the largest unfulfilled sum of any account in this direction (minor units), also a scan
+	public long getLargestPendingAmount(Direction direction) {
+		return _store.pendingGauges(direction)[1];
+	}
+
+	// everything above as text, one line per metric
+	public String dump() {
+		StringBuilder sb = new StringBuilder("metrics at " + new Date() + ":");
+		for (Operation operation : Operation.values()) {
+			Histogram latencies = _latencies[operation.ordinal()];
+			sb.append(String.format("%n  %-8s calls %d, successes %d, failures %d, latency (micros)",
+					operation.name().toLowerCase(), getCalls(operation), getSuccesses(operation), getFailures(operation)));
+			appendPercentiles(sb, latencies);
+		}
+		sb.append(String.format("%n  lock wait (micros), %d waits", _lockWaits.count()));
+		appendPercentiles(sb, _lockWaits);
+		sb.append(String.format("%n  expired payments %d, expiry failures %d", getExpiredPayments(), getExpiryFailures()));
+		sb.append(String.format("%n  pending payments %d", getPendingPayments()));
+		for (Direction direction : Direction.values()) {
+			long[] gauges = _store.pendingGauges(direction);
+			sb.append(String.format("%n  pending %-3s accounts %d, largest amount %s",
+					direction.name().toLowerCase(), gauges[0], Money.toBigDecimal(gauges[1])));
+		}
+		return sb.toString();
+	}
+
+	void recordCall(Operation operation, boolean success, long startNanos) {
+		int i = operation.ordinal();
+		_latencies[i].record(System.nanoTime() - startNanos);
+		_calls[i].increment();
+		(success ? _successes : _failures)[i].increment();
+	}
+
+	void recordBatch(Operation operation, int calls, int successes) {
+		int i = operation.ordinal();
+		_calls[i].add(calls);
+		_successes[i].add(successes);
+		_failures[i].add(calls - successes);
+	}
+
+	void recordExpired(int payments) {
+		_expired.add(payments);
+	}
+
+	void recordExpiryFailure() {
+		_expiryFailures.increment();
+	}
+
+	void recordLockWait(long startNanos) {
+		_lockWaits.record(System.nanoTime() - startNanos);
+	}
+
+	// print dump() every periodSeconds on a daemon thread, until stopDump()
+	void startDump(final int periodSeconds) {
+		_dumper = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(periodSeconds * 1000L);
+						System.out.println(dump());
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "metrics-dump");
+		_dumper.setDaemon(true);
+		_dumper.start();
+	}
+
+	void stopDump() {
+		if (_dumper != null) {
+			_dumper.interrupt();
+		}
+	}
+
+	private static void appendPercentiles(StringBuilder sb, Histogram histogram) {
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			sb.append(String.format(" %s %.1f", PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]) / 1000.0));
+		}
+		sb.append(String.format(" max %.1f", histogram.max() / 1000.0));
+	}
+}
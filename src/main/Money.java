@@ -0,0 +1,53 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Money: amounts are held as a long count of minor units (cents), BigDecimal is only used at the
+//			edges of the system
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public final class Money {
+
+	// number of decimal places in an amount, i.e. 1 minor unit == 0.01
+	public static final int SCALE = 2;
+
+	private Money() {
+	}
+
+	// reject amounts with more decimal places than we keep, rather than silently rounding them
+	public static long toMinorUnits(BigDecimal amount) {
+		if (amount == null) {
+			throw new RuntimeException("null amount");
+		}
+		try {
+			return amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+		} catch (ArithmeticException e) {
+			throw new RuntimeException("amount cannot be represented in minor units: " + amount);
+		}
+	}
+
+	public static BigDecimal toBigDecimal(long minorUnits) {
+		return BigDecimal.valueOf(minorUnits, SCALE);
+	}
+
+	static long add(long amount1, long amount2) {
+		long sum = amount1 + amount2;
+		// overflow iff both operands have the same sign and the sum's sign differs
+		if (((amount1 ^ sum) & (amount2 ^ sum)) < 0) {
+			throw new RuntimeException("amount overflow: " + amount1 + " + " + amount2);
+		}
+		return sum;
+	}
+
+	static long subtract(long amount1, long amount2) {
+		long difference = amount1 - amount2;
+		// overflow iff the operands have different signs and the difference's sign differs from amount1
+		if (((amount1 ^ amount2) & (amount1 ^ difference)) < 0) {
+			throw new RuntimeException("amount overflow: " + amount1 + " - " + amount2);
+		}
+		return difference;
+	}
+}
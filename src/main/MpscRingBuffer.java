@@ -0,0 +1,72 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// MpscRingBuffer: bounded queue with any number of producer threads and a single consumer thread
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class MpscRingBuffer<E> {
+	
+	// Each slot has a sequence number saying whose turn it is: a producer may fill slot (tail & mask) 
+	// when its sequence == tail, and the consumer may empty slot (head & mask) when its sequence == head + 1.
+	// Producers only contend on the CAS of _tail, the consumer never writes anything producers spin on
+	// except the slot sequence it hands back.
+	private final int _mask;
+	private final AtomicLongArray _sequences;
+	private final AtomicReferenceArray<E> _items;
+	private final AtomicLong _tail = new AtomicLong();
+	private long _head;	// only touched by the consumer
+	
+	MpscRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		_mask = size - 1;
+		_sequences = new AtomicLongArray(size);
+		_items = new AtomicReferenceArray<E>(size);
+		for (int i = 0; i < size; i++) {
+			_sequences.set(i, i);
+		}
+		_head = 0;
+	}
+	
+	// return false if the buffer is full
+	boolean offer(E item) {
+		while (true) {
+			long tail = _tail.get();
+			int slot = (int) tail & _mask;
+			long diff = _sequences.get(slot) - tail;
+			if (diff == 0) {
+				if (_tail.compareAndSet(tail, tail + 1)) {
+					_items.lazySet(slot, item);
+					// a full volatile write so a consumer about to park is guaranteed to see it (see PartitionedEngine)
+					_sequences.set(slot, tail + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+			// else another producer claimed this slot first, try the next one
+		}
+	}
+	
+	// consumer only, return null if the buffer is empty
+	E poll() {
+		int slot = (int) _head & _mask;
+		if (_sequences.get(slot) != _head + 1) {
+			return null;
+		}
+		E item = _items.get(slot);
+		_items.lazySet(slot, null);
+		_sequences.lazySet(slot, _head + _mask + 1);
+		_head++;
+		return item;
+	}
+	
+	// consumer only
+	boolean isEmpty() {
+		return _sequences.get((int) _head & _mask) != _head + 1;
+	}
+}
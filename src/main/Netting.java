@@ -0,0 +1,159 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Netting: settles every unfulfilled payment between a set of locked Users at once, each
+//			account's balance changing only by its net position (see PaymentSystem.settleNetted)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.RecursiveTask;
+
+class Netting {
+
+	// Every payment is settled unless it is held back. If an account's balance plus what it would
+	// receive doesn't cover what it would pay, its newest outgoing payments are held back until it
+	// does. That lowers what their payees receive, so the accounts are checked again until none is
+	// short. Each round works out every account's net position in parallel over ranges of accounts
+	// (the first from the unfulfilled sums), each task writing only its own accounts' entries.
+	// Then the accounts found short hold payments back one after another, taking them off what
+	// their payees receive.
+	// The caller holds the locks of every User, so nothing here changes under it.
+	private static final int ACCOUNTS_PER_TASK = 4096;
+
+	private final User[] _users;	// sorted by account number
+	private final int[] _accountNumbers;	// of _users, for binary search
+	private final PaymentStore _payments;
+	private final BitSet _heldBack = new BitSet();	// by slot, only written between rounds
+	private final boolean[] _short;	// found by the current round
+	// per User, what it pays and receives if settled now
+	private final long[] _settledOut;
+	private final int[] _countOut;
+	private final long[] _settledIn;
+	private final int[] _countIn;
+
+	Netting(User[] users, PaymentStore payments) {
+		_users = users;
+		_payments = payments;
+		_accountNumbers = new int[users.length];
+		for (int i = 0; i < users.length; i++) {
+			_accountNumbers[i] = users[i].getAccountNumber();
+		}
+		_short = new boolean[users.length];
+		_settledOut = new long[users.length];
+		_countOut = new int[users.length];
+		_settledIn = new long[users.length];
+		_countIn = new int[users.length];
+	}
+
+	// work out which payments can be settled, and each account's net position
+	void computePositions() {
+		boolean firstRound = true;
+		while (new Round(0, _users.length, firstRound).invoke() > 0) {
+			for (int i = 0; i < _users.length; i++) {
+				if (_short[i]) {
+					_short[i] = false;
+					holdBack(i);
+				}
+			}
+			firstRound = false;
+		}
+	}
+
+	// hold back the newest of User i's payments still being settled (at the front of its list)
+	// until what it pays is covered
+	private void holdBack(int i) {
+		int slot = _users[i].firstPending(Direction.OUT);
+		while (_settledOut[i] > Money.add(_users[i].getBalanceMinorUnits(), _settledIn[i])) {
+			if (!_heldBack.get(slot)) {
+				_heldBack.set(slot);
+				long amount = _payments.amount(slot);
+				_settledOut[i] -= amount;
+				_countOut[i]--;
+				int payee = Arrays.binarySearch(_accountNumbers, _payments.to(slot).getAccountNumber());
+				_settledIn[payee] -= amount;
+				_countIn[payee]--;
+			}
+			slot = _payments.next(slot, Direction.OUT);
+		}
+	}
+
+	// Fulfill every payment not held back at time now, put their ids in paymentIds (which must have
+	// room for all of the Users' unfulfilled payments) and return how many there are.
+	// Each User's balance, sums and counts are then written once. events: where to publish the 
+	// FULFILLED events, null if nobody is subscribed.
+	int settle(PendingIndex pending, long[] paymentIds, long now, EventRing events) {
+		int count = 0;
+		for (int i = 0; i < _users.length; i++) {
+			int slot = _users[i].firstPending(Direction.OUT);
+			while (slot != PaymentStore.NONE) {
+				int next = _payments.next(slot, Direction.OUT);
+				if (!_heldBack.get(slot)) {
+					// the fields are read from the slot while it still holds them, no record is made
+					long id = _payments.id(slot);
+					User from = _payments.from(slot);
+					User to = _payments.to(slot);
+					long amount = _payments.amount(slot);
+					_payments.complete(slot, PaymentStore.FULFILLED, now);
+					from.settlePayment(_payments, slot, Direction.OUT, now);
+					to.settlePayment(_payments, slot, Direction.IN, now);
+					pending.remove(id);
+					_payments.free(slot);
+					if (events != null) {
+						events.publish(PaymentEvent.Type.FULFILLED, id, from.getAccountNumber(), 
+								to.getAccountNumber(), amount, now);
+					}
+					paymentIds[count++] = id;
+				}
+				slot = next;
+			}
+		}
+		for (int i = 0; i < _users.length; i++) {
+			if (_countOut[i] > 0 || _countIn[i] > 0) {
+				_users[i].applySettlement(_settledOut[i], _countOut[i], _settledIn[i], _countIn[i]);
+			}
+		}
+		return count;
+	}
+
+	// one round over _users[from, to), returns how many accounts are short
+	private class Round extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;	// ForkJoinTask is Serializable, never serialized here
+		private final int _from;
+		private final int _to;
+		private final boolean _firstRound;
+
+		Round(int from, int to, boolean firstRound) {
+			_from = from;
+			_to = to;
+			_firstRound = firstRound;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (_to - _from > ACCOUNTS_PER_TASK) {
+				int middle = (_from + _to) >>> 1;
+				Round left = new Round(_from, middle, _firstRound);
+				left.fork();
+				int right = new Round(middle, _to, _firstRound).compute();
+				return left.join() + right;
+			}
+			int numShort = 0;
+			for (int i = _from; i < _to; i++) {
+				User user = _users[i];
+				if (_firstRound) {
+					_settledOut[i] = user.getSumUnfulfilledMinorUnits(Direction.OUT);
+					_countOut[i] = user.getUnfulfilledCount(Direction.OUT);
+					_settledIn[i] = user.getSumUnfulfilledMinorUnits(Direction.IN);
+					_countIn[i] = user.getUnfulfilledCount(Direction.IN);
+				}
+				if (Money.add(user.getBalanceMinorUnits(), _settledIn[i]) < _settledOut[i]) {
+					_short[i] = true;
+					numShort++;
+				}
+			}
+			return numShort;
+		}
+	}
+}
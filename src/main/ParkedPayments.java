@@ -0,0 +1,142 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ParkedPayments: one payer's payments that fulfillWhenFunded() couldn't fulfill yet, oldest
+//			first, each with the future its caller is waiting on
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ParkedPayments {
+
+	// By payment id, in the order they were parked, so the first is found and any other removed
+	// (when it is cancelled, say) without a scan. Guarded by this monitor, only ever held briefly:
+	// entries are added and removed holding the payer's lock, and looked at by drains that don't
+	// hold it yet. _size lets callers skip an empty queue without the monitor.
+	private final Map<Long, Parked> _parked = new LinkedHashMap<Long, Parked>();
+	private volatile int _size = 0;
+
+	// set while a drain of this payer is waiting to run, so a burst of credits starts one drain
+	private final AtomicBoolean _drainScheduled = new AtomicBoolean();
+	private volatile Thread _drainer;	// the thread running a drain, if one is
+
+	private static class Parked {
+		final Payment _payment;
+		final CompletableFuture<Boolean> _result = new CompletableFuture<Boolean>();
+
+		Parked(Payment payment) {
+			_payment = payment;
+		}
+	}
+
+	boolean isEmpty() {
+		return _size == 0;
+	}
+
+	// caller holds the payer's lock
+	synchronized CompletableFuture<Boolean> add(Payment payment) {
+		Parked parked = _parked.get(payment.getId());
+		if (parked == null) {
+			parked = new Parked(payment);
+			_parked.put(payment.getId(), parked);
+			_size = _parked.size();
+		}
+		return parked._result;
+	}
+
+	// the oldest parked payment, null if there are none
+	synchronized Payment first() {
+		Iterator<Parked> it = _parked.values().iterator();
+		return it.hasNext() ? it.next()._payment : null;
+	}
+
+	// The payment has been fulfilled (true) or cancelled (false); if it was parked, complete its
+	// future with that on executor, as the caller holds User locks. Caller holds the payer's lock.
+	// Returns true if it was the first and others are parked behind it: the new first may be
+	// covered already, so the caller should start a drain. Not if the caller is the drain, which
+	// carries on with the next itself.
+	boolean ended(long paymentId, boolean fulfilled, Executor executor) {
+		Parked parked;
+		boolean first;
+		synchronized (this) {
+			Iterator<Long> ids = _parked.keySet().iterator();
+			first = ids.hasNext() && ids.next().longValue() == paymentId;
+			parked = _parked.remove(paymentId);
+			_size = _parked.size();
+		}
+		if (parked == null) {
+			return false;
+		}
+		complete(parked._result, fulfilled, executor);
+		return first && _size > 0 && _drainer != Thread.currentThread();
+	}
+
+	// Netting fulfills payments without fulfillOut(): drop those that are over (all fulfilled) the
+	// same way. Caller holds the payer's lock.
+	void endSettled(Executor executor) {
+		List<Parked> settled = new ArrayList<Parked>();
+		synchronized (this) {
+			Iterator<Parked> it = _parked.values().iterator();
+			while (it.hasNext()) {
+				Parked parked = it.next();
+				if (!parked._payment.isPending()) {
+					settled.add(parked);
+					it.remove();
+				}
+			}
+			_size = _parked.size();
+		}
+		for (Parked parked : settled) {
+			complete(parked._result, true, executor);
+		}
+	}
+
+	// the PaymentSystem is shutting down, nothing parked will be fulfilled
+	void failAll(RuntimeException e) {
+		List<Parked> all;
+		synchronized (this) {
+			all = new ArrayList<Parked>(_parked.values());
+			_parked.clear();
+			_size = 0;
+		}
+		for (Parked parked : all) {
+			parked._result.completeExceptionally(e);
+		}
+	}
+
+	// true if the caller should start a drain (none is waiting to run)
+	boolean scheduleDrain() {
+		return _drainScheduled.compareAndSet(false, true);
+	}
+
+	// a drain is starting on this thread: credits from now on need another one
+	void drainStarted() {
+		_drainer = Thread.currentThread();
+		_drainScheduled.set(false);
+	}
+
+	void drainEnded() {
+		_drainer = null;
+	}
+
+	private static void complete(final CompletableFuture<Boolean> result, final boolean fulfilled, Executor executor) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					result.complete(fulfilled);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.complete(fulfilled);	// shutting down, the change mustn't fail halfway over this
+		}
+	}
+}
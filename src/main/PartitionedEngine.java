@@ -0,0 +1,340 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PartitionedEngine: alternative to locking Users, every account belongs to exactly one partition
+//			and only that partition's thread ever changes it
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+class PartitionedEngine {
+
+	// how long an idle partition thread spins before parking, and how long it parks at most
+	private static final int IDLE_SPINS = 100;
+	private static final long PARK_NANOS = 1000000L;
+
+	private final PaymentSystem _system;
+	private final Partition[] _partitions;
+
+	PartitionedEngine(PaymentSystem system, int numPartitions, int queueCapacity) {
+		_system = system;
+		_partitions = new Partition[numPartitions];
+		for (int i = 0; i < numPartitions; i++) {
+			_partitions[i] = new Partition(i, queueCapacity);
+		}
+		for (int i = 0; i < numPartitions; i++) {
+			_partitions[i].start();
+		}
+	}
+
+	int getPartitionCount() {
+		return _partitions.length;
+	}
+
+	Partition partitionOf(User user) {
+		return _partitions[Math.floorMod(user.getAccountNumber(), _partitions.length)];
+	}
+
+	// payment has been validated and is not yet known to either User
+	CompletableFuture<Payment> requestPayment(Payment payment) {
+		RequestOut task = new RequestOut(payment);
+		partitionOf(payment.from()).submit(task);
+		return task._result;
+	}
+
+	// completes with false if the payer's balance is too low, exceptionally if already fulfilled
+	CompletableFuture<Boolean> fulfill(Payment payment) {
+		FulfillDebit task = new FulfillDebit(payment);
+		partitionOf(payment.from()).submit(task);
+		return task._result;
+	}
+
+	// completes with false if the payment was already fulfilled or cancelled
+	CompletableFuture<Boolean> cancel(Payment payment) {
+		CancelOut task = new CancelOut(payment);
+		partitionOf(payment.from()).submit(task);
+		return task._result;
+	}
+
+	// run a read of user's state on the thread that owns it
+	<T> CompletableFuture<T> call(User user, Callable<T> read) {
+		Call<T> task = new Call<T>(read);
+		partitionOf(user).submit(task);
+		return task._result;
+	}
+
+	void shutdown() {
+		for (Partition partition : _partitions) {
+			partition.stopPartition();
+		}
+		for (Partition partition : _partitions) {
+			try {
+				partition.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+
+	// A partition's thread runs tasks from two queues. Callers submit to a bounded ring buffer and
+	// wait while it is full. Partitions hand the second half of a cross-partition payment to each
+	// other through an unbounded queue instead: if they had to wait on each other's full ring buffers
+	// two partitions could deadlock.
+	class Partition extends Thread {
+		private final MpscRingBuffer<Task> _requests;
+		private final ConcurrentLinkedQueue<Task> _handoffs;
+		private volatile boolean _parked;
+		private volatile boolean _stopped;
+
+		Partition(int index, int queueCapacity) {
+			super("payment-partition-" + index);
+			setDaemon(true);
+			_requests = new MpscRingBuffer<Task>(queueCapacity);
+			_handoffs = new ConcurrentLinkedQueue<Task>();
+			_parked = false;
+			_stopped = false;
+		}
+
+		void submit(Task task) {
+			if (_stopped) {
+				throw new RuntimeException("payment system has been shut down");
+			}
+			while (!_requests.offer(task)) {
+				// full: let the partition catch up
+				wakeUp();
+				Thread.yield();
+			}
+			wakeUp();
+		}
+
+		void handOff(Task task) {
+			_handoffs.offer(task);
+			wakeUp();
+		}
+
+		private void wakeUp() {
+			if (_parked) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		void stopPartition() {
+			_stopped = true;
+			LockSupport.unpark(this);
+		}
+
+		public void run() {
+			int idle = 0;
+			while (true) {
+				Task task = _handoffs.poll();
+				if (task == null) {
+					task = _requests.poll();
+				}
+				if (task != null) {
+					task.runOn(this);
+					idle = 0;
+					continue;
+				}
+				if (_stopped) {
+					return;
+				}
+				if (++idle < IDLE_SPINS) {
+					Thread.onSpinWait();
+					continue;
+				}
+				// producers write their item before reading _parked, we write _parked before looking
+				// at the queues again, so one of us is guaranteed to see the other
+				_parked = true;
+				if (_handoffs.isEmpty() && _requests.isEmpty() && !_stopped) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				_parked = false;
+			}
+		}
+	}
+
+
+	private abstract static class Task {
+		abstract void runOn(Partition partition);
+	}
+
+	// on the payer's partition: add the outgoing side, then the incoming side here or on the payee's partition
+	private class RequestOut extends Task {
+		final Payment _payment;
+		final CompletableFuture<Payment> _result = new CompletableFuture<Payment>();
+
+		RequestOut(Payment payment) {
+			_payment = payment;
+		}
+
+		void runOn(Partition partition) {
+			long seq;
+			try {
+				seq = _system.requestOut(_payment);
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			Partition payeePartition = partitionOf(_payment.to());
+			if (payeePartition == partition) {
+				new RequestIn(_payment, seq, _result).runOn(partition);
+			} else {
+				payeePartition.handOff(new RequestIn(_payment, seq, _result));
+			}
+		}
+	}
+
+	private class RequestIn extends Task {
+		final Payment _payment;
+		final long _seq;
+		final CompletableFuture<Payment> _result;
+
+		RequestIn(Payment payment, long seq, CompletableFuture<Payment> result) {
+			_payment = payment;
+			_seq = seq;
+			_result = result;
+		}
+
+		void runOn(Partition partition) {
+			try {
+				_system.requestIn(_payment, _seq);
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			_result.complete(_payment);
+		}
+	}
+
+	// on the payer's partition: debit, then credit here or on the payee's partition
+	private class FulfillDebit extends Task {
+		final Payment _payment;
+		final CompletableFuture<Boolean> _result = new CompletableFuture<Boolean>();
+
+		FulfillDebit(Payment payment) {
+			_payment = payment;
+		}
+
+		void runOn(Partition partition) {
+			long now = System.currentTimeMillis();
+			long seq;
+			try {
+				// only this partition ever marks the payment fulfilled or cancelled, so this check can't race
+				PaymentSystem.checkFulfillable(_payment);
+				seq = _system.fulfillOut(_payment, now);
+				if (seq == PaymentSystem.INSUFFICIENT_BALANCE) {
+					_result.complete(false);
+					return;
+				}
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			Partition payeePartition = partitionOf(_payment.to());
+			if (payeePartition == partition) {
+				new FulfillCredit(_payment, now, seq, _result).runOn(partition);
+			} else {
+				payeePartition.handOff(new FulfillCredit(_payment, now, seq, _result));
+			}
+		}
+	}
+
+	private class FulfillCredit extends Task {
+		final Payment _payment;
+		final long _now;
+		final long _seq;
+		final CompletableFuture<Boolean> _result;
+
+		FulfillCredit(Payment payment, long now, long seq, CompletableFuture<Boolean> result) {
+			_payment = payment;
+			_now = now;
+			_seq = seq;
+			_result = result;
+		}
+
+		void runOn(Partition partition) {
+			try {
+				_system.fulfillIn(_payment, _now, _seq);
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			_result.complete(true);
+		}
+	}
+
+	// on the payer's partition: withdraw the outgoing side, then the incoming side here or on the payee's partition
+	private class CancelOut extends Task {
+		final Payment _payment;
+		final CompletableFuture<Boolean> _result = new CompletableFuture<Boolean>();
+
+		CancelOut(Payment payment) {
+			_payment = payment;
+		}
+
+		void runOn(Partition partition) {
+			long seq;
+			try {
+				if (!_payment.isPending()) {
+					_result.complete(false);
+					return;
+				}
+				seq = _system.cancelOut(_payment);
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			Partition payeePartition = partitionOf(_payment.to());
+			if (payeePartition == partition) {
+				new CancelIn(_payment, seq, _result).runOn(partition);
+			} else {
+				payeePartition.handOff(new CancelIn(_payment, seq, _result));
+			}
+		}
+	}
+
+	private class CancelIn extends Task {
+		final Payment _payment;
+		final long _seq;
+		final CompletableFuture<Boolean> _result;
+
+		CancelIn(Payment payment, long seq, CompletableFuture<Boolean> result) {
+			_payment = payment;
+			_seq = seq;
+			_result = result;
+		}
+
+		void runOn(Partition partition) {
+			try {
+				_system.cancelIn(_payment, _seq);
+			} catch (RuntimeException e) {
+				_result.completeExceptionally(e);
+				return;
+			}
+			_result.complete(true);
+		}
+	}
+
+	private static class Call<T> extends Task {
+		final Callable<T> _read;
+		final CompletableFuture<T> _result = new CompletableFuture<T>();
+
+		Call(Callable<T> read) {
+			_read = read;
+		}
+
+		void runOn(Partition partition) {
+			try {
+				_result.complete(_read.call());
+			} catch (Exception e) {
+				_result.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -1,46 +1,167 @@
 //////////////////////////////////////////////////////////////////////////////////////////////////
-// Payment: A payment that has been requested and may or may not have been fulfilled 
+// Payment: A payment that has been requested and may or may not have been fulfilled
 //////////////////////////////////////////////////////////////////////////////////////////////////
 
 
 package main;
 
 import java.math.BigDecimal;
-import java.util.Date;
 
 public class Payment {
-	private User _from;	// payer
+	// A handle: while the payment is unfulfilled its fields live in a slot of a PaymentStore. Once
+	// it has been fulfilled or cancelled they're copied into the handle (see PaymentStore.complete),
+	// which then no longer needs the slot. Copies of fulfilled payments, e.g. from a User's history,
+	// only have the fields.
+	private final long _id;	// unique within a PaymentSystem, assigned in request order
+	public long getId() {
+		return _id;
+	}
+	final PaymentStore _store;	// null for a copy
+	final int _slot;
+
+	// Written before _recorded, which publishes them: FREE while only the slot has them, PENDING
+	// in a view (see PaymentStore.view), FULFILLED or CANCELLED once the payment is over.
+	private long _amount;	// minor units
+	private User _from;
+	private User _to;
+	private long _timeRequested;	// millis since epoch
+	private long _timeFulfilled;	// millis since epoch, 0 unless fulfilled
+	private volatile byte _recorded;
+
+	// Each getter reads the slot and then checks it still holds this payment. If it doesn't, the
+	// payment was completed and its fields recorded here before the slot was freed.
 	public User from() {
+		if (_recorded == PaymentStore.FREE) {
+			User from = _store.from(_slot);
+			if (_store.holds(_slot, _id)) {
+				return from;
+			}
+			checkRecorded();
+		}
 		return _from;
 	}
-	private User _to;	// payee/requester
 	public User to() {
+		if (_recorded == PaymentStore.FREE) {
+			User to = _store.to(_slot);
+			if (_store.holds(_slot, _id)) {
+				return to;
+			}
+			checkRecorded();
+		}
 		return _to;
 	}
-	private BigDecimal _amount;
+	// in minor units, see Money
 	public BigDecimal getAmount() {
+		return Money.toBigDecimal(getAmountMinorUnits());
+	}
+	public long getAmountMinorUnits() {
+		if (_recorded == PaymentStore.FREE) {
+			long amount = _store.amount(_slot);
+			if (_store.holds(_slot, _id)) {
+				return amount;
+			}
+			checkRecorded();
+		}
 		return _amount;
 	}
-	private boolean _fulfilled; 
 	public boolean isFulfilled() {
-		return _fulfilled;
+		return getState() == PaymentStore.FULFILLED;
+	}
+	public boolean isCancelled() {
+		return getState() == PaymentStore.CANCELLED;
+	}
+	// neither fulfilled nor cancelled (yet)
+	boolean isPending() {
+		byte state = getState();
+		return state == PaymentStore.PENDING || state == PaymentStore.RESERVED;
+	}
+	// see ClusterNode, changed by the payer's owner
+	boolean isReserved() {
+		return getState() == PaymentStore.RESERVED;
+	}
+	void setReserved(boolean reserved) {
+		_store.setState(_slot, reserved ? PaymentStore.RESERVED : PaymentStore.PENDING);
+	}
+	long getTimeRequestedMillis() {
+		if (_recorded == PaymentStore.FREE) {
+			long time = _store.timeRequested(_slot);
+			if (_store.holds(_slot, _id)) {
+				return time;
+			}
+			checkRecorded();
+		}
+		return _timeRequested;
+	}
+	// 0 until fulfilled
+	long getTimeFulfilledMillis() {
+		return _recorded == PaymentStore.FULFILLED ? _timeFulfilled : 0;
+	}
+
+
+	// a handle registered with a PaymentStore slot
+	Payment(PaymentStore store, int slot, long id) {
+		_id = id;
+		_store = store;
+		_slot = slot;
+	}
+
+	// a view of a slot, with a copy of its fields
+	Payment(PaymentStore store, int slot, long id, long amount, User from, User to, long timeRequested) {
+		_id = id;
+		_store = store;
+		_slot = slot;
+		record(amount, from, to, timeRequested, PaymentStore.PENDING, 0);
+	}
+
+	// a copy of a fulfilled payment
+	Payment(long id, long amount, User from, User to, long timeRequested, long timeFulfilled) {
+		_id = id;
+		_store = null;
+		_slot = PaymentStore.NONE;
+		record(amount, from, to, timeRequested, PaymentStore.FULFILLED, timeFulfilled);
 	}
-	private Date _timeRequested;
-	private Date _timeFulfilled;
-	
-	
-	Payment(BigDecimal amount, User from, User to) {
+
+	// PENDING, RESERVED, FULFILLED, CANCELLED (see PaymentStore), or GONE if this is a view whose
+	// payment has been completed through another Payment since, and whose slot has been freed
+	byte getState() {
+		byte recorded = _recorded;
+		if (recorded == PaymentStore.FULFILLED || recorded == PaymentStore.CANCELLED) {
+			return recorded;
+		}
+		byte state = _store.state(_slot);
+		if (_store.holds(_slot, _id)) {
+			return state;
+		}
+		recorded = _recorded;
+		return recorded == PaymentStore.FULFILLED || recorded == PaymentStore.CANCELLED ? recorded : PaymentStore.GONE;
+	}
+
+	// The payment's fields, and state: FULFILLED (at timeFulfilled) or CANCELLED once it is over
+	// (see PaymentStore.complete), PENDING for a view. Set once, or twice for a view.
+	void record(long amount, User from, User to, long timeRequested, byte state, long timeFulfilled) {
+		_amount = amount;
 		_from = from;
 		_to = to;
-		_amount = amount;
-		_fulfilled = false;
-		_timeRequested = new Date(); // automatically set to right now
-		_timeFulfilled = null; // assumption is that at construction this is unfulfilled
+		_timeRequested = timeRequested;
+		_timeFulfilled = state == PaymentStore.FULFILLED ? timeFulfilled : 0;
+		_recorded = state;
+	}
+
+	private void checkRecorded() {
+		if (_recorded == PaymentStore.FREE) {
+			throw new RuntimeException("payment " + _id + " is no longer pending");
+		}
 	}
-	
-	protected void markFulfilled() {
-		_fulfilled = true;
-		_timeFulfilled = new Date(); // automatically set to right now
+
+	// a Payment is identified by its id
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Payment && ((Payment) other)._id == _id;
 	}
-	
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(_id);
+	}
+
 }
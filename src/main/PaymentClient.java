@@ -0,0 +1,234 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentClient: one connection to a PaymentServer, with any number of calls outstanding on it
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PaymentClient {
+
+	// Every call writes its request straight away and returns a future for the response, without
+	// waiting for earlier calls to be answered (pipelining). A reader thread decodes responses,
+	// which come back in request order, and completes their futures (so dependent stages run on it
+	// unless given an executor). A call that fails on the server completes exceptionally with a
+	// RuntimeException carrying the server's message. Calls may be made from any thread.
+	// Payments returned by getRecentPayments are copies whose Users only carry an account number.
+	private static final int MAX_REQUEST = 32;	// bytes, the longest request frame
+	private static final int STAND_IN_CHUNK_ROWS = 1024;
+
+	private final SocketChannel _channel;
+	private final Thread _reader;
+	private final ByteBuffer _out = ByteBuffer.allocateDirect(MAX_REQUEST);	// guarded by this
+	private int _nextCorrelationId;	// guarded by this
+	private final ConcurrentLinkedQueue<Call<?>> _outstanding = new ConcurrentLinkedQueue<Call<?>>();
+	private volatile IOException _failure;	// why the connection is unusable, null while it's fine
+
+	// one stand-in User per account number seen in a response, only touched by the reader thread
+	private final AccountRegistry _standIns = new AccountRegistry();
+	private final AccountStore _standInStore = new AccountStore(STAND_IN_CHUNK_ROWS);
+
+	// a call whose response hasn't been read yet
+	private static abstract class Call<T> extends CompletableFuture<T> {
+		int _correlationId;
+		abstract void decode(ByteBuffer response);
+	}
+
+	private static class LongCall extends Call<Long> {
+		void decode(ByteBuffer response) {
+			complete(response.getLong());
+		}
+	}
+
+	private static class BooleanCall extends Call<Boolean> {
+		void decode(ByteBuffer response) {
+			complete(response.get() != 0);
+		}
+	}
+
+	private class RecentCall extends Call<Collection<Payment>> {
+		void decode(ByteBuffer response) {
+			int count = response.getInt();
+			List<Payment> payments = new ArrayList<Payment>(count);
+			for (int i = 0; i < count; i++) {
+				long id = response.getLong();
+				long amount = response.getLong();
+				User from = standIn(response.getInt());
+				User to = standIn(response.getInt());
+				long timeRequested = response.getLong();
+				payments.add(new Payment(id, amount, from, to, timeRequested, response.getLong()));
+			}
+			complete(payments);
+		}
+	}
+
+	public PaymentClient(InetSocketAddress address) throws IOException {
+		if (address == null) {
+			throw new RuntimeException("invalid null input");
+		}
+		_channel = SocketChannel.open(address);
+		_channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		_reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "payment-client-reader");
+		_reader.setDaemon(true);
+		_reader.start();
+	}
+
+	// return the new payment's id
+	public CompletableFuture<Long> requestPayment(long amount, int fromAcct, int toAcct) {
+		LongCall call = new LongCall();
+		synchronized (this) {
+			begin(call, WireProtocol.OP_REQUEST).putLong(amount).putInt(fromAcct).putInt(toAcct);
+			send(call);
+		}
+		return call;
+	}
+
+	// false if the payer's balance is too low, fails if there is no unfulfilled payment with this id
+	public CompletableFuture<Boolean> fulfill(long paymentId) {
+		BooleanCall call = new BooleanCall();
+		synchronized (this) {
+			begin(call, WireProtocol.OP_FULFILL).putLong(paymentId);
+			send(call);
+		}
+		return call;
+	}
+
+	// minor units
+	public CompletableFuture<Long> getBalance(int accountNumber) {
+		LongCall call = new LongCall();
+		synchronized (this) {
+			begin(call, WireProtocol.OP_BALANCE).putInt(accountNumber);
+			send(call);
+		}
+		return call;
+	}
+
+	// minor units
+	public CompletableFuture<Long> getUnfulfilledAmt(int accountNumber, Direction direction) {
+		if (direction == null) {
+			throw new RuntimeException("invalid null input");
+		}
+		LongCall call = new LongCall();
+		synchronized (this) {
+			begin(call, WireProtocol.OP_UNFULFILLED).putInt(accountNumber).put(WireProtocol.encode(direction));
+			send(call);
+		}
+		return call;
+	}
+
+	// oldest first, at most WireProtocol.MAX_RECENT (the most recent)
+	public CompletableFuture<Collection<Payment>> getRecentPayments(int accountNumber, Direction direction) {
+		if (direction == null) {
+			throw new RuntimeException("invalid null input");
+		}
+		RecentCall call = new RecentCall();
+		synchronized (this) {
+			begin(call, WireProtocol.OP_RECENT).putInt(accountNumber).put(WireProtocol.encode(direction));
+			send(call);
+		}
+		return call;
+	}
+
+	// outstanding calls fail
+	public void close() throws IOException {
+		_channel.close();
+		try {
+			_reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private ByteBuffer begin(Call<?> call, byte op) {
+		call._correlationId = _nextCorrelationId++;
+		_out.clear();
+		return _out.putInt(0).putInt(call._correlationId).put(op);
+	}
+
+	// the request is in _out, called synchronized
+	private void send(Call<?> call) {
+		_out.putInt(0, _out.position() - 4);
+		_out.flip();
+		_outstanding.add(call);
+		try {
+			if (_failure != null) {
+				throw _failure;
+			}
+			while (_out.hasRemaining()) {
+				_channel.write(_out);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private User standIn(int accountNumber) {
+		User user = _standIns.get(accountNumber);
+		if (user == null) {
+			user = new User(accountNumber, 0, 0, _standInStore);
+			_standIns.add(user);
+		}
+		return user;
+	}
+
+	private void read() {
+		ByteBuffer in = ByteBuffer.allocateDirect(2 * WireProtocol.MAX_FRAME);
+		try {
+			while (_channel.read(in) >= 0) {
+				in.flip();
+				while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+					int end = in.position() + 4 + in.getInt();
+					int limit = in.limit();
+					in.limit(end);
+					int correlationId = in.getInt();
+					Call<?> call = _outstanding.poll();
+					if (call == null || call._correlationId != correlationId) {
+						throw new IOException("response out of order: correlation id = " + correlationId);
+					}
+					if (in.get() == WireProtocol.STATUS_OK) {
+						call.decode(in);
+					} else {
+						call.completeExceptionally(new RuntimeException(WireProtocol.getMessage(in)));
+					}
+					in.limit(limit).position(end);
+				}
+				in.compact();
+			}
+			fail(new IOException("connection closed by server"));
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException("invalid response", e));
+		}
+	}
+
+	// the connection is unusable: fail every outstanding call, now and from now on
+	private void fail(IOException failure) {
+		if (_failure == null) {
+			_failure = failure;
+		}
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		Call<?> call;
+		while ((call = _outstanding.poll()) != null) {
+			call.completeExceptionally(new RuntimeException("payment server connection failed", _failure));
+		}
+	}
+}
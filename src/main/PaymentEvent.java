@@ -0,0 +1,63 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentEvent: one change to a payment, as delivered to a PaymentEventListener
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+public class PaymentEvent {
+
+	public enum Type {
+		REQUESTED,
+		FULFILLED,
+		FAILED,	// fulfill found the payer's balance too low, the payment is still unfulfilled
+		CANCELLED	// by cancel() or when the payment's TTL ran out
+	}
+	static final Type[] TYPES = Type.values();
+
+	private final Type _type;
+	public Type getType() {
+		return _type;
+	}
+	// position in the stream of all events of the PaymentSystem, a gap means events were dropped
+	private final long _sequence;
+	public long getSequence() {
+		return _sequence;
+	}
+	private final long _paymentId;
+	public long getPaymentId() {
+		return _paymentId;
+	}
+	private final int _fromAccount;
+	public int getFromAccount() {
+		return _fromAccount;
+	}
+	private final int _toAccount;
+	public int getToAccount() {
+		return _toAccount;
+	}
+	private final long _amount;	// minor units
+	public long getAmountMinorUnits() {
+		return _amount;
+	}
+	private final long _time;	// millis since epoch, when the payment was requested, fulfilled etc.
+	public long getTimeMillis() {
+		return _time;
+	}
+
+	PaymentEvent(Type type, long sequence, long paymentId, int fromAccount, int toAccount, long amount, long time) {
+		_type = type;
+		_sequence = sequence;
+		_paymentId = paymentId;
+		_fromAccount = fromAccount;
+		_toAccount = toAccount;
+		_amount = amount;
+		_time = time;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + _sequence + " " + _type + " payment " + _paymentId + " from " + _fromAccount + " to " + _toAccount 
+				+ " amount " + Money.toBigDecimal(_amount) + " at " + _time;
+	}
+}
@@ -0,0 +1,14 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentEventListener: receives the payment events of a Subscription, see PaymentSystem.subscribe
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.List;
+
+public interface PaymentEventListener {
+	// Called on the subscription's own thread with the next events, in the order they happened 
+	// (each payment's events come after its REQUESTED). The list is only valid during the call.
+	void onEvents(List<PaymentEvent> events);
+}
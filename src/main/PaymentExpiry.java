@@ -0,0 +1,145 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentExpiry: cancels payments nobody has fulfilled within the time to live set by
+//				PaymentSystemConfig.setPaymentTtlMillis, on a thread of its own
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class PaymentExpiry {
+
+	// Every requested payment's id goes into a TimerWheel, due a TTL after it was requested. Ids are
+	// added by whoever requests the payment, so there are several wheels, each with its own monitor,
+	// and a thread adds to the one picked by its id (as PaymentStore stripes slots). Payments that are
+	// fulfilled or cancelled first aren't taken out: their ids come back due like any other, and
+	// PaymentSystem.expire skips those no longer pending.
+	// Once a tick the expiry thread takes what's due from each wheel, in batches of at most
+	// batchSize, and cancels them (see PaymentSystem.expire) holding no wheel's monitor, so a request
+	// never waits on more than one wheel's batch being taken out.
+	private static final int STRIPE_BITS = 3;
+	private static final int STRIPE_MASK = (1 << STRIPE_BITS) - 1;
+
+	private final PaymentSystem _system;
+	private final long _ttlMillis;
+	private final long _tickMillis;
+	private final long _start;	// millis since epoch at tick 0
+	private final TimerWheel[] _wheels;
+	private final long[] _batch;	// only used by the expiry thread
+	private Thread _expirer;
+	// ticks whose expiries failed (e.g. the journal did), the payments of that batch stay pending
+	// and are only retried if they come due again, so this is what says they didn't expire
+	private final AtomicLong _failures = new AtomicLong();
+	private volatile Throwable _lastFailure;
+
+	PaymentExpiry(PaymentSystem system, long ttlMillis, long tickMillis, int batchSize) {
+		_system = system;
+		_ttlMillis = ttlMillis;
+		_tickMillis = tickMillis;
+		_start = System.currentTimeMillis();
+		_wheels = new TimerWheel[1 << STRIPE_BITS];
+		for (int i = 0; i < _wheels.length; i++) {
+			_wheels[i] = new TimerWheel(0);
+		}
+		_batch = new long[batchSize];
+	}
+
+	// the payment expires a TTL after timeRequested (millis since epoch), at the end of that tick
+	void add(long paymentId, long timeRequested) {
+		// rounded up so a payment never expires early
+		long tick = Math.max(0, Math.floorDiv(timeRequested + _ttlMillis - _start + _tickMillis - 1, _tickMillis));
+		TimerWheel wheel = _wheels[(int) Thread.currentThread().getId() & STRIPE_MASK];
+		synchronized (wheel) {
+			wheel.add(paymentId, tick);
+		}
+	}
+
+	// ids in the wheels, including those of payments no longer pending
+	int size() {
+		int size = 0;
+		for (TimerWheel wheel : _wheels) {
+			synchronized (wheel) {
+				size += wheel.size();
+			}
+		}
+		return size;
+	}
+
+	long getTtlMillis() {
+		return _ttlMillis;
+	}
+
+	long getFailures() {
+		return _failures.get();
+	}
+
+	Throwable getLastFailure() {
+		return _lastFailure;
+	}
+
+	// expire what's due every tick on a daemon thread, until stop()
+	void start() {
+		_expirer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(_tickMillis);
+						try {
+							expireDue(System.currentTimeMillis());
+						} catch (RuntimeException e) {
+							failed(e);
+						}
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "payment-expiry");
+		_expirer.setDaemon(true);
+		_expirer.start();
+	}
+
+	void stop() {
+		if (_expirer != null) {
+			_expirer.interrupt();
+			try {
+				_expirer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// cancel every payment whose TTL has run out by now (millis since epoch), return how many were
+	// still pending
+	int expireDue(long now) {
+		long tick = Math.floorDiv(now - _start, _tickMillis);
+		int expired = 0;
+		for (TimerWheel wheel : _wheels) {
+			while (true) {
+				int count;
+				synchronized (wheel) {
+					count = wheel.advance(tick, _batch);
+				}
+				if (count == 0) {
+					break;
+				}
+				expired += _system.expire(_batch, count);
+				if (count < _batch.length) {
+					break;
+				}
+			}
+		}
+		return expired;
+	}
+
+	private void failed(RuntimeException e) {
+		_lastFailure = e;
+		_failures.incrementAndGet();
+		Metrics metrics = _system.getMetrics();
+		if (metrics != null) {
+			metrics.recordExpiryFailure();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentHistory: the most recent fulfilled payments of one User in one direction, published as
+//			an immutable snapshot that readers take without the User's lock
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+class PaymentHistory {
+
+	// Entries are appended oldest first with the time each was fulfilled. Times are clamped so they
+	// never go backwards (the wall clock can), so two payments fulfilled in the same millisecond
+	// both stay in the history, in the order they were added, and queries can binary search.
+	// The writer pays for the snapshot: each add makes the entry's Payment (a copy that is over, so
+	// it never changes) and publishes the range now in the history through the volatile _recent.
+	// An entry is never overwritten: once the arrays are full, the newest capacity - 1 entries are
+	// moved to new arrays (up to twice the capacity long) and appending carries on there, so that
+	// copying is amortized over capacity adds. A reader sees one whole history from a single
+	// volatile read, never one being changed, and hands it out as it is: no lock, no retry and no
+	// copying. Only the owner of the User adds.
+	private final int _capacity;
+	private Payment[] _payments = NO_PAYMENTS;
+	private long[] _times = NO_TIMES;
+	private int _count = 0;	// entries appended to the current arrays
+	private long _lastTime = Long.MIN_VALUE;
+	private volatile Recent _recent = Recent.EMPTY;
+
+	private static final Payment[] NO_PAYMENTS = new Payment[0];
+	private static final long[] NO_TIMES = new long[0];
+
+	PaymentHistory(int capacity) {
+		_capacity = capacity;
+	}
+
+	// caller owns the User
+	void add(long id, long amount, User from, User to, long timeRequested, long timeFulfilled) {
+		if (_capacity == 0) {
+			return;
+		}
+		_lastTime = Math.max(_lastTime, timeFulfilled);
+		if (_count == _payments.length) {
+			// grows to twice the capacity, small to start with so quiet accounts stay small
+			int length = Math.min(Math.max(_payments.length * 2, 4), 2 * _capacity);
+			int kept = Math.min(_count, _capacity - 1);	// dropping the oldest once full
+			Payment[] payments = new Payment[length];
+			long[] times = new long[length];
+			System.arraycopy(_payments, _count - kept, payments, 0, kept);
+			System.arraycopy(_times, _count - kept, times, 0, kept);
+			_payments = payments;
+			_times = times;
+			_count = kept;
+		}
+		_payments[_count] = new Payment(id, amount, from, to, timeRequested, timeFulfilled);
+		_times[_count] = _lastTime;
+		_count++;
+		_recent = new Recent(_payments, _times, Math.max(0, _count - _capacity), _count);
+	}
+
+	int size() {
+		return _recent.size();
+	}
+
+	// oldest first, never changes
+	List<Payment> getAll() {
+		return _recent;
+	}
+
+	// payments fulfilled at or after time (millis), oldest first, never changes
+	List<Payment> getStartingWith(long time) {
+		Recent recent = _recent;
+		// first entry whose time is >= time
+		int low = recent._from;
+		int high = recent._to;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (recent._times[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low == recent._from ? recent : new Recent(recent._payments, recent._times, low, recent._to);
+	}
+
+	// Entries [from, to) of the arrays, which are never written again (later adds only go past to,
+	// or to new arrays), as a read-only list
+	private static class Recent extends AbstractList<Payment> implements RandomAccess {
+		static final Recent EMPTY = new Recent(NO_PAYMENTS, NO_TIMES, 0, 0);
+
+		final Payment[] _payments;
+		final long[] _times;	// millis, clamped
+		final int _from;
+		final int _to;
+
+		Recent(Payment[] payments, long[] times, int from, int to) {
+			_payments = payments;
+			_times = times;
+			_from = from;
+			_to = to;
+		}
+
+		@Override
+		public Payment get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+			}
+			return _payments[_from + index];
+		}
+
+		@Override
+		public int size() {
+			return _to - _from;
+		}
+	}
+}
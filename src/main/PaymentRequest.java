@@ -0,0 +1,34 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentRequest: one item of a batch passed to PaymentSystem.requestPayments
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.math.BigDecimal;
+
+public class PaymentRequest {
+	private final long _amount;	// in minor units, see Money
+	public long getAmountMinorUnits() {
+		return _amount;
+	}
+	private final int _fromAcct;	// payer
+	public int getFromAccount() {
+		return _fromAcct;
+	}
+	private final int _toAcct;	// payee/requester
+	public int getToAccount() {
+		return _toAcct;
+	}
+	
+	public PaymentRequest(BigDecimal amount, int fromAcct, int toAcct) {
+		this(Money.toMinorUnits(amount), fromAcct, toAcct);
+	}
+	
+	// amount in minor units, see Money
+	public PaymentRequest(long amount, int fromAcct, int toAcct) {
+		_amount = amount;
+		_fromAcct = fromAcct;
+		_toAcct = toAcct;
+	}
+}
@@ -0,0 +1,366 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentServer: serves a PaymentSystem over TCP with the binary WireProtocol, on non-blocking
+//				NIO event loops
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PaymentServer {
+
+	// Each event loop thread owns a Selector and the connections assigned to it (round robin, by
+	// the first loop, which also accepts). A connection has a direct read and write buffer from a
+	// pool. Requests are decoded where they lie in the read buffer and run on the loop thread as they
+	// arrive, every complete frame in the buffer at once, and their responses gathered in the write
+	// buffer and written together. If responses back up (the client isn't reading them), the
+	// connection stops reading requests until they drain.
+	// Calls block the loop while they wait for locks or the journal, so with a durable journal
+	// more loops (and connections) keep more calls waiting on the same fsync.
+	// If a loop fails (its selector throws, say) the whole server is closed: the first loop is the
+	// only one accepting, and the others' share of new connections would go nowhere. The failure is
+	// counted and kept (getFailures, getLastFailure) for the owner to find.
+	private static final int BUFFER_SIZE = 2 * WireProtocol.MAX_FRAME;
+	private static final int MAX_FREE_BUFFERS = 256;
+
+	private final PaymentSystem _system;
+	private final ServerSocketChannel _serverChannel;
+	private final EventLoop[] _loops;
+	private final BufferPool _buffers = new BufferPool(BUFFER_SIZE, MAX_FREE_BUFFERS);
+	private int _nextLoop;	// for the next accepted connection, only touched by the first loop
+	private volatile boolean _closed;
+	private final AtomicLong _failures = new AtomicLong();
+	private volatile Throwable _lastFailure;
+
+	// port 0 picks a free port, see getPort()
+	public PaymentServer(PaymentSystem system, InetSocketAddress address, int eventLoops) throws IOException {
+		if (system == null || address == null || eventLoops < 1) {
+			throw new RuntimeException("invalid input to PaymentServer constructor");
+		}
+		_system = system;
+		_serverChannel = ServerSocketChannel.open();
+		_serverChannel.bind(address);
+		_serverChannel.configureBlocking(false);
+		_loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; i++) {
+			_loops[i] = new EventLoop(i);
+		}
+		_serverChannel.register(_loops[0]._selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : _loops) {
+			loop._thread.start();
+		}
+	}
+
+	public int getPort() {
+		return _serverChannel.socket().getLocalPort();
+	}
+
+	// event loops that failed, each closing the server
+	public long getFailures() {
+		return _failures.get();
+	}
+
+	// what the last of them threw, null if none
+	public Throwable getLastFailure() {
+		return _lastFailure;
+	}
+
+	// by close() or by a loop failing
+	public boolean isClosed() {
+		return _closed;
+	}
+
+	// stop accepting, close every connection and wait for the loops to finish
+	public void close() throws IOException {
+		stop();
+		for (EventLoop loop : _loops) {
+			try {
+				loop._thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	// stop accepting and tell every loop to close its connections, without waiting for them (a
+	// failing loop calls this)
+	private void stop() throws IOException {
+		_closed = true;
+		try {
+			_serverChannel.close();
+		} finally {
+			for (EventLoop loop : _loops) {
+				loop._selector.wakeup();
+			}
+		}
+	}
+
+	private void failed(Throwable e) {
+		_lastFailure = e;
+		_failures.incrementAndGet();
+		try {
+			stop();
+		} catch (IOException closing) {
+			// closing anyway
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		final Selector _selector;
+		final Thread _thread;
+		final ConcurrentLinkedQueue<SocketChannel> _accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+		EventLoop(int index) throws IOException {
+			_selector = Selector.open();
+			_thread = new Thread(this, "payment-server-" + index);
+			_thread.setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				while (!_closed) {
+					_selector.select();
+					SocketChannel channel;
+					while ((channel = _accepted.poll()) != null) {
+						register(channel);
+					}
+					Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isWritable()) {
+								connection.onWritable();
+							}
+							if (key.isValid() && key.isReadable()) {
+								connection.onReadable();
+							}
+						} catch (IOException e) {
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				failed(e);
+			} finally {
+				for (SelectionKey key : _selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				closeAccepted();
+				try {
+					_selector.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = _serverChannel.accept()) != null) {
+				EventLoop loop = _loops[_nextLoop];
+				_nextLoop = (_nextLoop + 1) % _loops.length;
+				if (loop == this) {
+					register(channel);
+				} else {
+					loop._accepted.add(channel);
+					loop._selector.wakeup();
+					if (_closed) {
+						// the loop may have closed its queue before this went in, see closeAccepted
+						loop.closeAccepted();
+					}
+				}
+			}
+		}
+
+		// Close connections handed to this loop that it hasn't registered. Called by the loop as it
+		// ends, after _closed is set, and by the first loop if it finds _closed set after adding
+		// one, so a connection added while the loop ends is closed by one or the other.
+		void closeAccepted() {
+			SocketChannel channel;
+			while ((channel = _accepted.poll()) != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+
+		private void register(SocketChannel channel) throws IOException {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(channel);
+			connection._key = channel.register(_selector, SelectionKey.OP_READ, connection);
+		}
+	}
+
+	// only touched by its loop's thread
+	private class Connection {
+		final SocketChannel _channel;
+		SelectionKey _key;
+		ByteBuffer _in;	// filling with requests
+		ByteBuffer _out;	// filling with responses
+
+		Connection(SocketChannel channel) {
+			_channel = channel;
+			_in = _buffers.acquire();
+			_out = _buffers.acquire();
+		}
+
+		void onReadable() throws IOException {
+			if (_channel.read(_in) < 0) {
+				close();
+				return;
+			}
+			process();
+		}
+
+		void onWritable() throws IOException {
+			if (flush()) {
+				process();	// requests held back while the responses drained
+			}
+		}
+
+		// handle every complete request in _in, as long as there's room for its response
+		private void process() throws IOException {
+			_in.flip();
+			while (_in.remaining() >= 4) {
+				int start = _in.position();
+				int length = _in.getInt(start);
+				if (length < WireProtocol.HEADER - 4 || length > WireProtocol.MAX_FRAME - 4) {
+					close();	// not talking our protocol
+					return;
+				}
+				if (_in.remaining() < 4 + length) {
+					break;
+				}
+				if (_out.remaining() < WireProtocol.MAX_FRAME && !flush()) {
+					break;
+				}
+				int end = start + 4 + length;
+				int limit = _in.limit();
+				_in.position(start + 4).limit(end);
+				handle(_in);
+				_in.limit(limit).position(end);
+			}
+			_in.compact();
+			flush();
+		}
+
+		// Decode one request from in (limited to its frame) and add its response to _out. Anything
+		// that throws, including a request too short for its arguments, is answered with an error.
+		private void handle(ByteBuffer in) {
+			int correlationId = in.getInt();
+			int start = _out.position();
+			_out.putInt(0).putInt(correlationId).put(WireProtocol.STATUS_OK);
+			try {
+				byte op = in.get();
+				switch (op) {
+				case WireProtocol.OP_REQUEST:
+					long amount = in.getLong();
+					int fromAcct = in.getInt();
+					_out.putLong(_system.requestPaymentId(amount, fromAcct, in.getInt()));
+					break;
+				case WireProtocol.OP_FULFILL:
+					_out.put((byte) (_system.fulfill(in.getLong()) ? 1 : 0));
+					break;
+				case WireProtocol.OP_BALANCE:
+					_out.putLong(lookupUser(in.getInt()).getBalanceMinorUnits());
+					break;
+				case WireProtocol.OP_UNFULFILLED:
+					User user = lookupUser(in.getInt());
+					_out.putLong(_system.getUnfulfilledMinorUnits(user, WireProtocol.decodeDirection(in.get())));
+					break;
+				case WireProtocol.OP_RECENT:
+					user = lookupUser(in.getInt());
+					putRecent(_system.getRecentPayments(user, WireProtocol.decodeDirection(in.get())));
+					break;
+				default:
+					throw new RuntimeException("unknown op: " + op);
+				}
+			} catch (RuntimeException e) {
+				_out.position(start);
+				_out.putInt(0).putInt(correlationId).put(WireProtocol.STATUS_ERROR);
+				WireProtocol.putMessage(_out, e.getMessage() != null ? e.getMessage() : e.toString());
+			}
+			_out.putInt(start, _out.position() - start - 4);
+		}
+
+		// the most recent MAX_RECENT of them (the history is oldest first)
+		private void putRecent(Collection<Payment> payments) {
+			int skip = Math.max(0, payments.size() - WireProtocol.MAX_RECENT);
+			_out.putInt(payments.size() - skip);
+			for (Payment payment : payments) {
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				_out.putLong(payment.getId()).putLong(payment.getAmountMinorUnits())
+						.putInt(payment.from().getAccountNumber()).putInt(payment.to().getAccountNumber())
+						.putLong(payment.getTimeRequestedMillis()).putLong(payment.getTimeFulfilledMillis());
+			}
+		}
+
+		// Write what responses the socket takes. Return true if they all went, otherwise wait for
+		// the socket to be writable and stop reading requests meanwhile.
+		private boolean flush() throws IOException {
+			if (_out.position() > 0) {
+				_out.flip();
+				_channel.write(_out);
+				_out.compact();
+			}
+			boolean drained = _out.position() == 0;
+			if (_key.isValid()) {
+				_key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+			}
+			return drained;
+		}
+
+		void close() {
+			_key.cancel();
+			try {
+				_channel.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			if (_in != null) {
+				_buffers.release(_in);
+				_buffers.release(_out);
+				_in = null;
+				_out = null;
+			}
+		}
+	}
+
+	private User lookupUser(int accountNumber) {
+		User user = _system.getUser(accountNumber);
+		if (user == null) {
+			throw new RuntimeException("unknown account number: " + accountNumber);
+		}
+		return user;
+	}
+}
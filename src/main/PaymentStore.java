@@ -0,0 +1,242 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentStore: every unfulfilled payment of a PaymentSystem, in slots of parallel primitive
+//				columns rather than an object (and two set entries) per payment
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+class PaymentStore {
+
+	// A payment takes a slot when it is requested and gives it back once both of its Users are
+	// done with it (after the payee's half of its fulfillment or cancellation), for a later payment
+	// to reuse. Slots are spread over stripes so that threads requesting at the same time don't all
+	// take one monitor: a thread allocates from the stripe picked by its id, and a slot goes back
+	// to its own stripe's free list. Each stripe grows in fixed-size chunks of columns, which never
+	// move once allocated. A slot number is its index within the stripe, shifted, plus the stripe.
+	// Each User keeps its unfulfilled payments per direction as a doubly linked list through the
+	// slots' links (see User). A slot's fields are only changed by whoever owns its payer, or its
+	// payee for that User's links, the same as User fields.
+	// Payments handed to callers are handles on a slot, registered with it, so that when the payment
+	// is fulfilled or cancelled the slot's fields are copied into the handle, which then no longer
+	// needs the slot.
+	// Payments made internally for a slot (see view) carry a copy of its fields instead. Either may
+	// read a slot racing its reuse: the id is cleared first and written last, with release semantics,
+	// and readers check it after reading the rest (see holds).
+	static final int NONE = -1;
+
+	// slot states, and GONE for a Payment whose slot has been reused (see Payment.getState)
+	static final byte FREE = 0;
+	static final byte PENDING = 1;
+	static final byte RESERVED = 2;	// a ClusterNode holds the payer's funds for it, see User.reserve
+	static final byte FULFILLED = 3;	// the payer's half is done, the payee's may not be yet
+	static final byte CANCELLED = 4;
+	static final byte GONE = 5;
+
+	private static final int STRIPE_BITS = 4;
+	private static final int CHUNK_BITS = 10;	// 1024 slots, about 53 KB per chunk
+	private static final int STRIPE_MASK = (1 << STRIPE_BITS) - 1;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private static final VarHandle IDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final Stripe[] _stripes;
+
+	PaymentStore() {
+		_stripes = new Stripe[1 << STRIPE_BITS];
+		for (int i = 0; i < _stripes.length; i++) {
+			_stripes[i] = new Stripe(i);
+		}
+	}
+
+	// a slot for a new pending payment, not yet in any User's lists
+	int allocate(long id, long amount, User from, User to, long timeRequested) {
+		int slot = _stripes[(int) Thread.currentThread().getId() & STRIPE_MASK].allocate();
+		Chunk chunk = chunkOf(slot);
+		int i = indexOf(slot);
+		chunk._amounts[i] = amount;
+		chunk._from[i] = from;
+		chunk._to[i] = to;
+		chunk._timesRequested[i] = timeRequested;
+		chunk._states[i] = PENDING;
+		IDS.setRelease(chunk._ids, i, id);
+		return slot;
+	}
+
+	// Both Users are done with the slot (or it never got to them). Also drops the references to
+	// the Users, the slot mustn't keep them alive.
+	void free(int slot) {
+		Chunk chunk = chunkOf(slot);
+		int i = indexOf(slot);
+		IDS.setRelease(chunk._ids, i, 0L);
+		chunk._from[i] = null;
+		chunk._to[i] = null;
+		chunk._handles[i] = null;
+		chunk._states[i] = FREE;
+		_stripes[slot & STRIPE_MASK].free(slot);
+	}
+
+	// The handle registered with the slot, made if it has none. The caller owns the payment's payer,
+	// or is the one requesting it. Null if the slot no longer holds a pending payment with this id.
+	Payment register(int slot, long id) {
+		Chunk chunk = chunkOf(slot);
+		int i = indexOf(slot);
+		if (!holds(slot, id) || (chunk._states[i] != PENDING && chunk._states[i] != RESERVED)) {
+			return null;
+		}
+		Payment handle = chunk._handles[i];
+		if (handle == null) {
+			handle = new Payment(this, slot, id);
+			chunk._handles[i] = handle;
+		}
+		return handle;
+	}
+
+	// an unregistered handle carrying a copy of the slot's fields, null if it no longer holds this id
+	Payment view(int slot, long id) {
+		Chunk chunk = chunkOf(slot);
+		int i = indexOf(slot);
+		long amount = chunk._amounts[i];
+		User from = chunk._from[i];
+		User to = chunk._to[i];
+		long timeRequested = chunk._timesRequested[i];
+		if (!holds(slot, id)) {
+			return null;
+		}
+		return new Payment(this, slot, id, amount, from, to, timeRequested);
+	}
+
+	// The payment has been fulfilled (at time) or cancelled, by the payer's owner: record it in
+	// payment and the slot's registered handle. The slot stays until free().
+	void complete(Payment payment, byte state, long time) {
+		Chunk chunk = chunkOf(payment._slot);
+		int i = indexOf(payment._slot);
+		if (chunk._handles[i] != payment) {
+			payment.record(chunk._amounts[i], chunk._from[i], chunk._to[i], chunk._timesRequested[i], state, time);
+		}
+		complete(payment._slot, state, time);
+	}
+
+	// The same for a payment nobody has a Payment for but its registered handle, if any. Nothing
+	// is allocated: callers that need the fields read them from the slot before freeing it.
+	void complete(int slot, byte state, long time) {
+		Chunk chunk = chunkOf(slot);
+		int i = indexOf(slot);
+		chunk._states[i] = state;
+		Payment handle = chunk._handles[i];
+		if (handle != null) {
+			handle.record(chunk._amounts[i], chunk._from[i], chunk._to[i], chunk._timesRequested[i], state, time);
+			chunk._handles[i] = null;
+		}
+	}
+
+	// Whether the slot still holds this payment. Called after reading any of its other fields, and
+	// only then can they be trusted.
+	boolean holds(int slot, long id) {
+		VarHandle.loadLoadFence();
+		return (long) IDS.getAcquire(chunkOf(slot)._ids, indexOf(slot)) == id;
+	}
+
+	long id(int slot) {
+		return chunkOf(slot)._ids[indexOf(slot)];
+	}
+
+	long amount(int slot) {
+		return chunkOf(slot)._amounts[indexOf(slot)];
+	}
+
+	User from(int slot) {
+		return chunkOf(slot)._from[indexOf(slot)];
+	}
+
+	User to(int slot) {
+		return chunkOf(slot)._to[indexOf(slot)];
+	}
+
+	long timeRequested(int slot) {
+		return chunkOf(slot)._timesRequested[indexOf(slot)];
+	}
+
+	byte state(int slot) {
+		return chunkOf(slot)._states[indexOf(slot)];
+	}
+
+	// PENDING or RESERVED, by the payer's owner
+	void setState(int slot, byte state) {
+		chunkOf(slot)._states[indexOf(slot)] = state;
+	}
+
+	// links of a User's list of unfulfilled payments in direction, NONE at either end
+	int previous(int slot, Direction direction) {
+		return chunkOf(slot)._links[indexOf(slot) * 4 + direction._val * 2];
+	}
+
+	int next(int slot, Direction direction) {
+		return chunkOf(slot)._links[indexOf(slot) * 4 + direction._val * 2 + 1];
+	}
+
+	void setPrevious(int slot, Direction direction, int previous) {
+		chunkOf(slot)._links[indexOf(slot) * 4 + direction._val * 2] = previous;
+	}
+
+	void setNext(int slot, Direction direction, int next) {
+		chunkOf(slot)._links[indexOf(slot) * 4 + direction._val * 2 + 1] = next;
+	}
+
+	private Chunk chunkOf(int slot) {
+		return _stripes[slot & STRIPE_MASK]._chunks[slot >>> (STRIPE_BITS + CHUNK_BITS)];
+	}
+
+	private static int indexOf(int slot) {
+		return (slot >>> STRIPE_BITS) & CHUNK_MASK;
+	}
+
+
+	private static final class Stripe {
+		private final int _index;
+		private volatile Chunk[] _chunks = new Chunk[0];	// replaced (under this) when one is added
+		private int _used = 0;	// slots ever handed out, guarded by this
+		private int _free = NONE;	// free slots, linked through their first link, guarded by this
+
+		Stripe(int index) {
+			_index = index;
+		}
+
+		synchronized int allocate() {
+			if (_free != NONE) {
+				int slot = _free;
+				_free = _chunks[slot >>> (STRIPE_BITS + CHUNK_BITS)]._links[indexOf(slot) * 4];
+				return slot;
+			}
+			if ((_used >>> CHUNK_BITS) == _chunks.length) {
+				if (_used == (Integer.MAX_VALUE >>> STRIPE_BITS) + 1) {
+					throw new RuntimeException("too many unfulfilled payments");
+				}
+				Chunk[] chunks = new Chunk[_chunks.length + 1];
+				System.arraycopy(_chunks, 0, chunks, 0, _chunks.length);
+				chunks[_chunks.length] = new Chunk();
+				_chunks = chunks;
+			}
+			return (_used++ << STRIPE_BITS) | _index;
+		}
+
+		synchronized void free(int slot) {
+			_chunks[slot >>> (STRIPE_BITS + CHUNK_BITS)]._links[indexOf(slot) * 4] = _free;
+			_free = slot;
+		}
+	}
+
+	private static final class Chunk {
+		final long[] _ids = new long[1 << CHUNK_BITS];	// 0 while free
+		final long[] _amounts = new long[1 << CHUNK_BITS];	// minor units
+		final User[] _from = new User[1 << CHUNK_BITS];
+		final User[] _to = new User[1 << CHUNK_BITS];
+		final long[] _timesRequested = new long[1 << CHUNK_BITS];	// millis since epoch
+		final byte[] _states = new byte[1 << CHUNK_BITS];
+		final int[] _links = new int[4 << CHUNK_BITS];	// per slot: previous and next OUT, previous and next IN
+		final Payment[] _handles = new Payment[1 << CHUNK_BITS];	// null unless one is registered
+	}
+}
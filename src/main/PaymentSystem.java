@@ -5,115 +5,1733 @@
 
 package main;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 
 public class PaymentSystem {
 	
+	// upper bound on the User locks a batch holds at once
+	private static final int MAX_USERS_LOCKED_PER_CHUNK = 32;
+	
+	// all Users, so callers can work in terms of account numbers
+	private final AccountRegistry _accounts = new AccountRegistry();
+	
+	// their balances and unfulfilled sums, off heap
+	private final AccountStore _store = new AccountStore(AccountStore.DEFAULT_CHUNK_ROWS);
+	
+	// all unfulfilled payments, in slots rather than Payment objects (see PaymentStore)
+	private final PaymentStore _payments = new PaymentStore();
+	
+	// their slots by payment id, so callers can work in terms of payment ids
+	private final PendingIndex _pending = new PendingIndex();
+	
+	// null when Users are locked by the calling threads (the default), otherwise every change to a 
+	// User runs on the partition thread that owns it
+	private final PartitionedEngine _engine;
+	
+	// fulfilled payments each User keeps per direction
+	private final int _historyCapacity;
+	
+	// account numbers of the hot accounts, sorted (see PaymentSystemConfig.setHotAccounts)
+	private final int[] _hotAccounts;
+	
+	// null if changes aren't journaled. Only assigned once the existing journal has been replayed.
+	private Journal _journal;
+	
+	// null unless PaymentSystemConfig enables metrics
+	private final Metrics _metrics;
+	
+	// null unless PaymentSystemConfig sets a payment TTL
+	private final PaymentExpiry _expiry;
+	
+	// null unless PaymentSystemConfig sets an idempotency window
+	private final IdempotencyCache _idempotency;
+	
+	// Payment events for subscribers: null until the first subscribe(), see EventRing. Each change 
+	// publishes its event in the payer's half, holding the payer (or on its partition), so a 
+	// payment's events are published in order.
+	private volatile EventRing _events;
+	private final List<Subscription> _subscriptions = new ArrayList<Subscription>();	// guarded by itself
+	private final int _eventRingCapacity;
+	private final int _eventBatchSize;
+	private final Path _eventSpillDirectory;
+	
+	// runs the async API's calls with the locking engine (null with the partitioned engine, which is 
+	// asynchronous already), see newAsyncExecutor
+	private final ExecutorService _asyncExecutor;
+	
+	// fulfillOut() result when the payer's balance is too low
+	static final long INSUFFICIENT_BALANCE = -1;
+	
+	// Payment ids, in request order, _paymentIdStride apart
+	private final AtomicLong _nextPaymentId;
+	private final int _paymentIdStride;
+	
+	// Odd while writeSnapshot() or audit() is running: the cut it is taking, see beginChange(). Changed under 
+	// the _accounts monitor, with _snapshotLock held. (Those are only held briefly, and not by 
+	// payments, so they stay monitors.)
+	private volatile int _cutEpoch = 0;
+	private final Object _snapshotLock = new Object();
+	
+	// the money added with the Users so far (minor units), which their balances always add up to, 
+	// see audit(). Changed under the _accounts monitor.
+	private long _deposited = 0;
+	
+	public PaymentSystem() {
+		this(new PaymentSystemConfig());
+	}
+	
+	public PaymentSystem(PaymentSystemConfig config) {
+		if (config == null) {
+			throw new RuntimeException("null input to PaymentSystem constructor");
+		}
+		_historyCapacity = config.getPaymentHistoryCapacity();
+		_hotAccounts = config.getHotAccounts();
+		if (_hotAccounts.length > 0 && (config.getPartitions() > 0 || config.getSnapshotPath() != null)) {
+			throw new RuntimeException("hot accounts are not supported with partitions or snapshots");
+		}
+		_nextPaymentId = new AtomicLong(config.getFirstPaymentId());
+		_paymentIdStride = config.getPaymentIdStride();
+		_eventRingCapacity = config.getEventRingCapacity();
+		_eventBatchSize = config.getEventBatchSize();
+		_eventSpillDirectory = config.getEventSpillDirectory();
+		_idempotency = config.getIdempotencyWindowMillis() > 0 
+				? new IdempotencyCache(config.getIdempotencyWindowMillis(), config.getIdempotencyCacheCapacity()) : null;
+		if (config.isMetricsEnabled()) {
+			_metrics = new Metrics(_store, _pending);
+			if (config.getMetricsDumpSeconds() > 0) {
+				_metrics.startDump(config.getMetricsDumpSeconds());
+			}
+		} else {
+			_metrics = null;
+		}
+		Journal.Position journalStart = Journal.Position.START;
+		if (config.getSnapshotPath() != null && Files.exists(config.getSnapshotPath())) {
+			try {
+				Snapshot snapshot = Snapshot.load(config.getSnapshotPath(), _accounts, _store, _payments, _pending, 
+						_historyCapacity);
+				_nextPaymentId.set(snapshot._nextPaymentId);
+				journalStart = snapshot._journalPosition;
+				_accounts.forEach(new Consumer<User>() {
+					public void accept(User user) {
+						_deposited = Money.add(_deposited, user.getBalanceMinorUnits());
+					}
+				});
+			} catch (IOException e) {
+				throw new RuntimeException("failed to load snapshot " + config.getSnapshotPath(), e);
+			}
+		}
+		if (config.getJournalPath() != null) {
+			openJournal(config, journalStart);
+		}
+		if (config.getPaymentTtlMillis() > 0) {
+			_expiry = new PaymentExpiry(this, config.getPaymentTtlMillis(), config.getPaymentExpiryTickMillis(), 
+					config.getPaymentExpiryBatchSize());
+			scheduleRestoredPayments();
+		} else {
+			_expiry = null;
+		}
+		if (config.getPartitions() > 0) {
+			_engine = new PartitionedEngine(this, config.getPartitions(), config.getPartitionQueueCapacity());
+			_asyncExecutor = null;
+		} else {
+			_engine = null;
+			_asyncExecutor = newAsyncExecutor();
+		}
+		if (_expiry != null) {
+			_expiry.start();
+		}
+	}
+	
+	// stop any threads owned by the system and close the journal, it can't be used afterwards
+	public void shutdown() {
+		if (_expiry != null) {
+			_expiry.stop();
+		}
+		if (_metrics != null) {
+			_metrics.stopDump();
+		}
+		if (_engine != null) {
+			_engine.shutdown();
+		}
+		if (_asyncExecutor != null) {
+			_asyncExecutor.shutdown();
+			final RuntimeException shutDown = new RuntimeException("payment system shut down");
+			_accounts.forEach(new Consumer<User>() {
+				public void accept(User user) {
+					ParkedPayments parked = user._parked;
+					if (parked != null) {
+						parked.failAll(shutDown);
+					}
+				}
+			});
+		}
+		synchronized (_subscriptions) {
+			for (Subscription subscription : _subscriptions) {
+				subscription.close();
+			}
+		}
+		if (_journal != null) {
+			_journal.close();
+		}
+	}
 	
 	public User addUser(int accountNumber, BigDecimal balance) {
-		// future enhancements: maintain a structure with all users, verify uniqueness of account number
-		return new User(accountNumber, balance);
+		if (balance == null) {
+			throw new RuntimeException("null input to addUser() method");
+		}
+		return addUser(accountNumber, Money.toMinorUnits(balance));
+	}
+	
+	// balance in minor units, see Money
+	public User addUser(int accountNumber, long balance) {
+		User user;
+		// The User has to be in the journal before anyone can find it and journal a payment of theirs.
+		// Adding it under the _accounts monitor also puts it clearly on one side of a snapshot's cut: 
+		// either the snapshot will find it, or it is marked as already imaged (with nothing to write).
+		long seq = 0;
+		synchronized (_accounts) {
+			if (_accounts.get(accountNumber) != null) {
+				throw new RuntimeException("account number already in use: " + accountNumber);
+			}
+			if (_journal != null) {
+				seq = _journal.appendAddUser(accountNumber, balance);
+			}
+			user = new User(accountNumber, balance, _historyCapacity, _store, isHotAccount(accountNumber));
+			user._journalSeq = seq;
+			user._imageEpoch = _cutEpoch;
+			_accounts.add(user);
+			_deposited = Money.add(_deposited, balance);
+		}
+		awaitJournal(seq);
+		return user;
+	}
+	
+	private boolean isHotAccount(int accountNumber) {
+		return _hotAccounts.length > 0 && Arrays.binarySearch(_hotAccounts, accountNumber) >= 0;
+	}
+	
+	// Have listener called with every payment REQUESTED, FULFILLED, FAILED (fulfill found the 
+	// balance too low) or CANCELLED from now on, in batches on a thread of the subscription's own, 
+	// until it is closed (or the system shut down). Events are published into a preallocated ring 
+	// buffer (PaymentSystemConfig.setEventRingCapacity) that each subscription reads at its own 
+	// pace; policy says what happens once a subscription is a whole ring behind. With BLOCK, a 
+	// listener mustn't wait on requests or fulfillments of its own. Journal replay and snapshot 
+	// loading publish nothing.
+	public Subscription subscribe(PaymentEventListener listener, BackpressurePolicy policy) {
+		if (listener == null || policy == null) {
+			throw new RuntimeException("null input to subscribe() method");
+		}
+		synchronized (_subscriptions) {
+			if (_events == null) {
+				_events = new EventRing(_eventRingCapacity);
+			}
+			Subscription subscription = new Subscription(_events, listener, policy, _eventBatchSize, 
+					_eventSpillDirectory, "payment-events-" + _subscriptions.size());
+			subscription.start();
+			_subscriptions.add(subscription);
+			return subscription;
+		}
+	}
+	
+	// null unless metrics were enabled in the PaymentSystemConfig
+	public Metrics getMetrics() {
+		return _metrics;
+	}
+	
+	// Times the expiry thread failed to cancel what was due (e.g. the journal threw), leaving those
+	// payments pending; 0 if payments don't expire. Also counted in Metrics when enabled.
+	public long getExpiryFailures() {
+		return _expiry == null ? 0 : _expiry.getFailures();
+	}
+	
+	// what the last of those threw, null if none
+	public Throwable getLastExpiryFailure() {
+		return _expiry == null ? null : _expiry.getLastFailure();
+	}
+	
+	// return null if there is no User with this account number
+	public User getUser(int accountNumber) {
+		return _accounts.get(accountNumber);
+	}
+	
+	public int getUserCount() {
+		return _accounts.size();
+	}
+	
+	public Payment requestPayment(BigDecimal amount, int fromAcct, int toAcct) {
+		return requestPayment(amount, lookupUser(fromAcct), lookupUser(toAcct));
+	}
+	
+	// amount in minor units, see Money
+	public Payment requestPayment(long amount, int fromAcct, int toAcct) {
+		return requestPayment(amount, lookupUser(fromAcct), lookupUser(toAcct));
+	}
+	
+	public BigDecimal getBalance(int accountNumber) {
+		return lookupUser(accountNumber).getBalance();
+	}
+	
+	public BigDecimal getUnfulfilledAmt(int accountNumber, Direction direction) {
+		return getUnfulfilledAmt(lookupUser(accountNumber), direction);
+	}
+	
+	public Collection<Payment> getRecentPayments(int accountNumber, Direction direction) {
+		return getRecentPayments(lookupUser(accountNumber), direction);
+	}
+	
+	public Collection<Payment> getRecentPayments(int accountNumber, Direction direction, Date startingWith) {
+		return getRecentPayments(lookupUser(accountNumber), direction, startingWith);
 	}
 	
 	public Payment requestPayment(BigDecimal amount, User from, User to) {
-		if (amount == null || from == null || to == null) {
+		if (amount == null) {
 			throw new RuntimeException("null input to requestPayment() method");
 		}
+		return requestPayment(Money.toMinorUnits(amount), from, to);
+	}
+	
+	// amount in minor units, see Money
+	public Payment requestPayment(long amount, User from, User to) {
+		return request(amount, from, to, true);
+	}
+	
+	// For clients that retry: a call repeating the idempotencyKey of a call made within the window 
+	// (PaymentSystemConfig.setIdempotencyWindowMillis) doesn't request another payment, it returns 
+	// the Payment the first call returned (once that call is over, if it is still running). A key 
+	// repeated with other arguments, or first used for fulfill, throws. If the first call threw, 
+	// the key can be used again. Keys are not journaled, a restart forgets them.
+	public Payment requestPayment(long amount, User from, User to, long idempotencyKey) {
+		IdempotencyCache.Entry entry = beginIdempotent(idempotencyKey);
+		if (entry != null) {
+			Payment payment = entry._payment;
+			if (entry._state != IdempotencyCache.REQUESTED || payment.getAmountMinorUnits() != amount 
+					|| payment.from() != from || payment.to() != to) {
+				throw new RuntimeException("idempotency key already used for another call: " + idempotencyKey);
+			}
+			return payment;
+		}
+		Payment payment = null;
+		try {
+			payment = requestPayment(amount, from, to);
+		} finally {
+			if (payment != null) {
+				_idempotency.complete(idempotencyKey, IdempotencyCache.REQUESTED, payment);
+			} else {
+				_idempotency.fail(idempotencyKey);
+			}
+		}
+		return payment;
+	}
+	
+	public Payment requestPayment(long amount, int fromAcct, int toAcct, long idempotencyKey) {
+		return requestPayment(amount, lookupUser(fromAcct), lookupUser(toAcct), idempotencyKey);
+	}
+	
+	// For callers that only want the id (PaymentServer, ClusterNode): no Payment is kept for the 
+	// payment while it is unfulfilled, only its slot.
+	long requestPaymentId(long amount, int fromAcct, int toAcct) {
+		return request(amount, lookupUser(fromAcct), lookupUser(toAcct), false).getId();
+	}
+	
+	// registered: the Payment returned is a handle that stays usable however the payment ends 
+	// (see PaymentStore), rather than a view only the caller uses
+	private Payment request(long amount, User from, User to, boolean registered) {
+		if (_metrics == null) {
+			return requestNow(amount, from, to, registered);
+		}
+		long start = System.nanoTime();
+		Payment payment = null;
+		try {
+			payment = requestNow(amount, from, to, registered);
+			return payment;
+		} finally {
+			_metrics.recordCall(Metrics.Operation.REQUEST, payment != null, start);
+		}
+	}
+	
+	private Payment requestNow(long amount, User from, User to, boolean registered) {
+		Payment payment = newPayment(amount, from, to, registered);
+		if (_engine != null) {
+			await(_engine.requestPayment(payment));
+			awaitJournalCaughtUp();
+			return payment;
+		}
 		
-		int fromAcct = from.getAccountNumber();
-		int toAcct = to.getAccountNumber();
-		if (fromAcct == toAcct) { 
-			throw new RuntimeException("cannot request payment for oneself: acct id = " + from.getAccountNumber()); 
+		// lock Users in specific order to avoid deadlock
+		User[] userOrder = getLockOrder(payment.from(), payment.to());
+		
+		long seq;
+		long lockStart = lockWaitStart();
+		userOrder[0]._lock.lock();
+		userOrder[1]._lock.lock();
+		try {
+			lockWaitEnd(lockStart);
+			beginChange(payment.from(), payment.to());
+			seq = requestOut(payment);
+			requestIn(payment, seq);
+		} finally {
+			userOrder[1]._lock.unlock();
+			userOrder[0]._lock.unlock();
+		}
+		awaitJournal(seq);
+		return payment;
+	}
+	
+	// throws if there is no unfulfilled payment with this id (it may have been fulfilled or cancelled)
+	public boolean fulfill(long paymentId) {
+		return fulfill(lookupPending(paymentId));
+	}
+	
+	// Return the unfulfilled payment with this id, null if there isn't one. The handle is registered 
+	// with the payment's slot by whoever owns its Users, so this can't miss it being completed.
+	public Payment getPayment(long paymentId) {
+		final Payment view = pendingView(paymentId);
+		if (view == null) {
+			return null;
+		}
+		if (_engine != null) {
+			return await(_engine.call(view.from(), new Callable<Payment>() {
+				public Payment call() {
+					return _payments.register(view._slot, view.getId());
+				}
+			}));
+		}
+		User[] userOrder = getLockOrder(view.from(), view.to());
+		userOrder[0]._lock.lock();
+		userOrder[1]._lock.lock();
+		try {
+			return _payments.register(view._slot, view.getId());
+		} finally {
+			userOrder[1]._lock.unlock();
+			userOrder[0]._lock.unlock();
+		}
+	}
+	
+	// Withdraw an unfulfilled payment: nothing is paid and it no longer counts towards either 
+	// User's unfulfilled sums. Return false if there is no unfulfilled payment with this id (by the 
+	// time its Users were locked).
+	public boolean cancel(long paymentId) {
+		if (_metrics == null) {
+			return cancelNow(paymentId);
+		}
+		long start = System.nanoTime();
+		boolean cancelled = false;
+		try {
+			cancelled = cancelNow(paymentId);
+			return cancelled;
+		} finally {
+			_metrics.recordCall(Metrics.Operation.CANCEL, cancelled, start);
+		}
+	}
+	
+	private boolean cancelNow(long paymentId) {
+		Payment payment = pendingView(paymentId);
+		if (payment == null) {
+			return false;
+		}
+		if (_engine != null) {
+			if (!await(_engine.cancel(payment))) {
+				return false;
+			}
+			awaitJournalCaughtUp();
+			return true;
 		}
-		Payment payment = new Payment(amount, from, to);
 		
 		// lock Users in specific order to avoid deadlock
 		User[] userOrder = getLockOrder(payment.from(), payment.to());
 		
-		synchronized (userOrder[0]) {
-			synchronized (userOrder[1]) {
-				from.addPayment(payment, Direction.OUT);
-				to.addPayment(payment, Direction.IN);
+		long seq;
+		long lockStart = lockWaitStart();
+		userOrder[0]._lock.lock();
+		userOrder[1]._lock.lock();
+		try {
+			lockWaitEnd(lockStart);
+			if (!payment.isPending()) {
+				return false;
 			}
+			beginChange(payment.from(), payment.to());
+			seq = cancelOut(payment);
+			cancelIn(payment, seq);
+		} finally {
+			userOrder[1]._lock.unlock();
+			userOrder[0]._lock.unlock();
 		}
-		return payment;
+		awaitJournal(seq);
+		return true;
 	}
 	
-	public boolean fulfill(Payment payment) {
+	// For clients that retry, as requestPayment with an idempotency key: a call repeating the key 
+	// of a fulfill of the same payment made within the window returns what that call returned, 
+	// rather than throwing because the payment has been fulfilled.
+	public boolean fulfill(Payment payment, long idempotencyKey) {
 		if (payment == null) {
-			throw new RuntimeException("invalid parameter, payment=null");
+			throw new RuntimeException("null input to fulfill() method");
 		}
-		if (payment.isFulfilled()) {
-			throw new RuntimeException("payment already fulfilled ");
+		return fulfillIdempotent(payment.getId(), payment, idempotencyKey);
+	}
+	
+	public boolean fulfill(long paymentId, long idempotencyKey) {
+		return fulfillIdempotent(paymentId, null, idempotencyKey);
+	}
+	
+	// payment null: look up the unfulfilled payment with this id, unless the key is a repeat
+	private boolean fulfillIdempotent(long paymentId, Payment payment, long idempotencyKey) {
+		IdempotencyCache.Entry entry = beginIdempotent(idempotencyKey);
+		if (entry != null) {
+			if ((entry._state != IdempotencyCache.FULFILLED && entry._state != IdempotencyCache.NOT_FULFILLED) 
+					|| entry._payment.getId() != paymentId) {
+				throw new RuntimeException("idempotency key already used for another call: " + idempotencyKey);
+			}
+			return entry._state == IdempotencyCache.FULFILLED;
+		}
+		boolean done = false;
+		try {
+			if (payment == null) {
+				payment = lookupPending(paymentId);
+			}
+			boolean fulfilled = fulfill(payment);
+			_idempotency.complete(idempotencyKey, fulfilled ? IdempotencyCache.FULFILLED : IdempotencyCache.NOT_FULFILLED, 
+					payment);
+			done = true;
+			return fulfilled;
+		} finally {
+			if (!done) {
+				_idempotency.fail(idempotencyKey);
+			}
+		}
+	}
+	
+	// null if the key is new (the caller must complete or fail it), or the earlier call's outcome
+	private IdempotencyCache.Entry beginIdempotent(long idempotencyKey) {
+		if (_idempotency == null) {
+			throw new RuntimeException("idempotency keys are off, see PaymentSystemConfig.setIdempotencyWindowMillis");
+		}
+		return _idempotency.begin(idempotencyKey, System.currentTimeMillis());
+	}
+	
+	// Slow calls are also recorded as JFR events (SlowFulfillmentEvent) whenever a flight recording 
+	// has them enabled, with or without metrics.
+	public boolean fulfill(Payment payment) {
+		SlowFulfillmentEvent event = new SlowFulfillmentEvent();
+		event.begin();
+		long start = _metrics == null ? 0 : System.nanoTime();
+		boolean fulfilled = false;
+		try {
+			fulfilled = fulfillNow(payment);
+			return fulfilled;
+		} finally {
+			if (_metrics != null) {
+				_metrics.recordCall(Metrics.Operation.FULFILL, fulfilled, start);
+			}
+			event.end();
+			if (event.shouldCommit() && payment != null) {
+				event.paymentId = payment.getId();
+				event.fromAccount = payment.from().getAccountNumber();
+				event.toAccount = payment.to().getAccountNumber();
+				event.amount = payment.getAmountMinorUnits();
+				event.fulfilled = fulfilled;
+				event.commit();
+			}
+		}
+	}
+	
+	private boolean fulfillNow(Payment payment) {
+		checkFulfillable(payment);
+		if (_engine != null) {
+			if (!await(_engine.fulfill(payment))) {
+				return false;
+			}
+			awaitJournalCaughtUp();
+			return true;
 		}
 		
 		// lock Users in specific order to avoid deadlock
 		User[] userOrder = getLockOrder(payment.from(), payment.to());
 		
-		synchronized (userOrder[0]) {
-			synchronized (userOrder[1]) {
-				if (!payment.from().fulfillPayment(payment)) {
-					return false;
-				}
-				payment.to().markFulfilledIncoming(payment);
+		long seq;
+		long lockStart = lockWaitStart();
+		userOrder[0]._lock.lock();
+		userOrder[1]._lock.lock();
+		try {
+			lockWaitEnd(lockStart);
+			// someone else may have fulfilled or cancelled it since the check above
+			checkFulfillable(payment);
+			long now = System.currentTimeMillis();
+			beginChange(payment.from(), payment.to());
+			seq = fulfillOut(payment, now);
+			if (seq == INSUFFICIENT_BALANCE) {
+				return false;
 			}
+			fulfillIn(payment, now, seq);
+		} finally {
+			userOrder[1]._lock.unlock();
+			userOrder[0]._lock.unlock();
 		}
-
+		awaitJournal(seq);
+		credited(payment.to());
 		return true;
 	}
 	
+	// With the partitioned engine the future completes once both Users have been updated by their 
+	// partitions (with a journal, that can be before the change is durable). Otherwise the request 
+	// runs as requestPayment() on a task of its own (a virtual thread where the JVM has them), so the
+	// caller never blocks on User locks or the journal. Invalid input throws here rather than 
+	// through the future.
+	public CompletableFuture<Payment> requestPaymentAsync(final long amount, final User from, final User to) {
+		if (_engine != null) {
+			return _engine.requestPayment(newPayment(amount, from, to, true));
+		}
+		checkPayable(amount, from, to);
+		return CompletableFuture.supplyAsync(new Supplier<Payment>() {
+			public Payment get() {
+				return requestPayment(amount, from, to);
+			}
+		}, _asyncExecutor);
+	}
+	
+	// see requestPaymentAsync, completes with what fulfill() would have returned (or thrown)
+	public CompletableFuture<Boolean> fulfillAsync(final Payment payment) {
+		checkFulfillable(payment);
+		if (_engine != null) {
+			return _engine.fulfill(payment);
+		}
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+			public Boolean get() {
+				return fulfill(payment);
+			}
+		}, _asyncExecutor);
+	}
+	
+	// Instead of fulfill() returning false when the payer's balance is too low (for the caller to 
+	// retry), park the payment with the payer: it is fulfilled as soon as payments into the payer 
+	// bring its balance up to it, without the caller retrying. The payer's parked payments are 
+	// fulfilled in the order they were parked, and one is only tried once those parked before it 
+	// have been (a payment parks behind them even if the balance would cover it now). The future 
+	// completes with true once it is fulfilled (by this, by a drain or by anything else), or with 
+	// false if it is cancelled (or expires) first. Only a credit to a payer with parked payments 
+	// does any of this work (see credited). Parked payments aren't journaled: after a restart they 
+	// are ordinary unfulfilled payments. Not available with the partitioned engine or for payments 
+	// from hot accounts.
+	public CompletableFuture<Boolean> fulfillWhenFunded(Payment payment) {
+		checkFulfillable(payment);
+		if (_engine != null) {
+			throw new RuntimeException("parking payments is not supported with the partitioned engine");
+		}
+		if (payment.from().isHot()) {
+			throw new RuntimeException("payments from hot accounts can't be parked: " + payment.from().getAccountNumber());
+		}
+		User[] userOrder = getLockOrder(payment.from(), payment.to());
+		long seq = INSUFFICIENT_BALANCE;
+		ParkedPayments parked;
+		CompletableFuture<Boolean> result;
+		long lockStart = lockWaitStart();
+		userOrder[0]._lock.lock();
+		userOrder[1]._lock.lock();
+		try {
+			lockWaitEnd(lockStart);
+			checkFulfillable(payment);
+			parked = payment.from()._parked;
+			if (parked == null) {
+				parked = new ParkedPayments();
+				payment.from()._parked = parked;
+			}
+			if (parked.isEmpty()) {
+				long now = System.currentTimeMillis();
+				beginChange(payment.from(), payment.to());
+				seq = fulfillOut(payment, now);
+				if (seq != INSUFFICIENT_BALANCE) {
+					fulfillIn(payment, now, seq);
+				}
+			}
+			// parked while the payer is still locked, so a credit to it after this will drain it
+			result = seq == INSUFFICIENT_BALANCE ? parked.add(payment) : null;
+		} finally {
+			userOrder[1]._lock.unlock();
+			userOrder[0]._lock.unlock();
+		}
+		if (result != null) {
+			if (_asyncExecutor.isShutdown()) {
+				// shut down meanwhile: shutdown() may have failed the payer's parked payments before
+				// this one was added, and nothing will drain it
+				parked.failAll(new RuntimeException("payment system shut down"));
+			}
+			return result;
+		}
+		awaitJournal(seq);
+		credited(payment.to());
+		return CompletableFuture.completedFuture(true);
+	}
+	
+	// throws if there is no unfulfilled payment with this id
+	public CompletableFuture<Boolean> fulfillWhenFunded(long paymentId) {
+		Payment payment = getPayment(paymentId);
+		if (payment == null) {
+			throw new RuntimeException("no unfulfilled payment with id " + paymentId);
+		}
+		return fulfillWhenFunded(payment);
+	}
+	
+	// Called once user's balance has gone up (with no locks held): if it has parked payments, drain 
+	// them on the async executor, unless a drain is already waiting to run. One read of a volatile 
+	// for the payers that have never parked anything.
+	void credited(User user) {
+		ParkedPayments parked = user._parked;
+		if (parked != null && !parked.isEmpty()) {
+			scheduleDrain(user, parked);
+		}
+	}
+	
+	// Payment has been fulfilled or cancelled (by anything: fulfill, cancel, expiry, a drain, a 
+	// ClusterNode), holding the payer's lock. Called once the payee's half is done too (from 
+	// fulfillIn and cancelIn, or by a ClusterNode whose payee is on another node), so whoever the 
+	// future wakes sees the payee credited as well as the payer debited. If it was parked its 
+	// future is completed, and if it was first in line the payment behind it gets its turn: that one may 
+	// have parked behind it with the balance already covering it, so it mustn't wait for a credit.
+	void endParked(Payment payment, boolean fulfilled) {
+		ParkedPayments parked = payment.from()._parked;
+		if (parked != null && !parked.isEmpty() && parked.ended(payment.getId(), fulfilled, _asyncExecutor)) {
+			scheduleDrain(payment.from(), parked);
+		}
+	}
+	
+	// only hands the drain to the async executor, so callers may hold locks
+	private void scheduleDrain(User user, ParkedPayments parked) {
+		if (parked.scheduleDrain()) {
+			final User payer = user;
+			try {
+				_asyncExecutor.execute(new Runnable() {
+					public void run() {
+						drainParked(payer);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// shut down, its parked payments have been failed
+			}
+		}
+	}
+	
+	// Fulfill payer's parked payments in order for as long as its balance covers the first of them. 
+	// Each is fulfilled as fulfill() would, and its payee is credited in turn. The first one that 
+	// the balance doesn't cover waits for the next credit.
+	private void drainParked(User payer) {
+		ParkedPayments parked = payer._parked;
+		parked.drainStarted();
+		try {
+			while (true) {
+				Payment payment = parked.first();
+				if (payment == null) {
+					return;
+				}
+				User[] userOrder = getLockOrder(payment.from(), payment.to());
+				long seq;
+				userOrder[0]._lock.lock();
+				userOrder[1]._lock.lock();
+				try {
+					// fulfilled or cancelled meanwhile (and so no longer parked), start again with the new first
+					if (parked.first() != payment) {
+						continue;
+					}
+					long now = System.currentTimeMillis();
+					beginChange(payment.from(), payment.to());
+					seq = fulfillOut(payment, now);
+					if (seq == INSUFFICIENT_BALANCE) {
+						return;
+					}
+					fulfillIn(payment, now, seq);	// takes it out of parked
+				} finally {
+					userOrder[1]._lock.unlock();
+					userOrder[0]._lock.unlock();
+				}
+				awaitJournal(seq);
+				credited(payment.to());
+			}
+		} finally {
+			parked.drainEnded();
+		}
+	}
+	
+	// Reads never block (see getUnfulfilledMinorUnits), so this completes on the caller's thread: 
+	// handing it to another thread would only add latency.
+	public CompletableFuture<BigDecimal> getUnfulfilledAmtAsync(User user, Direction direction) {
+		return CompletableFuture.completedFuture(getUnfulfilledAmt(user, direction));
+	}
+	
+	// Request a whole batch of payments at once, returned in the same order as the requests. 
+	// The batch is validated before anything is applied, so an invalid item (unknown account, 
+	// payment to oneself) throws without any of the batch having been requested.
+	public List<Payment> requestPayments(List<PaymentRequest> requests) {
+		if (requests == null) {
+			throw new RuntimeException("null input to requestPayments() method");
+		}
+		long now = System.currentTimeMillis();
+		User[] payers = new User[requests.size()];
+		User[] payees = new User[requests.size()];
+		int i = 0;
+		for (PaymentRequest request : requests) {
+			if (request == null) {
+				throw new RuntimeException("null request in requestPayments() batch, index " + i);
+			}
+			if (request.getFromAccount() == request.getToAccount()) {
+				throw new RuntimeException("cannot request payment for oneself: acct id = " + request.getFromAccount());
+			}
+			checkAmount(request.getAmountMinorUnits());
+			payers[i] = lookupUser(request.getFromAccount());
+			payees[i] = lookupUser(request.getToAccount());
+			i++;
+		}
+		Payment[] payments = new Payment[payers.length];
+		i = 0;
+		for (PaymentRequest request : requests) {
+			long id = newPaymentId();
+			int slot = _payments.allocate(id, request.getAmountMinorUnits(), payers[i], payees[i], now);
+			payments[i] = _payments.register(slot, id);
+			i++;
+		}
+		
+		if (_engine != null) {
+			// partitions already apply payments in bulk, just keep them all busy at once
+			List<CompletableFuture<Payment>> results = new ArrayList<CompletableFuture<Payment>>(payments.length);
+			for (Payment payment : payments) {
+				results.add(_engine.requestPayment(payment));
+			}
+			for (CompletableFuture<Payment> result : results) {
+				await(result);
+			}
+			awaitJournalCaughtUp();
+		} else {
+			awaitJournal(applyBatch(payments, null, now));
+		}
+		if (_metrics != null) {
+			_metrics.recordBatch(Metrics.Operation.REQUEST, payments.length, payments.length);
+		}
+		return Arrays.asList(payments);
+	}
+	
+	// Fulfill a whole batch of payments at once. result[i] is what fulfill() would have returned for 
+	// the i'th payment in iteration order: false if the payer's balance was too low, or if the payment
+	// was already fulfilled or cancelled by the time the batch got to it (e.g. it is in the batch twice).
+	public boolean[] fulfillAll(Collection<Payment> payments) {
+		if (payments == null) {
+			throw new RuntimeException("invalid parameter, payments=null");
+		}
+		Payment[] batch = payments.toArray(new Payment[payments.size()]);
+		for (int i = 0; i < batch.length; i++) {
+			if (batch[i] == null) {
+				throw new RuntimeException("invalid parameter, payment=null at index " + i);
+			}
+		}
+		
+		boolean[] results = new boolean[batch.length];
+		if (_engine != null) {
+			List<CompletableFuture<Boolean>> pending = new ArrayList<CompletableFuture<Boolean>>(batch.length);
+			for (Payment payment : batch) {
+				pending.add(_engine.fulfill(payment));
+			}
+			for (int i = 0; i < batch.length; i++) {
+				try {
+					results[i] = await(pending.get(i));
+				} catch (RuntimeException e) {
+					results[i] = false;	// already fulfilled
+				}
+			}
+			awaitJournalCaughtUp();
+		} else {
+			awaitJournal(applyBatch(batch, results, System.currentTimeMillis()));
+			for (int i = 0; i < batch.length; i++) {
+				if (results[i]) {
+					credited(batch[i].to());
+				}
+			}
+		}
+		if (_metrics != null) {
+			int fulfilled = 0;
+			for (boolean result : results) {
+				fulfilled += result ? 1 : 0;
+			}
+			_metrics.recordBatch(Metrics.Operation.FULFILL, results.length, fulfilled);
+		}
+		return results;
+	}
+	
+	// Settle every unfulfilled payment at once, as if each was fulfilled, except that each account's 
+	// balance only changes by its net position (what it receives less what it pays). Payments in 
+	// chains and cycles settle this way even where the payers' balances couldn't cover them one at 
+	// a time. A payer whose balance can't cover its net position keeps its newest outgoing payments 
+	// unfulfilled until it can (see Netting), the rest are all fulfilled, atomically: every User is 
+	// locked for the duration, so nothing else changes any account meanwhile. Return how many payments were 
+	// fulfilled. Not available with the partitioned engine.
+	public int settleNetted() {
+		if (_engine != null) {
+			throw new RuntimeException("netting is not supported with the partitioned engine");
+		}
+		if (_hotAccounts.length > 0) {
+			throw new RuntimeException("netting is not supported with hot accounts");
+		}
+		long seq = 0;
+		int settled;
+		// holding the _accounts monitor keeps Users from being added meanwhile, and with them any 
+		// journal record that isn't part of the settlement
+		synchronized (_accounts) {
+			final List<User> list = new ArrayList<User>(_accounts.size());
+			_accounts.forEach(new Consumer<User>() {
+				public void accept(User user) {
+					list.add(user);
+				}
+			});
+			User[] users = list.toArray(new User[list.size()]);
+			Arrays.sort(users, new Comparator<User>() {
+				public int compare(User user1, User user2) {
+					return Integer.compare(user1.getAccountNumber(), user2.getAccountNumber());
+				}
+			});
+			
+			long lockStart = lockWaitStart();
+			int locked = 0;
+			try {
+				// in account number order, as getLockOrder and applyBatch do
+				while (locked < users.length) {
+					users[locked]._lock.lock();
+					locked++;
+				}
+				lockWaitEnd(lockStart);
+				long pendingOut = 0;
+				for (User user : users) {
+					beginChange(user);
+					pendingOut += user.getUnfulfilledCount(Direction.OUT);
+				}
+				Netting netting = new Netting(users, _payments);
+				netting.computePositions();
+				long[] paymentIds = new long[(int) pendingOut];
+				long now = System.currentTimeMillis();
+				settled = netting.settle(_pending, paymentIds, now, events());
+				for (User user : users) {
+					ParkedPayments parked = user._parked;
+					if (parked != null && !parked.isEmpty()) {
+						parked.endSettled(_asyncExecutor);
+					}
+				}
+				if (_journal != null && settled > 0) {
+					seq = _journal.appendSettlement(paymentIds, settled, now);
+					for (User user : users) {
+						user._journalSeq = seq;
+					}
+				}
+			} finally {
+				while (locked > 0) {
+					locked--;
+					users[locked]._lock.unlock();
+				}
+			}
+		}
+		awaitJournal(seq);
+		if (settled > 0) {
+			_accounts.forEach(new Consumer<User>() {
+				public void accept(User user) {
+					credited(user);
+				}
+			});
+		}
+		if (_metrics != null) {
+			_metrics.recordBatch(Metrics.Operation.FULFILL, settled, settled);
+		}
+		return settled;
+	}
+	
+	// Write every User's balance, unfulfilled sums and unfulfilled payments to path (replacing any 
+	// snapshot already there once the new one is complete), while payments carry on. A PaymentSystem 
+	// configured with this snapshot path and the same journal restarts from the snapshot and replays 
+	// only the part of the journal after it. Fulfilled payment history isn't kept in snapshots. 
+	// Not available with the partitioned engine.
+	public void writeSnapshot(Path path) {
+		if (path == null) {
+			throw new RuntimeException("null input to writeSnapshot() method");
+		}
+		if (_engine != null) {
+			throw new RuntimeException("snapshots are not supported with the partitioned engine");
+		}
+		if (_hotAccounts.length > 0) {
+			throw new RuntimeException("snapshots are not supported with hot accounts");
+		}
+		synchronized (_snapshotLock) {
+			try {
+				writeSnapshotLocked(path);
+			} catch (IOException e) {
+				throw new RuntimeException("failed to write snapshot " + path, e);
+			}
+		}
+	}
+	
+	// Check, while payments carry on, that the balances of all Users add up to the money they were 
+	// added with (none is created or lost), that no balance is negative, and that each User's 
+	// unfulfilled sums and counts match its unfulfilled payments and those of everyone paying it. 
+	// Everything is checked as of one cut, the same a snapshot takes, so no payment is half seen; 
+	// the accounts are then checked in parallel (see Auditor). Not available with the partitioned 
+	// engine.
+	public AuditReport audit() {
+		if (_engine != null) {
+			throw new RuntimeException("audits are not supported with the partitioned engine");
+		}
+		if (_hotAccounts.length > 0) {
+			throw new RuntimeException("audits are not supported with hot accounts");
+		}
+		synchronized (_snapshotLock) {
+			final List<AccountImage> images = new ArrayList<AccountImage>(_accounts.size());
+			long start = System.nanoTime();
+			Cut cut = takeCut(new Consumer<AccountImage>() {
+				public void accept(AccountImage image) {
+					images.add(image);
+				}
+			});
+			return new Auditor(images).audit(cut._deposited, System.nanoTime() - start);
+		}
+	}
+	
 	public BigDecimal getUnfulfilledAmt(User user, Direction direction) {
+		return Money.toBigDecimal(getUnfulfilledMinorUnits(user, direction));
+	}
+	
+	// never blocks: reads an optimistic snapshot instead of taking the User's lock
+	public long getUnfulfilledMinorUnits(User user, Direction direction) {
 		if (user == null || direction == null) {
 			throw new RuntimeException("invalid null input");
 		}
-		synchronized (user) {
-			return user.getSumUnfulfilled(direction);
+		return user.getSumUnfulfilledMinorUnits(direction);
+	}
+	
+	// balance and unfulfilled IN/OUT sums consistent with each other, never blocks
+	public AccountSnapshot getAccountSnapshot(User user) {
+		if (user == null) {
+			throw new RuntimeException("invalid null input");
 		}
+		return user.getSnapshot();
+	}
+	
+	public AccountSnapshot getAccountSnapshot(int accountNumber) {
+		return lookupUser(accountNumber).getSnapshot();
 	}
 	
 	
-	Collection<Payment> getRecentPayments(User user, Direction direction) {
+	// Never blocks: the history is an immutable snapshot published by each fulfill (see PaymentHistory),
+	// so this takes no lock and doesn't go through a partition, and what it returns doesn't change.
+	public Collection<Payment> getRecentPayments(User user, Direction direction) {
 		if (user == null || direction == null) {
 			throw new RuntimeException("invalid null input");
 		}
-		synchronized (user) {
-			return user.getRecentPayments(direction);
-		}
+		return user.getRecentPayments(direction);
 	}
 	
-	Collection<Payment> getRecentPayments(User user, Direction direction, Date startingWith) {
+	public Collection<Payment> getRecentPayments(User user, Direction direction, Date startingWith) {
 		if (user == null || direction == null || startingWith == null) {
 			throw new RuntimeException("invalid null input");
 		}
-		synchronized (user) {
-			return user.getRecentPayments(direction, startingWith);
+		return user.getRecentPayments(direction, startingWith);
+	}
+	
+	
+	// a slot for a new payment, not in either User's lists yet
+	Payment newPayment(long amount, User from, User to, boolean registered) {
+		checkPayable(amount, from, to);
+		long id = newPaymentId();
+		int slot = _payments.allocate(id, amount, from, to, System.currentTimeMillis());
+		return registered ? _payments.register(slot, id) : _payments.view(slot, id);
+	}
+	
+	private static void checkPayable(long amount, User from, User to) {
+		if (from == null || to == null) {
+			throw new RuntimeException("null input to requestPayment() method");
+		}
+		checkAmount(amount);
+		if (from.getAccountNumber() == to.getAccountNumber()) { 
+			throw new RuntimeException("cannot request payment for oneself: acct id = " + from.getAccountNumber()); 
+		}
+	}
+	
+	// a payment moves money from payer to payee, so it has to be for something
+	private static void checkAmount(long amount) {
+		if (amount <= 0) {
+			throw new RuntimeException("invalid payment amount: " + amount);
+		}
+	}
+	
+	// A virtual thread per task where the JVM has them (Java 21 on, looked up by reflection so this 
+	// still runs on older JVMs): tasks blocked on a User's lock or the journal then hold no platform 
+	// thread. Otherwise a pool that starts a daemon thread whenever no idle one is left, the nearest 
+	// thing to a thread per task.
+	private static ExecutorService newAsyncExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "payment-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	long newPaymentId() {
+		return _nextPaymentId.getAndAdd(_paymentIdStride);
+	}
+	
+	// all unfulfilled payments, for ClusterNode to add and remove the halves it keeps
+	PaymentStore getPayments() {
+		return _payments;
+	}
+	
+	PendingIndex getPendingIndex() {
+		return _pending;
+	}
+	
+	// a view (see PaymentStore) of the unfulfilled payment with this id, null if there isn't one
+	Payment pendingView(long paymentId) {
+		int slot = _pending.get(paymentId);
+		if (slot == PaymentStore.NONE) {
+			return null;
+		}
+		return _payments.view(slot, paymentId);
+	}
+	
+	static void checkFulfillable(Payment payment) {
+		if (payment == null) {
+			throw new RuntimeException("invalid parameter, payment=null");
+		}
+		byte state = payment.getState();
+		if (state == PaymentStore.FULFILLED) {
+			throw new RuntimeException("payment already fulfilled ");
+		}
+		if (state == PaymentStore.CANCELLED) {
+			throw new RuntimeException("payment cancelled: id = " + payment.getId());
+		}
+		if (state == PaymentStore.GONE) {
+			throw new RuntimeException("no unfulfilled payment with id " + payment.getId());
+		}
+	}
+	
+	// wait for a partition to finish, rethrowing its exception as is
+	private static <T> T await(CompletableFuture<T> result) {
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	private Payment lookupPending(long paymentId) {
+		Payment payment = pendingView(paymentId);
+		if (payment == null) {
+			throw new RuntimeException("no unfulfilled payment with id " + paymentId);
+		}
+		return payment;
+	}
+	
+	private User lookupUser(int accountNumber) {
+		User user = _accounts.get(accountNumber);
+		if (user == null) {
+			throw new RuntimeException("unknown account number: " + accountNumber);
+		}
+		return user;
+	}
+	
+	// The two halves of each change. The caller owns the User being changed: either it holds the 
+	// locks of both Users (taken in getLockOrder order), or it is the partition thread that owns
+	// the User. The payer's half journals the whole change, and returns its journal sequence number 
+	// (0 without a journal) for the payee's half and for the caller to awaitJournal() once it has 
+	// released the locks. The payee's half of a fulfillment or cancellation frees the payment's slot.
+	// A hot payee's half only changes its cells (see User), so it is done holding the payer alone, 
+	// and doesn't record its journal sequence number: only replay (single threaded) and snapshots 
+	// use that.
+	long requestOut(Payment payment) {
+		try {
+			payment.from().addPayment(payment, Direction.OUT);
+		} catch (RuntimeException e) {
+			_payments.free(payment._slot);	// it never got anywhere
+			throw e;
+		}
+		_pending.add(payment.getId(), payment._slot);
+		if (_expiry != null) {
+			_expiry.add(payment.getId(), payment.getTimeRequestedMillis());
+		}
+		EventRing events = events();
+		if (events != null) {
+			publish(events, PaymentEvent.Type.REQUESTED, payment, payment.getTimeRequestedMillis());
+		}
+		if (_journal == null) {
+			return 0;
+		}
+		long seq = _journal.appendRequest(payment.getId(), payment.from().getAccountNumber(), 
+				payment.to().getAccountNumber(), payment.getAmountMinorUnits(), payment.getTimeRequestedMillis());
+		payment.from()._journalSeq = seq;
+		return seq;
+	}
+	
+	// the EventRing while anyone is subscribed, null otherwise
+	private EventRing events() {
+		EventRing events = _events;
+		return events != null && events.hasSubscriptions() ? events : null;
+	}
+	
+	private static void publish(EventRing events, PaymentEvent.Type type, Payment payment, long time) {
+		events.publish(type, payment.getId(), payment.from().getAccountNumber(), payment.to().getAccountNumber(), 
+				payment.getAmountMinorUnits(), time);
+	}
+	
+	void requestIn(Payment payment, long seq) {
+		payment.to().addPayment(payment, Direction.IN);
+		if (!payment.to().isHot()) {
+			payment.to()._journalSeq = seq;
+		}
+	}
+	
+	// return INSUFFICIENT_BALANCE (having changed nothing) if the payer's balance is too low
+	long fulfillOut(Payment payment, long now) {
+		EventRing events = events();
+		if (!payment.from().fulfillPayment(payment, now)) {
+			if (events != null) {
+				publish(events, PaymentEvent.Type.FAILED, payment, now);
+			}
+			return INSUFFICIENT_BALANCE;
+		}
+		if (events != null) {
+			publish(events, PaymentEvent.Type.FULFILLED, payment, now);
+		}
+		_pending.remove(payment.getId());
+		if (_journal == null) {
+			return 0;
+		}
+		long seq = _journal.appendFulfill(payment.getId(), now);
+		payment.from()._journalSeq = seq;
+		return seq;
+	}
+	
+	void fulfillIn(Payment payment, long now, long seq) {
+		payment.to().markFulfilledIncoming(payment, now);
+		if (!payment.to().isHot()) {
+			payment.to()._journalSeq = seq;
+		}
+		endParked(payment, true);
+		_payments.free(payment._slot);
+	}
+	
+	long cancelOut(Payment payment) {
+		_payments.complete(payment, PaymentStore.CANCELLED, 0);
+		payment.from().removePayment(payment, Direction.OUT);
+		_pending.remove(payment.getId());
+		EventRing events = events();
+		if (events != null) {
+			publish(events, PaymentEvent.Type.CANCELLED, payment, System.currentTimeMillis());
+		}
+		if (_journal == null) {
+			return 0;
+		}
+		long seq = _journal.appendCancel(payment.getId());
+		payment.from()._journalSeq = seq;
+		return seq;
+	}
+	
+	void cancelIn(Payment payment, long seq) {
+		payment.to().removePayment(payment, Direction.IN);
+		if (!payment.to().isHot()) {
+			payment.to()._journalSeq = seq;
+		}
+		endParked(payment, false);
+		_payments.free(payment._slot);
+	}
+	
+	// Cancel those of the payments with these ids that are still pending, see PaymentExpiry: their 
+	// TTL has run out. Each is cancelled as cancel() would, locking its own two Users (or on their 
+	// partitions), and the journal is waited on once for the whole batch. Return how many were.
+	int expire(long[] paymentIds, int count) {
+		int expired = 0;
+		if (_engine != null) {
+			List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>(count);
+			for (int i = 0; i < count; i++) {
+				Payment payment = pendingView(paymentIds[i]);
+				if (payment != null) {
+					results.add(_engine.cancel(payment));
+				}
+			}
+			for (CompletableFuture<Boolean> result : results) {
+				expired += await(result) ? 1 : 0;
+			}
+			awaitJournalCaughtUp();
+		} else {
+			long seq = 0;
+			for (int i = 0; i < count; i++) {
+				Payment payment = pendingView(paymentIds[i]);
+				if (payment == null) {
+					continue;	// fulfilled or cancelled already
+				}
+				User[] userOrder = getLockOrder(payment.from(), payment.to());
+				userOrder[0]._lock.lock();
+				userOrder[1]._lock.lock();
+				try {
+					if (payment.isPending()) {
+						beginChange(payment.from(), payment.to());
+						long cancelSeq = cancelOut(payment);
+						cancelIn(payment, cancelSeq);
+						seq = Math.max(seq, cancelSeq);
+						expired++;
+					}
+				} finally {
+					userOrder[1]._lock.unlock();
+					userOrder[0]._lock.unlock();
+				}
+			}
+			awaitJournal(seq);
+		}
+		if (_metrics != null) {
+			_metrics.recordExpired(expired);
+		}
+		return expired;
+	}
+	
+	// payments loaded from a snapshot or the journal expire a TTL after they were first requested
+	private void scheduleRestoredPayments() {
+		_accounts.forEach(new Consumer<User>() {
+			public void accept(User user) {
+				int slot = user.firstPending(Direction.OUT);
+				while (slot != PaymentStore.NONE) {
+					_expiry.add(_payments.id(slot), _payments.timeRequested(slot));
+					slot = _payments.next(slot, Direction.OUT);
+				}
+			}
+		});
+	}
+	
+	// Called holding the locks of both Users, before changing either of them. While a snapshot 
+	// is being written, the first change to a User after the cut saves an image of it as it was at 
+	// the cut, for the snapshot to write instead of the User's current state (copy on write). Both 
+	// Users are imaged for the same cut, so the snapshot sees either both or neither side of any 
+	// change.
+	private void beginChange(User user1, User user2) {
+		beginChange(user1);
+		beginChange(user2);
+	}
+	
+	private void beginChange(User user) {
+		int epoch = _cutEpoch;
+		if ((epoch & 1) == 1 && user._imageEpoch != epoch) {
+			user._image = new AccountImage(user, _payments);
+			user._imageEpoch = epoch;
+		}
+	}
+	
+	private void writeSnapshotLocked(Path path) throws IOException {
+		final Snapshot.Writer writer = new Snapshot.Writer(path);
+		Cut cut;
+		try {
+			cut = takeCut(new Consumer<AccountImage>() {
+				public void accept(AccountImage image) {
+					try {
+						writer.add(image);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			writer.abandon();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+		
+		// every payment in the snapshot was requested before now
+		long nextPaymentId = _nextPaymentId.get();
+		// the snapshot must not get ahead of the journal it points into
+		awaitJournal(cut._position._seq);
+		writer.finish(cut._position, nextPaymentId);
+	}
+	
+	// where a cut was taken, and the money added with the Users in it
+	private static class Cut {
+		final Journal.Position _position;
+		final long _deposited;
+		
+		Cut(Journal.Position position, long deposited) {
+			_position = position;
+			_deposited = deposited;
+		}
+	}
+	
+	// Hand sink an image of every User as of one cut, caller holds _snapshotLock. 
+	// The cut is the journal position, read before the epoch turns odd: a change that sees an even 
+	// epoch holds its Users' locks until it's done, so the image taken below includes it; one that 
+	// sees the odd epoch journals after the cut and images its Users first. Each image records the 
+	// last journal record applied to its User, so replay after the cut can skip what it already has.
+	private Cut takeCut(final Consumer<AccountImage> sink) {
+		Cut cut;
+		final int epoch;
+		synchronized (_accounts) {
+			cut = new Cut(_journal == null ? Journal.Position.START : _journal.getAppendedPosition(), _deposited);
+			epoch = _cutEpoch + 1;
+			_cutEpoch = epoch;
+		}
+		try {
+			_accounts.forEach(new Consumer<User>() {
+				public void accept(User user) {
+					AccountImage image;
+					user._lock.lock();
+					try {
+						if (user._imageEpoch == epoch) {
+							image = user._image;	// imaged by a change, or null if added after the cut
+							user._image = null;
+						} else {
+							image = new AccountImage(user, _payments);
+							user._imageEpoch = epoch;
+						}
+					} finally {
+						user._lock.unlock();
+					}
+					if (image != null) {
+						sink.accept(image);
+					}
+				}
+			});
+		} finally {
+			_cutEpoch = epoch + 1;
+		}
+		return cut;
+	}
+	
+	private void awaitJournal(long seq) {
+		if (_journal != null && seq > 0) {
+			_journal.awaitDurable(seq);
 		}
 	}
 	
+	// partition threads don't hand back sequence numbers, wait for everything appended so far
+	private void awaitJournalCaughtUp() {
+		if (_journal != null) {
+			_journal.awaitDurable(_journal.getAppendedSequence());
+		}
+	}
+	
+	// replay the journal from start (the end of a loaded snapshot, or the beginning)
+	private void openJournal(PaymentSystemConfig config, Journal.Position start) {
+		Path path = config.getJournalPath();
+		try {
+			Journal.Position end = Journal.replay(path, start, new JournalReplayer(_nextPaymentId.get()));
+			_journal = new Journal(path, config.getJournalDurability(), config.getGroupCommitRecords(), 
+					config.getGroupCommitMicros(), end);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to open journal " + path, e);
+		}
+	}
+	
+	// Rebuilds every User, balance and pending payment from the journal, before anyone else can see 
+	// them. After a snapshot some Users were imaged after records past the snapshot's cut, each half 
+	// of a record is only applied to a User that hasn't seen it yet.
+	private class JournalReplayer implements Journal.Listener {
+		private final long _snapshotNextPaymentId;	// 1 without a snapshot
+		
+		JournalReplayer(long snapshotNextPaymentId) {
+			_snapshotNextPaymentId = snapshotNextPaymentId;
+		}
+		
+		public void addUser(long seq, int accountNumber, long balance) {
+			User existing = _accounts.get(accountNumber);
+			if (existing != null) {
+				if (existing._journalSeq >= seq) {
+					return;	// in the snapshot already
+				}
+				throw new RuntimeException("journal replay: account number added twice: " + accountNumber);
+			}
+			User user = new User(accountNumber, balance, _historyCapacity, _store, isHotAccount(accountNumber));
+			user._journalSeq = seq;
+			_accounts.add(user);
+			_deposited = Money.add(_deposited, balance);
+		}
+		
+		public void request(long seq, long paymentId, int fromAcct, int toAcct, long amount, long timeRequested) {
+			int slot = _pending.get(paymentId);
+			if (slot == PaymentStore.NONE) {
+				slot = _payments.allocate(paymentId, amount, lookupUser(fromAcct), lookupUser(toAcct), timeRequested);
+				_pending.add(paymentId, slot);
+			}
+			Payment payment = _payments.view(slot, paymentId);
+			if (seq > payment.from()._journalSeq) {
+				payment.from().addPayment(payment, Direction.OUT);
+				payment.from()._journalSeq = seq;
+			}
+			if (seq > payment.to()._journalSeq) {
+				requestIn(payment, seq);
+			}
+			if (paymentId >= _nextPaymentId.get()) {
+				_nextPaymentId.set(paymentId + _paymentIdStride);
+			}
+		}
+		
+		// The payment's slot is only in the lists of Users whose half is applied here, so once both 
+		// halves are it can be freed.
+		public void fulfill(long seq, long paymentId, long timeFulfilled) {
+			int slot = _pending.remove(paymentId);
+			if (slot == PaymentStore.NONE) {
+				// A payment requested before the snapshot's cut, but fulfilled by a change that started 
+				// just before the cut and journaled just after it: both Users were imaged with it fulfilled.
+				if (paymentId < _snapshotNextPaymentId) {
+					return;
+				}
+				throw new RuntimeException("journal replay: fulfillment of unknown payment " + paymentId);
+			}
+			Payment payment = _payments.view(slot, paymentId);
+			if (seq > payment.from()._journalSeq) {
+				if (!payment.from().fulfillPayment(payment, timeFulfilled)) {
+					throw new RuntimeException("journal replay: balance too low to fulfill payment " + paymentId);
+				}
+				payment.from()._journalSeq = seq;
+			} else {
+				_payments.complete(payment, PaymentStore.FULFILLED, timeFulfilled);
+			}
+			if (seq > payment.to()._journalSeq) {
+				payment.to().markFulfilledIncoming(payment, timeFulfilled);
+				payment.to()._journalSeq = seq;
+			}
+			_payments.free(slot);
+		}
+		
+		public void cancel(long seq, long paymentId) {
+			int slot = _pending.remove(paymentId);
+			if (slot == PaymentStore.NONE) {
+				// see fulfill()
+				if (paymentId < _snapshotNextPaymentId) {
+					return;
+				}
+				throw new RuntimeException("journal replay: cancellation of unknown payment " + paymentId);
+			}
+			Payment payment = _payments.view(slot, paymentId);
+			_payments.complete(payment, PaymentStore.CANCELLED, 0);
+			if (seq > payment.from()._journalSeq) {
+				payment.from().removePayment(payment, Direction.OUT);
+				payment.from()._journalSeq = seq;
+			}
+			if (seq > payment.to()._journalSeq) {
+				payment.to().removePayment(payment, Direction.IN);
+				payment.to()._journalSeq = seq;
+			}
+			_payments.free(slot);
+		}
+		
+		// Each half is applied as it was for a single payment, but with no balance checks: the 
+		// balances only had to hold once the whole settlement was applied.
+		public void settle(long seq, long[] paymentIds, int count, long timeFulfilled) {
+			List<User> changed = new ArrayList<User>();
+			for (int i = 0; i < count; i++) {
+				int slot = _pending.remove(paymentIds[i]);
+				if (slot == PaymentStore.NONE) {
+					// see fulfill()
+					if (paymentIds[i] < _snapshotNextPaymentId) {
+						continue;
+					}
+					throw new RuntimeException("journal replay: settlement of unknown payment " + paymentIds[i]);
+				}
+				User from = _payments.from(slot);
+				User to = _payments.to(slot);
+				long amount = _payments.amount(slot);
+				_payments.complete(slot, PaymentStore.FULFILLED, timeFulfilled);
+				if (seq > from._journalSeq) {
+					from.settlePayment(_payments, slot, Direction.OUT, timeFulfilled);
+					from.applySettlement(amount, 1, 0, 0);
+					changed.add(from);
+				}
+				if (seq > to._journalSeq) {
+					to.settlePayment(_payments, slot, Direction.IN, timeFulfilled);
+					to.applySettlement(0, 0, amount, 1);
+					changed.add(to);
+				}
+				_payments.free(slot);
+			}
+			// only now, the settlement's later payments are still to be applied to these Users
+			for (User user : changed) {
+				user._journalSeq = seq;
+			}
+		}
+	}
+	
+	// Apply a batch of requests (results == null) or fulfillments (results[i] set for payments[i]).
+	// Rather than locking a pair of Users per payment, the batch is sorted by the lower account number 
+	// of each payment and cut into chunks touching at most MAX_USERS_LOCKED_PER_CHUNK Users. Each chunk 
+	// locks its Users once, in account number order, and applies all of its payments. Chunks never hold 
+	// each other's locks, and within a chunk locks are taken in the same global order as getLockOrder, 
+	// so this can't deadlock with single-payment calls. Payments sharing their lower account are 
+	// applied in batch order. Hot payees aren't locked, as with getLockOrder.
+	// Return the highest journal sequence number of the batch.
+	private long applyBatch(Payment[] payments, boolean[] results, long now) {
+		// sort key: lower account number in the high bits, batch index in the low bits
+		long[] order = new long[payments.length];
+		for (int i = 0; i < payments.length; i++) {
+			int lowAcct = Math.min(payments[i].from().getAccountNumber(), payments[i].to().getAccountNumber());
+			order[i] = ((long) lowAcct << 32) | i;
+		}
+		Arrays.sort(order);
+		
+		User[] chunkUsers = new User[MAX_USERS_LOCKED_PER_CHUNK];
+		long seq = 0;
+		int chunkStart = 0;
+		while (chunkStart < order.length) {
+			// grow the chunk while its Users still fit
+			int numUsers = 0;
+			int chunkEnd = chunkStart;
+			while (chunkEnd < order.length) {
+				Payment payment = payments[(int) order[chunkEnd]];
+				boolean newFrom = indexOf(chunkUsers, numUsers, payment.from()) < 0;
+				boolean newTo = !payment.to().isHot() && indexOf(chunkUsers, numUsers, payment.to()) < 0;
+				if (numUsers + (newFrom ? 1 : 0) + (newTo ? 1 : 0) > MAX_USERS_LOCKED_PER_CHUNK) {
+					break;
+				}
+				if (newFrom) {
+					chunkUsers[numUsers++] = payment.from();
+				}
+				if (newTo) {
+					chunkUsers[numUsers++] = payment.to();
+				}
+				chunkEnd++;
+			}
+			sortByAccount(chunkUsers, numUsers);
+			
+			seq = Math.max(seq, lockChunkAndApply(chunkUsers, numUsers, payments, order, chunkStart, chunkEnd, results, now));
+			chunkStart = chunkEnd;
+		}
+		return seq;
+	}
+	
+	// take the locks of chunkUsers[0..numUsers) in order, then apply the chunk's payments
+	private long lockChunkAndApply(User[] chunkUsers, int numUsers, Payment[] payments, long[] order, 
+			int chunkStart, int chunkEnd, boolean[] results, long now) {
+		long lockStart = lockWaitStart();
+		int locked = 0;
+		try {
+			while (locked < numUsers) {
+				chunkUsers[locked]._lock.lock();
+				locked++;
+			}
+			lockWaitEnd(lockStart);
+			return applyChunk(payments, order, chunkStart, chunkEnd, results, now);
+		} finally {
+			while (locked > 0) {
+				locked--;
+				chunkUsers[locked]._lock.unlock();
+			}
+		}
+	}
+	
+	// caller holds the locks of every User in the chunk
+	private long applyChunk(Payment[] payments, long[] order, int chunkStart, int chunkEnd, boolean[] results, long now) {
+		long seq = 0;
+		for (int i = chunkStart; i < chunkEnd; i++) {
+			Payment payment = payments[(int) order[i]];
+			if (results == null) {
+				beginChange(payment.from(), payment.to());
+				long requestSeq;
+				try {
+					requestSeq = requestOut(payment);
+					requestIn(payment, requestSeq);
+				} catch (RuntimeException e) {
+					// this one has gone as far as requestPayment would have taken it; the rest of the 
+					// batch (in this chunk and the ones after it) never will, and nobody gets their 
+					// Payments, so their slots go back
+					for (int j = i + 1; j < order.length; j++) {
+						_payments.free(payments[(int) order[j]]._slot);
+					}
+					throw e;
+				}
+				seq = Math.max(seq, requestSeq);
+			} else if (payment.isPending()) {
+				beginChange(payment.from(), payment.to());
+				long fulfillSeq = fulfillOut(payment, now);
+				if (fulfillSeq != INSUFFICIENT_BALANCE) {
+					fulfillIn(payment, now, fulfillSeq);
+					results[(int) order[i]] = true;
+					seq = Math.max(seq, fulfillSeq);
+				}
+			}
+		}
+		return seq;
+	}
+	
+	// insertion sort, there are at most MAX_USERS_LOCKED_PER_CHUNK of them
+	private static void sortByAccount(User[] users, int numUsers) {
+		for (int i = 1; i < numUsers; i++) {
+			User user = users[i];
+			int j = i - 1;
+			while (j >= 0 && users[j].getAccountNumber() > user.getAccountNumber()) {
+				users[j + 1] = users[j];
+				j--;
+			}
+			users[j + 1] = user;
+		}
+	}
+	
+	private static int indexOf(User[] users, int numUsers, User user) {
+		for (int i = 0; i < numUsers; i++) {
+			if (users[i] == user) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// time taken to get a change's locks, for the metrics: call lockWaitStart() just before taking
+	// the first one and lockWaitEnd() once holding all of them
+	private long lockWaitStart() {
+		return _metrics == null ? 0 : System.nanoTime();
+	}
+	
+	private void lockWaitEnd(long lockStart) {
+		if (_metrics != null) {
+			_metrics.recordLockWait(lockStart);
+		}
+	}
 	
 	// need to lock Users in specific order to avoid deadlock
 	// return the ordered Users
-	private User[] getLockOrder(User user1, User user2) {
-		int fromAcct = user1.getAccountNumber();
-		int toAcct = user2.getAccountNumber();
+	private User[] getLockOrder(User from, User to) {
+		int fromAcct = from.getAccountNumber();
+		int toAcct = to.getAccountNumber();
 		if (fromAcct == toAcct) {
 			throw new RuntimeException("accounts are the same");
 		}
 		// lock Users in specific order to avoid deadlock
 		User[] users = new User[2];
-		if (fromAcct < toAcct) {
-			users[0] = user1;
-			users[1] = user2;
+		if (to.isHot()) {
+			// only the payer: a hot payee's half doesn't need its lock (the lock is reentrant, so 
+			// callers take "both" as usual)
+			users[0] = from;
+			users[1] = from;
+		} else if (fromAcct < toAcct) {
+			users[0] = from;
+			users[1] = to;
 		} else {
-			users[0] = user2;
-			users[1] = user1;
+			users[0] = to;
+			users[1] = from;
 		}
 		return users;
 	}
@@ -0,0 +1,284 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentSystemConfig: options chosen when a PaymentSystem is created
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class PaymentSystemConfig {
+	
+	// 0: every operation runs on the caller's thread, locking the Users involved (the default)
+	// N > 0: accounts are split across N single-threaded partitions, see PartitionedEngine
+	private int _partitions = 0;
+	public int getPartitions() {
+		return _partitions;
+	}
+	public PaymentSystemConfig setPartitions(int partitions) {
+		if (partitions < 0) {
+			throw new RuntimeException("invalid number of partitions: " + partitions);
+		}
+		_partitions = partitions;
+		return this;
+	}
+	
+	// capacity of each partition's request queue (rounded up to a power of 2), callers wait while it is full
+	private int _partitionQueueCapacity = 8192;
+	public int getPartitionQueueCapacity() {
+		return _partitionQueueCapacity;
+	}
+	public PaymentSystemConfig setPartitionQueueCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new RuntimeException("invalid partition queue capacity: " + capacity);
+		}
+		_partitionQueueCapacity = capacity;
+		return this;
+	}
+	
+	// fulfilled payments each User keeps per direction for getRecentPayments(), older ones are dropped
+	private int _paymentHistoryCapacity = User.DEFAULT_HISTORY_CAPACITY;
+	public int getPaymentHistoryCapacity() {
+		return _paymentHistoryCapacity;
+	}
+	public PaymentSystemConfig setPaymentHistoryCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new RuntimeException("invalid payment history capacity: " + capacity);
+		}
+		_paymentHistoryCapacity = capacity;
+		return this;
+	}
+	
+	// Accounts that receive a large share of all payments (merchants, say). Payments to a hot 
+	// account don't take its lock: its incoming credits and incoming unfulfilled sum and count go 
+	// into striped per-core cells that its balance and sums are read through, and that are folded 
+	// into its balance when one of its own payments needs them (debits are checked as before). 
+	// A hot account keeps no history of incoming payments, and the metrics' incoming gauges don't 
+	// count its cells. Not supported with partitions, snapshots, netting, audits or a Cluster.
+	private int[] _hotAccounts = new int[0];
+	public int[] getHotAccounts() {
+		return _hotAccounts.clone();
+	}
+	public PaymentSystemConfig setHotAccounts(int... accountNumbers) {
+		if (accountNumbers == null) {
+			throw new RuntimeException("null input to setHotAccounts() method");
+		}
+		int[] hotAccounts = accountNumbers.clone();
+		Arrays.sort(hotAccounts);
+		_hotAccounts = hotAccounts;
+		return this;
+	}
+	
+	// file every change is journaled to (and replayed from at startup), null for no journal
+	private Path _journalPath = null;
+	public Path getJournalPath() {
+		return _journalPath;
+	}
+	public PaymentSystemConfig setJournalPath(Path journalPath) {
+		_journalPath = journalPath;
+		return this;
+	}
+	
+	private JournalDurability _journalDurability = JournalDurability.GROUP;
+	public JournalDurability getJournalDurability() {
+		return _journalDurability;
+	}
+	public PaymentSystemConfig setJournalDurability(JournalDurability durability) {
+		if (durability == null) {
+			throw new RuntimeException("null journal durability");
+		}
+		_journalDurability = durability;
+		return this;
+	}
+	
+	// with GROUP durability, fsync once this many records are waiting ...
+	private int _groupCommitRecords = 256;
+	public int getGroupCommitRecords() {
+		return _groupCommitRecords;
+	}
+	public PaymentSystemConfig setGroupCommitRecords(int records) {
+		if (records < 1) {
+			throw new RuntimeException("invalid group commit record count: " + records);
+		}
+		_groupCommitRecords = records;
+		return this;
+	}
+	
+	// ... or once the oldest waiting record is this old (also how often BUFFERED writes to the file)
+	private long _groupCommitMicros = 1000;
+	public long getGroupCommitMicros() {
+		return _groupCommitMicros;
+	}
+	public PaymentSystemConfig setGroupCommitMicros(long micros) {
+		if (micros < 0) {
+			throw new RuntimeException("invalid group commit interval: " + micros);
+		}
+		_groupCommitMicros = micros;
+		return this;
+	}
+	
+	// snapshot loaded at startup if the file exists (before replaying the journal from where the 
+	// snapshot left off), see PaymentSystem.writeSnapshot. null to always start empty.
+	private Path _snapshotPath = null;
+	public Path getSnapshotPath() {
+		return _snapshotPath;
+	}
+	public PaymentSystemConfig setSnapshotPath(Path snapshotPath) {
+		_snapshotPath = snapshotPath;
+		return this;
+	}
+	
+	// Payment ids are firstPaymentId, firstPaymentId + stride, firstPaymentId + 2 * stride, ... so 
+	// several PaymentSystems can share one id space without handing out the same id (see Cluster)
+	private long _firstPaymentId = 1;
+	private int _paymentIdStride = 1;
+	public long getFirstPaymentId() {
+		return _firstPaymentId;
+	}
+	public int getPaymentIdStride() {
+		return _paymentIdStride;
+	}
+	public PaymentSystemConfig setPaymentIds(long firstPaymentId, int stride) {
+		if (firstPaymentId < 1 || stride < 1) {
+			throw new RuntimeException("invalid payment ids: first = " + firstPaymentId + ", stride = " + stride);
+		}
+		_firstPaymentId = firstPaymentId;
+		_paymentIdStride = stride;
+		return this;
+	}
+	
+	// Cancel payments nobody has fulfilled this long (millis) after they were requested, 0 to keep 
+	// them until they are (the default). Expired payments are journaled as cancellations, see 
+	// PaymentExpiry.
+	private long _paymentTtlMillis = 0;
+	public long getPaymentTtlMillis() {
+		return _paymentTtlMillis;
+	}
+	public PaymentSystemConfig setPaymentTtlMillis(long millis) {
+		if (millis < 0) {
+			throw new RuntimeException("invalid payment TTL: " + millis);
+		}
+		_paymentTtlMillis = millis;
+		return this;
+	}
+	
+	// with a TTL, how often expired payments are looked for: a payment expires within this long 
+	// after its TTL runs out
+	private long _paymentExpiryTickMillis = 100;
+	public long getPaymentExpiryTickMillis() {
+		return _paymentExpiryTickMillis;
+	}
+	public PaymentSystemConfig setPaymentExpiryTickMillis(long millis) {
+		if (millis < 1) {
+			throw new RuntimeException("invalid payment expiry tick: " + millis);
+		}
+		_paymentExpiryTickMillis = millis;
+		return this;
+	}
+	
+	// with a TTL, the most payments cancelled before the journal is waited on once for all of them
+	private int _paymentExpiryBatchSize = 1024;
+	public int getPaymentExpiryBatchSize() {
+		return _paymentExpiryBatchSize;
+	}
+	public PaymentSystemConfig setPaymentExpiryBatchSize(int size) {
+		if (size < 1) {
+			throw new RuntimeException("invalid payment expiry batch size: " + size);
+		}
+		_paymentExpiryBatchSize = size;
+		return this;
+	}
+	
+	// How long (millis) a client idempotency key is remembered: a requestPayment or fulfill call 
+	// repeating a key used within this long returns the first call's result instead of running 
+	// again. 0 (the default) turns idempotency keys off. See IdempotencyCache.
+	private long _idempotencyWindowMillis = 0;
+	public long getIdempotencyWindowMillis() {
+		return _idempotencyWindowMillis;
+	}
+	public PaymentSystemConfig setIdempotencyWindowMillis(long millis) {
+		if (millis < 0) {
+			throw new RuntimeException("invalid idempotency window: " + millis);
+		}
+		_idempotencyWindowMillis = millis;
+		return this;
+	}
+	
+	// with idempotency keys, how many are remembered per window at most (the cache is allocated up 
+	// front, about 80 bytes per key, covering both windows). Once full, the oldest keys are forgotten 
+	// before their window is up.
+	private int _idempotencyCacheCapacity = 1 << 16;
+	public int getIdempotencyCacheCapacity() {
+		return _idempotencyCacheCapacity;
+	}
+	public PaymentSystemConfig setIdempotencyCacheCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new RuntimeException("invalid idempotency cache capacity: " + capacity);
+		}
+		_idempotencyCacheCapacity = capacity;
+		return this;
+	}
+	
+	// slots in the ring buffer payment events go through to subscribers (see PaymentSystem.subscribe), 
+	// rounded up to a power of 2 and allocated at the first subscribe(). With BLOCK subscribers, 
+	// payments wait once a subscriber is this many events behind.
+	private int _eventRingCapacity = 1 << 16;
+	public int getEventRingCapacity() {
+		return _eventRingCapacity;
+	}
+	public PaymentSystemConfig setEventRingCapacity(int capacity) {
+		if (capacity < 2) {
+			throw new RuntimeException("invalid event ring capacity: " + capacity);
+		}
+		_eventRingCapacity = capacity;
+		return this;
+	}
+	
+	// the most events handed to a PaymentEventListener at once
+	private int _eventBatchSize = 256;
+	public int getEventBatchSize() {
+		return _eventBatchSize;
+	}
+	public PaymentSystemConfig setEventBatchSize(int size) {
+		if (size < 1) {
+			throw new RuntimeException("invalid event batch size: " + size);
+		}
+		_eventBatchSize = size;
+		return this;
+	}
+	
+	// where SPILL subscriptions keep their spill files, null (the default) for the temporary directory
+	private Path _eventSpillDirectory = null;
+	public Path getEventSpillDirectory() {
+		return _eventSpillDirectory;
+	}
+	public PaymentSystemConfig setEventSpillDirectory(Path directory) {
+		_eventSpillDirectory = directory;
+		return this;
+	}
+	
+	// keep the counts and timings read by PaymentSystem.getMetrics(). Off by default, when it costs 
+	// nothing but a null check per call.
+	private boolean _metricsEnabled = false;
+	public boolean isMetricsEnabled() {
+		return _metricsEnabled;
+	}
+	public PaymentSystemConfig setMetricsEnabled(boolean enabled) {
+		_metricsEnabled = enabled;
+		return this;
+	}
+	
+	// with metrics enabled, print them to stdout this often, 0 to never print them
+	private int _metricsDumpSeconds = 0;
+	public int getMetricsDumpSeconds() {
+		return _metricsDumpSeconds;
+	}
+	public PaymentSystemConfig setMetricsDumpSeconds(int seconds) {
+		if (seconds < 0) {
+			throw new RuntimeException("invalid metrics dump interval: " + seconds);
+		}
+		_metricsDumpSeconds = seconds;
+		return this;
+	}
+}
@@ -0,0 +1,200 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PendingIndex: the PaymentStore slot of every unfulfilled payment of a PaymentSystem, keyed by
+//				payment id
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.util.concurrent.locks.StampedLock;
+
+class PendingIndex {
+
+	// Split into segments by the low bits of the hashed id. Each segment is an open-addressing table
+	// of primitive long keys (0 marks an empty slot, ids start at 1) with linear probing, and removal
+	// shifts later entries of the probe run back instead of leaving tombstones. Writers take the
+	// segment's write lock, readers an optimistic read that they retry if a write overlapped it.
+	private static final int SEGMENT_BITS = 6;
+	private static final int NUM_SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int INITIAL_SEGMENT_CAPACITY = 64;	// must be a power of 2
+
+	private final Segment[] _segments;
+
+	PendingIndex() {
+		_segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			_segments[i] = new Segment();
+		}
+	}
+
+	// return PaymentStore.NONE if no unfulfilled payment has this id
+	int get(long paymentId) {
+		int hash = hash(paymentId);
+		return _segments[hash & (NUM_SEGMENTS - 1)].get(paymentId, hash);
+	}
+
+	// the id must not be in the index already
+	void add(long paymentId, int slot) {
+		int hash = hash(paymentId);
+		_segments[hash & (NUM_SEGMENTS - 1)].add(paymentId, slot, hash);
+	}
+
+	// return the slot removed, or PaymentStore.NONE if no payment had this id
+	int remove(long paymentId) {
+		int hash = hash(paymentId);
+		return _segments[hash & (NUM_SEGMENTS - 1)].remove(paymentId, hash);
+	}
+
+	int size() {
+		int size = 0;
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			size += _segments[i].size();
+		}
+		return size;
+	}
+
+	// ids are sequential, spread them over all the bits (murmur3 finalizer)
+	private static int hash(long paymentId) {
+		long h = paymentId;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+
+	private static class Segment {
+		private final StampedLock _lock = new StampedLock();
+		private long[] _keys;
+		private int[] _values;
+		private int _size;
+
+		Segment() {
+			_keys = new long[INITIAL_SEGMENT_CAPACITY];
+			_values = new int[INITIAL_SEGMENT_CAPACITY];
+			_size = 0;
+		}
+
+		int get(long paymentId, int hash) {
+			long stamp = _lock.tryOptimisticRead();
+			if (stamp != 0) {
+				int value = find(_keys, _values, paymentId, hash);
+				if (_lock.validate(stamp)) {
+					return value;
+				}
+			}
+			stamp = _lock.readLock();
+			try {
+				return find(_keys, _values, paymentId, hash);
+			} finally {
+				_lock.unlockRead(stamp);
+			}
+		}
+
+		// keys and values may be read racing a writer (the caller validates afterwards), so this must
+		// not fail or loop forever on a half-changed table: it probes at most keys.length slots
+		private static int find(long[] keys, int[] values, long paymentId, int hash) {
+			if (keys.length != values.length) {
+				return PaymentStore.NONE;	// caught mid-resize
+			}
+			int mask = keys.length - 1;
+			int slot = (hash >>> SEGMENT_BITS) & mask;
+			for (int probes = 0; probes < keys.length; probes++) {
+				long key = keys[slot];
+				if (key == 0) {
+					return PaymentStore.NONE;
+				}
+				if (key == paymentId) {
+					return values[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			return PaymentStore.NONE;
+		}
+
+		void add(long paymentId, int value, int hash) {
+			long stamp = _lock.writeLock();
+			try {
+				// keep the table at most half full so probe runs stay short
+				if ((_size + 1) * 2 > _keys.length) {
+					resize();
+				}
+				insert(_keys, _values, paymentId, value, hash);
+				_size++;
+			} finally {
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		int remove(long paymentId, int hash) {
+			long stamp = _lock.writeLock();
+			try {
+				long[] keys = _keys;
+				int[] values = _values;
+				int mask = keys.length - 1;
+				int slot = (hash >>> SEGMENT_BITS) & mask;
+				while (keys[slot] != paymentId) {
+					if (keys[slot] == 0) {
+						return PaymentStore.NONE;
+					}
+					slot = (slot + 1) & mask;
+				}
+				int removed = values[slot];
+
+				// shift back every later entry of the run that may sit in the freed slot
+				int free = slot;
+				int next = (slot + 1) & mask;
+				while (keys[next] != 0) {
+					int home = (hash(keys[next]) >>> SEGMENT_BITS) & mask;
+					// the entry can move to free unless its home lies cyclically in (free, next]
+					if (((next - home) & mask) >= ((next - free) & mask)) {
+						keys[free] = keys[next];
+						values[free] = values[next];
+						free = next;
+					}
+					next = (next + 1) & mask;
+				}
+				keys[free] = 0;
+				_size--;
+				return removed;
+			} finally {
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		int size() {
+			long stamp = _lock.readLock();
+			try {
+				return _size;
+			} finally {
+				_lock.unlockRead(stamp);
+			}
+		}
+
+		private void resize() {
+			long[] oldKeys = _keys;
+			int[] oldValues = _values;
+			long[] newKeys = new long[oldKeys.length * 2];
+			int[] newValues = new int[oldValues.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					insert(newKeys, newValues, oldKeys[i], oldValues[i], hash(oldKeys[i]));
+				}
+			}
+			_keys = newKeys;
+			_values = newValues;
+		}
+
+		private static void insert(long[] keys, int[] values, long paymentId, int value, int hash) {
+			int mask = keys.length - 1;
+			int slot = (hash >>> SEGMENT_BITS) & mask;
+			while (keys[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = paymentId;
+			values[slot] = value;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// SlowFulfillmentEvent: JFR event for a PaymentSystem.fulfill() call that took longer than the
+//				threshold (20 ms unless the recording's settings say otherwise)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("main.SlowFulfillment")
+@Label("Slow Fulfillment")
+@Category("PaymentSystem")
+@Description("A call to fulfill a payment that took longer than the threshold")
+@Threshold("20 ms")
+@StackTrace(false)
+class SlowFulfillmentEvent extends Event {
+
+	@Label("Payment Id")
+	long paymentId;
+
+	@Label("From Account")
+	int fromAccount;
+
+	@Label("To Account")
+	int toAccount;
+
+	@Label("Amount")
+	@Description("In minor units")
+	long amount;
+
+	@Label("Fulfilled")
+	@Description("False if the payer's balance was too low, or the call threw")
+	boolean fulfilled;
+}
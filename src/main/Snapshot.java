@@ -0,0 +1,228 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Snapshot: binary image of every User and unfulfilled payment, written while the system keeps
+//			running (see PaymentSystem.writeSnapshot) and loaded in parallel at startup
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+class Snapshot {
+
+	// File layout, all big-endian:
+	//   header: int magic, long journal seq, long journal offset, long next payment id, long index offset
+	//   segments of up to USERS_PER_SEGMENT Users, each User being
+	//     int account, long balance, long sum unfulfilled out, long sum unfulfilled in, long journal seq,
+	//     int pending count, then per unfulfilled outgoing payment: long id, int payee, long amount, long time requested
+	//   index: int segment count, then per segment: long offset, int length, int user count
+	// Segments are independent of each other so they can be decoded in parallel.
+	private static final int MAGIC = 0x50534e31;	// "PSN1"
+	private static final int HEADER_LENGTH = 4 + 8 + 8 + 8 + 8;
+	private static final int USERS_PER_SEGMENT = 65536;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	// where to resume journal replay, and the first id not used by any payment in the snapshot
+	final Journal.Position _journalPosition;
+	final long _nextPaymentId;
+
+	private Snapshot(Journal.Position journalPosition, long nextPaymentId) {
+		_journalPosition = journalPosition;
+		_nextPaymentId = nextPaymentId;
+	}
+
+
+	// Streams AccountImages into a temporary file next to path, which replaces path on finish()
+	static class Writer {
+		private final Path _path;
+		private final Path _tempPath;
+		private final FileChannel _channel;
+		private final ByteBuffer _buffer;
+		private final List<long[]> _segments;	// offset, length, user count
+		private long _segmentStart;
+		private int _segmentUsers;
+
+		Writer(Path path) throws IOException {
+			_path = path;
+			_tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+			_channel = FileChannel.open(_tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			_buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			_segments = new ArrayList<long[]>();
+			_segmentStart = HEADER_LENGTH;
+			_segmentUsers = 0;
+			_channel.position(HEADER_LENGTH);
+		}
+
+		void add(AccountImage image) throws IOException {
+			ByteBuffer buffer = _buffer;
+			if (image.encodedLength() > buffer.remaining()) {
+				drain();
+				if (image.encodedLength() > buffer.capacity()) {
+					buffer = ByteBuffer.allocate(image.encodedLength());	// a User with a huge number of pending payments
+				}
+			}
+			buffer.putInt(image._accountNumber)
+				.putLong(image._balance)
+				.putLong(image._sumUnfulfilledOut)
+				.putLong(image._sumUnfulfilledIn)
+				.putLong(image._journalSeq)
+				.putInt(image._pendingIds.length);
+			for (int i = 0; i < image._pendingIds.length; i++) {
+				buffer.putLong(image._pendingIds[i])
+					.putInt(image._pendingPayees[i])
+					.putLong(image._pendingAmounts[i])
+					.putLong(image._pendingTimesRequested[i]);
+			}
+			if (buffer != _buffer) {
+				buffer.flip();
+				write(buffer);
+			}
+			if (++_segmentUsers == USERS_PER_SEGMENT) {
+				endSegment();
+			}
+		}
+
+		// write the index and header, make the file durable and move it into place
+		void finish(Journal.Position journalPosition, long nextPaymentId) throws IOException {
+			endSegment();
+			long indexOffset = _channel.position();
+			ByteBuffer index = ByteBuffer.allocate(4 + _segments.size() * (8 + 4 + 4));
+			index.putInt(_segments.size());
+			for (long[] segment : _segments) {
+				index.putLong(segment[0]).putInt((int) segment[1]).putInt((int) segment[2]);
+			}
+			index.flip();
+			write(index);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putLong(journalPosition._seq).putLong(journalPosition._offset)
+				.putLong(nextPaymentId).putLong(indexOffset);
+			header.flip();
+			while (header.hasRemaining()) {
+				_channel.write(header, header.position());
+			}
+			_channel.force(true);
+			_channel.close();
+			Files.move(_tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		// give up on the snapshot, leaving any previous one at path alone
+		void abandon() {
+			try {
+				_channel.close();
+				Files.deleteIfExists(_tempPath);
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+		}
+
+		private void endSegment() throws IOException {
+			drain();
+			long end = _channel.position();
+			if (_segmentUsers > 0) {
+				_segments.add(new long[] { _segmentStart, end - _segmentStart, _segmentUsers });
+			}
+			_segmentStart = end;
+			_segmentUsers = 0;
+		}
+
+		private void drain() throws IOException {
+			_buffer.flip();
+			write(_buffer);
+			_buffer.clear();
+		}
+
+		private void write(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				_channel.write(buffer);
+			}
+		}
+	}
+
+
+	// Load the snapshot at path into an empty registry, adding every unfulfilled payment to payments
+	// and pending. Segments are memory-mapped and decoded in parallel: first every User is created,
+	// then every unfulfilled payment is attached to its payer (owned by the segment being decoded)
+	// and its payee (which may belong to any segment, so it is locked).
+	static Snapshot load(Path path, final AccountRegistry accounts, final AccountStore store, 
+			final PaymentStore payments, final PendingIndex pending, final int historyCapacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(path + " is not a payment system snapshot");
+			}
+			Journal.Position journalPosition = new Journal.Position(header.getLong(), header.getLong());
+			long nextPaymentId = header.getLong();
+			long indexOffset = header.getLong();
+
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+			int numSegments = index.getInt();
+			final MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+			final int[] segmentUsers = new int[numSegments];
+			for (int i = 0; i < numSegments; i++) {
+				long offset = index.getLong();
+				int length = index.getInt();
+				segmentUsers[i] = index.getInt();
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+
+			IntStream.range(0, numSegments).parallel().forEach(new IntConsumer() {
+				public void accept(int i) {
+					ByteBuffer segment = segments[i].duplicate();
+					for (int u = 0; u < segmentUsers[i]; u++) {
+						User user = new User(segment.getInt(), segment.getLong(), historyCapacity, store);
+						user.restoreSums(segment.getLong(), segment.getLong());
+						user._journalSeq = segment.getLong();
+						if (!accounts.add(user)) {
+							throw new RuntimeException("snapshot contains account " + user.getAccountNumber() + " twice");
+						}
+						int numPending = segment.getInt();
+						segment.position(segment.position() + numPending * (8 + 4 + 8 + 8));
+					}
+				}
+			});
+
+			IntStream.range(0, numSegments).parallel().forEach(new IntConsumer() {
+				public void accept(int i) {
+					ByteBuffer segment = segments[i].duplicate();
+					for (int u = 0; u < segmentUsers[i]; u++) {
+						User payer = accounts.get(segment.getInt());
+						segment.position(segment.position() + 8 + 8 + 8 + 8);
+						int numPending = segment.getInt();
+						for (int p = 0; p < numPending; p++) {
+							long id = segment.getLong();
+							User payee = accounts.get(segment.getInt());
+							if (payee == null) {
+								throw new RuntimeException("snapshot payment " + id + " is to an unknown account");
+							}
+							int slot = payments.allocate(id, segment.getLong(), payer, payee, segment.getLong());
+							Payment payment = payments.view(slot, id);
+							payer.restorePending(payment, Direction.OUT);
+							payee._lock.lock();
+							try {
+								payee.restorePending(payment, Direction.IN);
+							} finally {
+								payee._lock.unlock();
+							}
+							pending.add(id, slot);
+						}
+					}
+				}
+			});
+
+			return new Snapshot(journalPosition, nextPaymentId);
+		}
+	}
+}
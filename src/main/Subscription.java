@@ -0,0 +1,304 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Subscription: delivers the payment events of a PaymentSystem to one PaymentEventListener, in
+//			batches, on threads of its own (see PaymentSystem.subscribe)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Subscription {
+
+	// Each subscription reads the EventRing from its own cursor, starting at the first event
+	// published after subscribe(). BLOCK and DROP have one thread, which copies up to a batch of
+	// events out of the ring, moves its cursor past them and hands them to the listener. With BLOCK
+	// the cursor gates publishers, so once the ring is full they wait for the listener. With DROP
+	// nothing waits for it: events overwritten before it gets to them are skipped and counted.
+	// SPILL has two threads: one copies events from the ring (gating publishers, but only for as
+	// long as a write to the file takes) to the end of a spill file of fixed-length records, the
+	// other reads them back from the file for the listener. The file is emptied whenever the
+	// listener catches up with it after it has grown past SPILL_RESET_BYTES.
+	private static final long IDLE_PARK_NANOS = 100000;	// how long a reader sleeps when there's nothing to read
+	private static final int SPILL_RECORD_BYTES = 1 + 8 + 8 + 4 + 4 + 8 + 8;
+	private static final long SPILL_RESET_BYTES = 16 << 20;
+
+	private final EventRing _ring;
+	private final PaymentEventListener _listener;
+	private final BackpressurePolicy _policy;
+	public BackpressurePolicy getPolicy() {
+		return _policy;
+	}
+	private final int _batchSize;
+	private final AtomicLong _cursor;	// next event to read from the ring
+	private final AtomicLong _delivered = new AtomicLong();
+	public long getDeliveredEvents() {
+		return _delivered.get();
+	}
+	private final AtomicLong _dropped = new AtomicLong();
+	public long getDroppedEvents() {
+		return _dropped.get();
+	}
+	// Exceptions thrown by the listener (delivery carries on with the next batch) and spill file
+	// errors (which stop the subscription), and the last of them
+	private final AtomicLong _failures = new AtomicLong();
+	public long getFailures() {
+		return _failures.get();
+	}
+	private volatile Throwable _lastFailure;
+	public Throwable getLastFailure() {
+		return _lastFailure;
+	}
+	private volatile long _closeAt = Long.MAX_VALUE;	// set by close(), the first event not delivered
+	private final Thread _reader;
+
+	// SPILL only
+	private final FileChannel _spill;
+	private long _spilled = 0;	// records in the file, guarded by this
+	private long _unspilled = 0;	// records read back from the file, guarded by this
+	private volatile boolean _spillerDone = false;
+	private final Thread _spillReader;
+
+	// spillDirectory: where SPILL creates its file, null for the default temporary directory
+	Subscription(EventRing ring, PaymentEventListener listener, BackpressurePolicy policy, int batchSize,
+			Path spillDirectory, String name) {
+		_ring = ring;
+		_listener = listener;
+		_policy = policy;
+		_batchSize = batchSize;
+		_cursor = new AtomicLong(ring.next());
+		if (policy == BackpressurePolicy.SPILL) {
+			try {
+				Path path = spillDirectory == null ? Files.createTempFile(name, ".spill")
+						: Files.createTempFile(spillDirectory, name, ".spill");
+				_spill = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+			} catch (IOException e) {
+				throw new RuntimeException("failed to create spill file for " + name, e);
+			}
+			_reader = newThread(new Runnable() {
+				public void run() {
+					spillFromRing();
+				}
+			}, name + "-spill");
+			_spillReader = newThread(new Runnable() {
+				public void run() {
+					deliverFromSpill();
+				}
+			}, name);
+		} else {
+			_spill = null;
+			_reader = newThread(new Runnable() {
+				public void run() {
+					deliverFromRing();
+				}
+			}, name);
+			_spillReader = null;
+		}
+	}
+
+	void start() {
+		_ring.addSubscription(_policy == BackpressurePolicy.DROP ? null : _cursor);
+		_reader.start();
+		if (_spillReader != null) {
+			_spillReader.start();
+		}
+	}
+
+	// Stop delivering once the events published so far have been (unless this is called from the
+	// listener itself, which then returns first), and stop holding back payments.
+	public void close() {
+		synchronized (_cursor) {
+			if (_closeAt != Long.MAX_VALUE) {
+				return;
+			}
+			_closeAt = _ring.next();
+		}
+		Thread current = Thread.currentThread();
+		try {
+			if (current != _reader) {
+				_reader.join();
+			}
+			if (_spillReader != null && current != _spillReader) {
+				_spillReader.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Thread newThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	// BLOCK and DROP
+	private void deliverFromRing() {
+		PaymentEvent[] batch = new PaymentEvent[_batchSize];
+		List<PaymentEvent> events = Arrays.asList(batch);
+		try {
+			while (true) {
+				int count = readBatch(batch);
+				if (count > 0) {
+					deliver(count == batch.length ? events : events.subList(0, count), count);
+				} else if (_cursor.get() >= _closeAt) {
+					return;
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		} finally {
+			_ring.removeSubscription(_policy == BackpressurePolicy.DROP ? null : _cursor);
+		}
+	}
+
+	// Copy the events from the cursor on (up to any close()) into batch, moving the cursor past 
+	// them, and return how many there were. Overwritten events (only with DROP) are skipped.
+	private int readBatch(PaymentEvent[] batch) {
+		long cursor = _cursor.get();
+		long end = _closeAt;
+		int count = 0;
+		while (count < batch.length && cursor < end) {
+			int result = _ring.read(cursor, batch, count);
+			if (result == EventRing.READ) {
+				count++;
+				cursor++;
+			} else if (result == EventRing.OVERWRITTEN) {
+				// at least a lap behind: carry on from the oldest event still in the ring
+				long oldest = Math.max(cursor + 1, _ring.next() - _ring.capacity());
+				_dropped.addAndGet(oldest - cursor);
+				cursor = oldest;
+			} else {
+				break;
+			}
+		}
+		_cursor.set(cursor);
+		return count;
+	}
+
+	private void deliver(List<PaymentEvent> events, int count) {
+		try {
+			_listener.onEvents(events);
+		} catch (RuntimeException e) {
+			// the listener's problem, carry on with the next batch
+			failed(e);
+		}
+		_delivered.addAndGet(count);
+	}
+
+	// SPILL: ring to file
+	private void spillFromRing() {
+		PaymentEvent[] batch = new PaymentEvent[_batchSize];
+		ByteBuffer buffer = ByteBuffer.allocate(_batchSize * SPILL_RECORD_BYTES);
+		try {
+			while (true) {
+				int count = readBatch(batch);
+				if (count > 0) {
+					buffer.clear();
+					for (int i = 0; i < count; i++) {
+						PaymentEvent event = batch[i];
+						buffer.put((byte) event.getType().ordinal());
+						buffer.putLong(event.getSequence());
+						buffer.putLong(event.getPaymentId());
+						buffer.putInt(event.getFromAccount());
+						buffer.putInt(event.getToAccount());
+						buffer.putLong(event.getAmountMinorUnits());
+						buffer.putLong(event.getTimeMillis());
+					}
+					buffer.flip();
+					synchronized (this) {
+						long position = _spilled * SPILL_RECORD_BYTES;
+						while (buffer.hasRemaining()) {
+							position += _spill.write(buffer, position);
+						}
+						_spilled += count;
+					}
+				} else if (_cursor.get() >= _closeAt) {
+					return;
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			// nowhere to put events, stop holding back payments for them
+			failed(e);
+		} finally {
+			_ring.removeSubscription(_cursor);
+			_spillerDone = true;
+		}
+	}
+
+	// SPILL: file to listener
+	private void deliverFromSpill() {
+		PaymentEvent[] batch = new PaymentEvent[_batchSize];
+		List<PaymentEvent> events = Arrays.asList(batch);
+		ByteBuffer buffer = ByteBuffer.allocate(_batchSize * SPILL_RECORD_BYTES);
+		try {
+			while (true) {
+				boolean spillerDone = _spillerDone;
+				long first;
+				int count;
+				synchronized (this) {
+					first = _unspilled;
+					count = (int) Math.min(_batchSize, _spilled - _unspilled);
+				}
+				if (count == 0) {
+					if (spillerDone) {
+						return;
+					}
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+					continue;
+				}
+				buffer.clear();
+				buffer.limit(count * SPILL_RECORD_BYTES);
+				long position = first * SPILL_RECORD_BYTES;
+				while (buffer.hasRemaining()) {
+					int read = _spill.read(buffer, position);
+					if (read < 0) {
+						throw new IOException("spill file ended early");
+					}
+					position += read;
+				}
+				buffer.flip();
+				for (int i = 0; i < count; i++) {
+					PaymentEvent.Type type = PaymentEvent.TYPES[buffer.get()];
+					long sequence = buffer.getLong();
+					batch[i] = new PaymentEvent(type, sequence, buffer.getLong(), buffer.getInt(), buffer.getInt(),
+							buffer.getLong(), buffer.getLong());
+				}
+				deliver(count == batch.length ? events : events.subList(0, count), count);
+				synchronized (this) {
+					_unspilled += count;
+					if (_unspilled == _spilled && _spilled * SPILL_RECORD_BYTES >= SPILL_RESET_BYTES) {
+						_spill.truncate(0);
+						_spilled = 0;
+						_unspilled = 0;
+					}
+				}
+			}
+		} catch (IOException e) {
+			failed(e);
+		} finally {
+			try {
+				_spill.close();	// deletes it
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	private void failed(Throwable e) {
+		_lastFailure = e;
+		_failures.incrementAndGet();
+	}
+}
@@ -0,0 +1,133 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// TimerWheel: long keys due at a tick, in a hierarchical timing wheel (adding is O(1), and so is
+//			advancing a tick, apart from the keys it hands over)
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+class TimerWheel {
+
+	// LEVELS wheels of BUCKETS buckets each. A bucket of level 0 holds the keys due at one tick, a
+	// bucket of level l the keys due in a span of BUCKETS^l ticks, so the wheels cover BUCKETS^LEVELS
+	// ticks ahead (keys due later wait in the last bucket in reach and are put back until they are
+	// in reach). A key goes in the lowest level that reaches its tick, in the bucket of that tick.
+	// When the wheel reaches the start of a bucket's span the bucket is emptied into the levels
+	// below (highest level first), so a key moves down at most LEVELS - 1 times.
+	// Keys can't be removed: whoever gets a key back checks that it is still wanted. Not thread
+	// safe, the owner synchronizes.
+	private static final int BUCKET_BITS = 6;
+	private static final int BUCKETS = 1 << BUCKET_BITS;
+	private static final int BUCKET_MASK = BUCKETS - 1;
+	private static final int LEVELS = 4;
+	private static final long REACH = 1L << (BUCKET_BITS * LEVELS);
+
+	private static final int INITIAL_BUCKET_CAPACITY = 4;
+	// a bucket that has been emptied drops arrays grown past this, so a burst doesn't keep its memory
+	private static final int RETAINED_BUCKET_CAPACITY = 1024;
+
+	private final long[][] _keys = new long[LEVELS * BUCKETS][];
+	private final long[][] _ticks = new long[LEVELS * BUCKETS][];	// tick each key is due at
+	private final int[] _sizes = new int[LEVELS * BUCKETS];
+	private long _tick;	// every tick before this one is done, and so is this one once its bucket is empty
+	private int _size = 0;
+
+	TimerWheel(long tick) {
+		_tick = tick;
+		for (int i = 0; i < _keys.length; i++) {
+			_keys[i] = new long[INITIAL_BUCKET_CAPACITY];
+			_ticks[i] = new long[INITIAL_BUCKET_CAPACITY];
+		}
+	}
+
+	// keys in the wheel, including any no longer wanted
+	int size() {
+		return _size;
+	}
+
+	// key is due at tick, or at the current tick if that is already past
+	void add(long key, long tick) {
+		add(key, tick, true);
+	}
+
+	// Move the wheel on to tick (never back), putting keys due by then into expired, and return how
+	// many there were. Stops early if expired fills up: the rest are returned by the next call.
+	int advance(long tick, long[] expired) {
+		int count = 0;
+		while (true) {
+			int bucket = bucketOf(0, _tick);
+			while (_sizes[bucket] > 0 && count < expired.length) {
+				_sizes[bucket]--;
+				expired[count++] = _keys[bucket][_sizes[bucket]];
+			}
+			if (_sizes[bucket] > 0) {
+				break;
+			}
+			shrink(bucket);
+			if (_tick >= tick) {
+				break;
+			}
+			_tick++;
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((_tick & ((1L << (BUCKET_BITS * level)) - 1)) == 0) {
+					cascade(bucketOf(level, _tick));
+				}
+			}
+		}
+		_size -= count;
+		return count;
+	}
+
+	private void add(long key, long tick, boolean counted) {
+		long due = Math.max(tick, _tick);
+		int level = 0;
+		while (level < LEVELS - 1 && due - _tick >= (1L << (BUCKET_BITS * (level + 1)))) {
+			level++;
+		}
+		// too far ahead: the farthest bucket still in reach, to be put back when it's emptied
+		long slotTick = due - _tick < REACH ? due : _tick + REACH - 1;
+		int bucket = bucketOf(level, slotTick);
+		int size = _sizes[bucket];
+		if (size == _keys[bucket].length) {
+			long[] keys = new long[size * 2];
+			long[] ticks = new long[size * 2];
+			System.arraycopy(_keys[bucket], 0, keys, 0, size);
+			System.arraycopy(_ticks[bucket], 0, ticks, 0, size);
+			_keys[bucket] = keys;
+			_ticks[bucket] = ticks;
+		}
+		_keys[bucket][size] = key;
+		_ticks[bucket][size] = due;
+		_sizes[bucket] = size + 1;
+		if (counted) {
+			_size++;
+		}
+	}
+
+	// put the bucket's keys back in, now nearer the ticks they are due at
+	private void cascade(int bucket) {
+		int size = _sizes[bucket];
+		if (size == 0) {
+			return;
+		}
+		long[] keys = _keys[bucket];
+		long[] ticks = _ticks[bucket];
+		_keys[bucket] = new long[INITIAL_BUCKET_CAPACITY];
+		_ticks[bucket] = new long[INITIAL_BUCKET_CAPACITY];
+		_sizes[bucket] = 0;
+		for (int i = 0; i < size; i++) {
+			add(keys[i], ticks[i], false);
+		}
+	}
+
+	private void shrink(int bucket) {
+		if (_keys[bucket].length > RETAINED_BUCKET_CAPACITY) {
+			_keys[bucket] = new long[INITIAL_BUCKET_CAPACITY];
+			_ticks[bucket] = new long[INITIAL_BUCKET_CAPACITY];
+		}
+	}
+
+	private static int bucketOf(int level, long tick) {
+		return level * BUCKETS + (int) ((tick >>> (BUCKET_BITS * level)) & BUCKET_MASK);
+	}
+}
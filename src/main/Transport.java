@@ -0,0 +1,14 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Transport: how ClusterNodes reach each other
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+interface Transport {
+
+	// Deliver message to node and return its answer. Throws if the node can't be reached, in which
+	// case the message may or may not have been delivered. Messages from one node to another are
+	// delivered in the order they were sent.
+	boolean send(int node, ClusterMessage message);
+}
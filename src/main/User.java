@@ -7,128 +7,405 @@
 package main;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class User {
-	private int _accountNumber;
+	private final int _accountNumber;
 	public int getAccountNumber() {
 		return _accountNumber;
 	}
-	private BigDecimal _balance; 
+	
+	// The balance (in minor units, see Money) and the unfulfilled sums and counts live in a row of 
+	// an AccountStore, off heap. Writers always hold this User's _lock (PaymentSystem takes it in 
+	// getLockOrder order), and also take the row's sequence lock for the few instructions that 
+	// change it. That lets readers get a consistent view of those values without ever waiting on 
+	// the lock: they only retry if they overlapped one of those short writes.
+	private final AccountStore.Chunk _columns;
+	private final int _row;	// within _columns
+	
+	// Null unless this is a hot account (see PaymentSystemConfig.setHotAccounts). Its incoming 
+	// credits and incoming unfulfilled sum and count then go into these striped cells instead, 
+	// changed by payers without this User's lock, and the values read are the columns plus the 
+	// cells. Credits are folded into the balance column by the owner when a debit needs them.
+	private final HotCells _hot;
+	boolean isHot() {
+		return _hot != null;
+	}
+	
 	public BigDecimal getBalance() {
-		return _balance;
+		return Money.toBigDecimal(getBalanceMinorUnits());
+	}
+	public long getBalanceMinorUnits() {
+		while (true) {
+			long version = _columns.beginRead(_row);
+			long balance = _columns.balance(_row);
+			if (_hot != null) {
+				balance += _hot.sum(HotCells.CREDIT);
+			}
+			if (_columns.validate(_row, version)) {
+				return balance;
+			}
+			Thread.onSpinWait();
+		}
 	}
 	
-	// Fulfilled payments, both PaymentSystem.OUTgoing and incoming (2-dim array for PaymentSystem.OUT/IN)
-	// order payments by time they were paid for fast access to recent ones, and 
-	// also fast access to oldest for the sake of purging
-	ArrayList< TreeMap<Date, Payment> > _fulfilledPayments; 
+	// Guards the rest of the User's state with the locking engine. A Lock rather than the User's 
+	// monitor so a virtual thread waiting for it (or holding it) doesn't pin its carrier thread.
+	final ReentrantLock _lock = new ReentrantLock();
+	
+	// Payments of this User's that PaymentSystem.fulfillWhenFunded() parked until its balance covers 
+	// them. Null until the first, set holding _lock; read without it to see whether a credit should 
+	// start a drain.
+	volatile ParkedPayments _parked;
+	
+	// Most recent fulfilled payments, both outgoing and incoming (indexed by Direction._val),
+	// ordered by the time they were paid for fast access to recent ones. Null until the first one,
+	// so accounts that never transact don't pay for them. Read without the lock (see
+	// getRecentPayments), so the pair is published whole through the volatile.
+	private volatile PaymentHistory[] _fulfilledPayments;
+	private final int _historyCapacity;
 	
-	// Unfulfilled payments, both PaymentSystem.OUTgoing and incoming (2-dim array for PaymentSystem.OUT/IN)
-	private ArrayList< HashSet<Payment> > _unfulfilledPayments; 
+	// Unfulfilled payments, outgoing and incoming: the first slot of a list linked through the
+	// PaymentStore the payments are in (see PaymentStore), or PaymentStore.NONE
+	private int _firstPendingOut = PaymentStore.NONE;
+	private int _firstPendingIn = PaymentStore.NONE;
 	
 	
-	// purge payments after they've reached a certain limit
-	private static final int MAX_PAYMENTS_MAINTAINED = 10;
+	// fulfilled payments kept per direction unless PaymentSystemConfig says otherwise
+	static final int DEFAULT_HISTORY_CAPACITY = 10;
 	
-	// keep track of sums to date so we don't have to recalculate
-	private BigDecimal[] _sumUnfulfilled;
+	// Bookkeeping for snapshots and journal replay, guarded by the same lock (or partition thread) 
+	// as the rest of the User's state. See PaymentSystem.beginChange.
+	int _imageEpoch;	// the snapshot cut this User was last imaged for
+	AccountImage _image;	// its state when that cut started, if a change had to image it early
+	long _journalSeq;	// journal sequence number of the last change applied to this User
+	
+	// sums to date are kept (in the AccountStore) so we don't have to recalculate (minor units)
 	public BigDecimal getSumUnfulfilled(Direction direction) {
-		return _sumUnfulfilled[direction._val];
+		return Money.toBigDecimal(getSumUnfulfilledMinorUnits(direction));
+	}
+	public long getSumUnfulfilledMinorUnits(Direction direction) {
+		while (true) {
+			long version = _columns.beginRead(_row);
+			long sum = _columns.sum(_row, direction);
+			if (_hot != null && direction == Direction.IN) {
+				sum += _hot.sum(HotCells.SUM_IN);
+			}
+			if (_columns.validate(_row, version)) {
+				return sum;
+			}
+			Thread.onSpinWait();
+		}
 	}
 	
-	public User(int accountNumber, BigDecimal balance) {
-		if (balance == null) {
-			throw new RuntimeException("null parameter in User constructor");
+	// how many payments make up that sum
+	public int getUnfulfilledCount(Direction direction) {
+		while (true) {
+			long version = _columns.beginRead(_row);
+			int count = _columns.count(_row, direction);
+			if (_hot != null && direction == Direction.IN) {
+				count += (int) _hot.sum(HotCells.COUNT_IN);
+			}
+			if (_columns.validate(_row, version)) {
+				return count;
+			}
+			Thread.onSpinWait();
+		}
+	}
+	
+	// balance and both unfulfilled sums as of a single point in time, without blocking
+	public AccountSnapshot getSnapshot() {
+		while (true) {
+			long version = _columns.beginRead(_row);
+			long balance = _columns.balance(_row);
+			long sumOut = _columns.sum(_row, Direction.OUT);
+			long sumIn = _columns.sum(_row, Direction.IN);
+			if (_hot != null) {
+				// read together: a payment being fulfilled is in one or the other, never both or neither
+				long[] hot = _hot.sums();
+				balance += hot[HotCells.CREDIT];
+				sumIn += hot[HotCells.SUM_IN];
+			}
+			if (_columns.validate(_row, version)) {
+				return new AccountSnapshot(_accountNumber, balance, sumOut, sumIn);
+			}
+			Thread.onSpinWait();
 		}
+	}
+	
+	// A User on its own (not made by a PaymentSystem) has a store of its own
+	public User(int accountNumber, BigDecimal balance) {
+		this(accountNumber, Money.toMinorUnits(balance));
+	}
+	
+	public User(int accountNumber, long balance) {
+		this(accountNumber, balance, DEFAULT_HISTORY_CAPACITY, new AccountStore(1));
+	}
+	
+	// historyCapacity: fulfilled payments kept per direction
+	User(int accountNumber, long balance, int historyCapacity, AccountStore store) {
+		this(accountNumber, balance, historyCapacity, store, false);
+	}
+	
+	User(int accountNumber, long balance, int historyCapacity, AccountStore store, boolean hot) {
 		_accountNumber = accountNumber;
-		_balance = balance;
-		
-		_sumUnfulfilled = new BigDecimal[2];
-		_sumUnfulfilled[Direction.OUT._val] = new BigDecimal(0).setScale(2, RoundingMode.HALF_UP);
-		_sumUnfulfilled[Direction.IN._val] = new BigDecimal(0).setScale(2, RoundingMode.HALF_UP);
-
-		_fulfilledPayments = new ArrayList<TreeMap<Date, Payment>>(2);
-		_fulfilledPayments.add(new TreeMap<Date, Payment>()); // OUT (outgoing payments)
-		_fulfilledPayments.add(new TreeMap<Date, Payment>()); // IN (incoming payments)
-		
-		_unfulfilledPayments = new ArrayList< HashSet<Payment> >(2);
-		_unfulfilledPayments.add(new HashSet<Payment>()); // OUT
-		_unfulfilledPayments.add(new HashSet<Payment>()); // IN
+		_hot = hot ? new HotCells() : null;
+		int row = store.allocate(balance);
+		_columns = store.chunkOf(row);
+		_row = store.rowInChunk(row);
+		_historyCapacity = historyCapacity;
+	}
+	
+	// slot of the first unfulfilled payment in this direction, the rest follow PaymentStore.next
+	int firstPending(Direction direction) {
+		return direction == Direction.OUT ? _firstPendingOut : _firstPendingIn;
+	}
+	
+	private void setFirstPending(Direction direction, int slot) {
+		if (direction == Direction.OUT) {
+			_firstPendingOut = slot;
+		} else {
+			_firstPendingIn = slot;
+		}
+	}
+	
+	private void link(Payment payment, Direction direction) {
+		PaymentStore store = payment._store;
+		int first = firstPending(direction);
+		store.setPrevious(payment._slot, direction, PaymentStore.NONE);
+		store.setNext(payment._slot, direction, first);
+		if (first != PaymentStore.NONE) {
+			store.setPrevious(first, direction, payment._slot);
+		}
+		setFirstPending(direction, payment._slot);
+	}
+	
+	private void unlink(Payment payment, Direction direction) {
+		unlink(payment._store, payment._slot, direction);
+	}
+	
+	private void unlink(PaymentStore store, int slot, Direction direction) {
+		int previous = store.previous(slot, direction);
+		int next = store.next(slot, direction);
+		if (previous == PaymentStore.NONE) {
+			setFirstPending(direction, next);
+		} else {
+			store.setNext(previous, direction, next);
+		}
+		if (next != PaymentStore.NONE) {
+			store.setPrevious(next, direction, previous);
+		}
+	}
+	
+	private PaymentHistory fulfilledPayments(Direction direction) {
+		PaymentHistory[] fulfilledPayments = _fulfilledPayments;
+		if (fulfilledPayments == null) {
+			fulfilledPayments = new PaymentHistory[2];
+			fulfilledPayments[Direction.OUT._val] = new PaymentHistory(_historyCapacity); // outgoing payments
+			fulfilledPayments[Direction.IN._val] = new PaymentHistory(_historyCapacity); // incoming payments
+			_fulfilledPayments = fulfilledPayments;
+		}
+		return fulfilledPayments[direction._val];
+	}
+	
+	// set the unfulfilled sums of a User restored from a snapshot, its payments are added by restorePending
+	void restoreSums(long sumOut, long sumIn) {
+		_columns.beginWrite(_row);
+		_columns.setSum(_row, Direction.OUT, sumOut);
+		_columns.setSum(_row, Direction.IN, sumIn);
+		_columns.endWrite(_row);
+	}
+	
+	void restorePending(Payment payment, Direction direction) {
+		link(payment, direction);
+		_columns.beginWrite(_row);
+		_columns.setCount(_row, direction, _columns.count(_row, direction) + 1);
+		_columns.endWrite(_row);
 	}
 	
 	protected void addPayment(Payment payment, Direction direction) {
-		_unfulfilledPayments.get(direction._val).add(payment);
-		_sumUnfulfilled[direction._val] = _sumUnfulfilled[direction._val].add(payment.getAmount());
+		if (_hot != null && direction == Direction.IN) {
+			// not linked: the list is the owner's, and nothing walks a payee's incoming list
+			_hot.add(0, payment.getAmountMinorUnits(), 1);
+			return;
+		}
+		long sum = Money.add(_columns.sum(_row, direction), payment.getAmountMinorUnits());
+		link(payment, direction);
+		
+		_columns.beginWrite(_row);
+		_columns.setSum(_row, direction, sum);
+		_columns.setCount(_row, direction, _columns.count(_row, direction) + 1);
+		_columns.endWrite(_row);
+	}
+
+	// the payment was cancelled before being fulfilled
+	protected void removePayment(Payment payment, Direction direction) {
+		if (_hot != null && direction == Direction.IN) {
+			_hot.add(0, -payment.getAmountMinorUnits(), -1);
+			return;
+		}
+		long sum = Money.subtract(_columns.sum(_row, direction), payment.getAmountMinorUnits());
+		unlink(payment, direction);
+		
+		_columns.beginWrite(_row);
+		_columns.setSum(_row, direction, sum);
+		_columns.setCount(_row, direction, _columns.count(_row, direction) - 1);
+		_columns.endWrite(_row);
 	}
 
-	private void markPaymentFulfilled(Payment payment, Direction direction) {
-		_unfulfilledPayments.get(direction._val).remove(payment);
-		_sumUnfulfilled[direction._val] = _sumUnfulfilled[direction._val].subtract(payment.getAmount());
+	// balance change and the matching unfulfilled sum change are published as one write.
+	// The payment has been completed (see PaymentStore.complete).
+	private void markPaymentFulfilled(Payment payment, Direction direction, long newBalance, long now) {
+		long sum = Money.subtract(_columns.sum(_row, direction), payment.getAmountMinorUnits());
+		unlink(payment, direction);
 		
-		TreeMap<Date, Payment> fulfilledPayments = _fulfilledPayments.get(direction._val);
-		fulfilledPayments.put(new Date(), payment);
-		// for now just purge beyond a certain amount to save on memory
-		if (fulfilledPayments.size() > MAX_PAYMENTS_MAINTAINED) {
-			fulfilledPayments.remove(fulfilledPayments.firstKey());
+		_columns.beginWrite(_row);
+		_columns.setSum(_row, direction, sum);
+		_columns.setCount(_row, direction, _columns.count(_row, direction) - 1);
+		_columns.setBalance(_row, newBalance);
+		_columns.endWrite(_row);
+		
+		// only the most recent are kept, to save on memory
+		fulfilledPayments(direction).add(payment.getId(), payment.getAmountMinorUnits(), payment.from(), payment.to(),
+				payment.getTimeRequestedMillis(), now);
+	}
+	
+	// Move the credits in the cells to the balance column (the caller owns this hot User) and return
+	// the new balance. The cells are taken inside the row's write so a reader never sees the credits
+	// in neither place, or in both.
+	private long foldCredits() {
+		_columns.beginWrite(_row);
+		long credit = _hot.take(HotCells.CREDIT);
+		try {
+			long balance = Money.add(_columns.balance(_row), credit);
+			_columns.setBalance(_row, balance);
+			return balance;
+		} catch (RuntimeException e) {
+			_hot.add(credit, 0, 0);	// overflow, leave them where they were
+			throw e;
+		} finally {
+			_columns.endWrite(_row);
 		}
 	}
 	
+	private void setBalance(long newBalance) {
+		_columns.beginWrite(_row);
+		_columns.setBalance(_row, newBalance);
+		_columns.endWrite(_row);
+	}
+	
 	// return false if we can't fulfill this (i.e. balance too low)
 	// return true otherwise
-	protected boolean fulfillPayment(Payment payment) {
+	protected boolean fulfillPayment(Payment payment, long now) {
 		// check for sufficient balance
-		if (payment.getAmount().compareTo(this._balance) > 0) {
+		long balance = _columns.balance(_row);
+		if (payment.getAmountMinorUnits() > balance && _hot != null) {
+			balance = foldCredits();
+		}
+		if (payment.getAmountMinorUnits() > balance) {
 			return false;
 		}
 		
-		payment.markFulfilled();
+		long newBalance = Money.subtract(balance, payment.getAmountMinorUnits());
+		payment._store.complete(payment, PaymentStore.FULFILLED, now);
 		
-		markPaymentFulfilled(payment, Direction.OUT);
-		_balance = _balance.subtract(payment.getAmount());
+		markPaymentFulfilled(payment, Direction.OUT, newBalance, now);
+		return true;
+	}
+	
+	// Cross-shard fulfillment (see ClusterNode) takes the amount out of the balance while the payee's 
+	// node prepares, then either completes the payment or puts the amount back. 
+	// Return false (having changed nothing) if the balance is too low.
+	protected boolean reserve(Payment payment) {
+		long balance = _columns.balance(_row);
+		if (payment.getAmountMinorUnits() > balance && _hot != null) {
+			balance = foldCredits();
+		}
+		if (payment.getAmountMinorUnits() > balance) {
+			return false;
+		}
+		setBalance(Money.subtract(balance, payment.getAmountMinorUnits()));
 		return true;
 	}
 	
-	protected void markFulfilledIncoming(Payment payment) {
-		markPaymentFulfilled(payment, Direction.IN);
-		_balance = _balance.add(payment.getAmount());
+	protected void release(Payment payment) {
+		setBalance(Money.add(_columns.balance(_row), payment.getAmountMinorUnits()));
+	}
+	
+	protected void fulfillReserved(Payment payment, long now) {
+		payment._store.complete(payment, PaymentStore.FULFILLED, now);
+		markPaymentFulfilled(payment, Direction.OUT, _columns.balance(_row), now);
 	}
 	
+	// A hot account keeps no incoming history: it is the owner's, and payers crediting it don't own it
+	protected void markFulfilledIncoming(Payment payment, long now) {
+		if (_hot != null) {
+			_hot.add(payment.getAmountMinorUnits(), -payment.getAmountMinorUnits(), -1);
+			return;
+		}
+		markPaymentFulfilled(payment, Direction.IN, Money.add(_columns.balance(_row), payment.getAmountMinorUnits()), now);
+	}
+	
+	// A settlement (see PaymentSystem.settleNetted) fulfills many payments and then changes the
+	// balance once. This takes the completed payment out of the unfulfilled list and adds it to the
+	// history, and applySettlement changes the balance, sums and counts for all of them.
+	// The payment has been completed (at timeFulfilled), its slot not freed yet.
+	protected void settlePayment(PaymentStore store, int slot, Direction direction, long timeFulfilled) {
+		unlink(store, slot, direction);
+		fulfilledPayments(direction).add(store.id(slot), store.amount(slot), store.from(slot), store.to(slot),
+				store.timeRequested(slot), timeFulfilled);
+	}
+
+	// No balance check: the settlement as a whole leaves it at 0 or more.
+	protected void applySettlement(long settledOut, int countOut, long settledIn, int countIn) {
+		long balance = Money.add(Money.subtract(_columns.balance(_row), settledOut), settledIn);
+		long sumOut = Money.subtract(_columns.sum(_row, Direction.OUT), settledOut);
+		long sumIn = Money.subtract(_columns.sum(_row, Direction.IN), settledIn);
+
+		_columns.beginWrite(_row);
+		_columns.setBalance(_row, balance);
+		_columns.setSum(_row, Direction.OUT, sumOut);
+		_columns.setSum(_row, Direction.IN, sumIn);
+		_columns.setCount(_row, Direction.OUT, _columns.count(_row, Direction.OUT) - countOut);
+		_columns.setCount(_row, Direction.IN, _columns.count(_row, Direction.IN) - countIn);
+		_columns.endWrite(_row);
+	}
+
+	// The history as it was at the call, oldest first: an unmodifiable list that later payments 
+	// don't change. Safe from any thread without the User's lock (see PaymentHistory).
 	public Collection<Payment> getRecentPayments(Direction direction) {
 		if (direction == null) {
 			throw new RuntimeException("null parameter in User.getRecentPayments");
 		}
-		TreeMap<Date, Payment> fulfilledPayments = _fulfilledPayments.get(direction._val);
-		return fulfilledPayments.values();
+		PaymentHistory[] fulfilledPayments = _fulfilledPayments;
+		if (fulfilledPayments == null) {
+			return Collections.emptyList();
+		}
+		return fulfilledPayments[direction._val].getAll();
 	}
 	
 	public Collection<Payment> getRecentPayments(Direction direction, Date startingWith) {
 		if (direction == null || startingWith == null) {
 			throw new RuntimeException("null parameter in User.getRecentPayments");
 		}
-		if (_fulfilledPayments.size() == 0) {
-			return new LinkedList<Payment>();
+		PaymentHistory[] fulfilledPayments = _fulfilledPayments;
+		if (fulfilledPayments == null) {
+			return Collections.emptyList();
 		}
-		TreeMap<Date, Payment> fulfilledPayments = _fulfilledPayments.get(direction._val);
-		return fulfilledPayments.tailMap(startingWith).values();
+		return fulfilledPayments[direction._val].getStartingWith(startingWith.getTime());
 	}
 	
 	@Override
     public String toString() {
         return String.format(
         		"account: " + _accountNumber + "\n" +
-        		"balance: " + _balance + "\n" +
-        		"sum unfulfilled out: " + _sumUnfulfilled[Direction.OUT._val] + "\n" +
-        		"sum unfulfilled in: " + _sumUnfulfilled[Direction.IN._val] + "\n");
+        		"balance: " + getBalance() + "\n" +
+        		"sum unfulfilled out: " + getSumUnfulfilled(Direction.OUT) + "\n" +
+        		"sum unfulfilled in: " + getSumUnfulfilled(Direction.IN) + "\n");
     
 		
     }
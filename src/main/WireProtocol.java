@@ -0,0 +1,61 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// WireProtocol: the binary protocol between PaymentClient and PaymentServer
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class WireProtocol {
+
+	// Every frame is its length (int, not counting itself), a correlation id (int) chosen by the
+	// client, then
+	//	request: op (byte) and its arguments
+	//	response: status (byte) and the op's result, or an error message
+	// All numbers big-endian, amounts in minor units. A connection carries any number of requests
+	// before their responses (pipelining), and responses come back in request order.
+	static final int MAX_FRAME = 64 * 1024;	// whole frame, length included
+	static final int HEADER = 4 + 4 + 1;	// length, correlation id, op or status
+
+	static final byte OP_REQUEST = 1;	// amount (long), from (int), to (int) -> payment id (long)
+	static final byte OP_FULFILL = 2;	// payment id (long) -> fulfilled (byte, 0 if the payer's balance is too low)
+	static final byte OP_BALANCE = 3;	// account (int) -> balance (long)
+	static final byte OP_UNFULFILLED = 4;	// account (int), direction (byte) -> unfulfilled sum (long)
+	static final byte OP_RECENT = 5;	// account (int), direction (byte) -> count (int), then per payment:
+										// id, amount (long), from, to (int), requested, fulfilled (long millis)
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_ERROR = 1;	// message (short length, then that many bytes of UTF-8)
+
+	static final int RECENT_PAYMENT_BYTES = 8 + 8 + 4 + 4 + 8 + 8;
+	static final int MAX_RECENT = (MAX_FRAME - HEADER - 4) / RECENT_PAYMENT_BYTES;	// most recent kept if more
+	static final int MAX_MESSAGE_BYTES = 1024;
+
+	static byte encode(Direction direction) {
+		return (byte) direction._val;
+	}
+
+	static Direction decodeDirection(byte direction) {
+		if (direction == Direction.OUT._val) {
+			return Direction.OUT;
+		}
+		if (direction == Direction.IN._val) {
+			return Direction.IN;
+		}
+		throw new RuntimeException("invalid direction: " + direction);
+	}
+
+	static void putMessage(ByteBuffer buffer, String message) {
+		byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, MAX_MESSAGE_BYTES);
+		buffer.putShort((short) length).put(bytes, 0, length);
+	}
+
+	static String getMessage(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
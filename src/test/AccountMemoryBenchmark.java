@@ -0,0 +1,91 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AccountMemoryBenchmark: heap and off-heap memory per account, and how long a full GC takes with
+//				that many accounts live
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import main.Direction;
+import main.PaymentSystem;
+
+public class AccountMemoryBenchmark {
+
+	// Adds the accounts, then has a share of them transact (one fulfilled payment each way) so
+	// they have payment collections too. Memory is measured after a full GC at each step.
+	static final long STARTING_BALANCE = 1000000L;	// minor units
+	static final long AMOUNT = 100;
+
+	// args: [accounts] [percent of accounts that transact]
+	public static void main(String[] args) {
+		try {
+			int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+			int activePercent = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+			long heapBefore = heapUsedAfterGc();
+			long directBefore = directUsed();
+			PaymentSystem ps = new PaymentSystem();
+			long start = System.nanoTime();
+			for (int i = 0; i < numAccounts; i++) {
+				ps.addUser(i, STARTING_BALANCE);
+			}
+			long addNanos = System.nanoTime() - start;
+			report("idle", ps, numAccounts, heapBefore, directBefore);
+			System.out.println(String.format("  added %d accounts in %.0f ms", numAccounts, addNanos / 1e6));
+
+			Random rand = new Random(1);
+			int numActive = (int) ((long) numAccounts * activePercent / 100);
+			for (int i = 0; i < numActive; i++) {
+				int from = rand.nextInt(numAccounts);
+				int to = (from + 1 + rand.nextInt(numAccounts - 1)) % numAccounts;
+				ps.fulfill(ps.requestPayment(AMOUNT, from, to));
+				ps.fulfill(ps.requestPayment(AMOUNT, to, from));
+			}
+			report(activePercent + "% active", ps, numAccounts, heapBefore, directBefore);
+
+			long sum = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < numAccounts; i++) {
+				sum += ps.getUnfulfilledMinorUnits(ps.getUser(i), Direction.OUT) + ps.getUser(i).getBalanceMinorUnits();
+			}
+			System.out.println(String.format("  read every balance and sum in %.0f ms (%d)",
+					(System.nanoTime() - start) / 1e6, sum));
+			ps.shutdown();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private static void report(String label, PaymentSystem ps, int numAccounts, long heapBefore, long directBefore) {
+		long start = System.nanoTime();
+		long heap = heapUsedAfterGc() - heapBefore;
+		long gcNanos = System.nanoTime() - start;
+		long direct = directUsed() - directBefore;
+		System.out.println(String.format("%-12s heap %6.0f MB (%4d B/account), off heap %5.0f MB (%3d B/account), full GC %4.0f ms",
+				label, heap / 1048576.0, heap / numAccounts, direct / 1048576.0, direct / numAccounts, gcNanos / 1e6));
+		if (ps.getUserCount() != numAccounts) {
+			System.out.println("ERR: " + ps.getUserCount() + " accounts");
+		}
+	}
+
+	private static long heapUsedAfterGc() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long directUsed() {
+		long used = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				used += pool.getMemoryUsed();
+			}
+		}
+		return used;
+	}
+}
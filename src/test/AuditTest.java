@@ -0,0 +1,113 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// AuditTest: PaymentSystem.audit() on a consistent system, and on one whose account rows have
+//				been corrupted behind its back
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import main.AuditReport;
+import main.AuditViolation;
+import main.Direction;
+import main.PaymentSystem;
+import main.User;
+
+public class AuditTest {
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks("AuditTest");
+		PaymentSystem ps = new PaymentSystem();
+		User a = ps.addUser(0, 1000L);
+		User b = ps.addUser(1, 1000L);
+		User c = ps.addUser(2, 1000L);
+		ps.fulfill(ps.requestPayment(300, a, b));
+		ps.requestPayment(100, a, c);
+		ps.requestPayment(50, b, c);
+		AuditReport report = ps.audit();
+		checks.check(report.isClean(), "a consistent system audits clean, got " + report.getViolations());
+		checks.check(report.getAccountsChecked() == 3 && report.getPaymentsChecked() == 2,
+				"every account and pending payment checked, " + report);
+
+		// money out of nowhere
+		Row row = new Row(b);
+		row.setBalance(b.getBalanceMinorUnits() + 5);
+		report = ps.audit();
+		checks.check(has(report, AuditViolation.Kind.MONEY_NOT_CONSERVED, -1), "a changed balance is found, got "
+				+ report.getViolations());
+		checks.check(report.getTotalBalanceMinorUnits() == 3005, "total " + report.getTotalBalanceMinorUnits());
+		row.setBalance(b.getBalanceMinorUnits() - 5);
+		checks.check(ps.audit().isClean(), "and clean once put back");
+
+		// an unfulfilled sum that isn't the sum of the payments
+		new Row(a).setSum(Direction.OUT, ps.getUnfulfilledMinorUnits(a, Direction.OUT) + 1);
+		report = ps.audit();
+		checks.check(has(report, AuditViolation.Kind.SUM_OUT_MISMATCH, 0), "a changed OUT sum is found, got "
+				+ report.getViolations());
+
+		// a payee that thinks it's owed one payment fewer
+		new Row(c).setCount(Direction.IN, c.getUnfulfilledCount(Direction.IN) - 1);
+		report = ps.audit();
+		checks.check(has(report, AuditViolation.Kind.COUNT_IN_MISMATCH, 2), "a changed IN count is found, got "
+				+ report.getViolations());
+		checks.check(report.getViolations().size() == 2, "and only what was changed, got " + report.getViolations());
+		ps.shutdown();
+		checks.finish();
+	}
+
+	private static boolean has(AuditReport report, AuditViolation.Kind kind, int accountNumber) {
+		for (AuditViolation violation : report.getViolations()) {
+			if (violation.getKind() == kind && violation.getAccountNumber() == accountNumber) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// a User's row in its package-private AccountStore, written as the User would (the system is
+	// quiet meanwhile)
+	static class Row {
+		private final Object _columns;
+		private final int _row;
+
+		Row(User user) throws Exception {
+			Field columns = User.class.getDeclaredField("_columns");
+			columns.setAccessible(true);
+			Field row = User.class.getDeclaredField("_row");
+			row.setAccessible(true);
+			_columns = columns.get(user);
+			_row = row.getInt(user);
+		}
+
+		void setBalance(long balance) throws Exception {
+			write("setBalance", new Class<?>[] { int.class, long.class }, _row, balance);
+		}
+
+		void setSum(Direction direction, long sum) throws Exception {
+			write("setSum", new Class<?>[] { int.class, Direction.class, long.class }, _row, direction, sum);
+		}
+
+		void setCount(Direction direction, int count) throws Exception {
+			write("setCount", new Class<?>[] { int.class, Direction.class, int.class }, _row, direction, count);
+		}
+
+		private void write(String setter, Class<?>[] types, Object... args) throws Exception {
+			Method beginWrite = method("beginWrite", int.class);
+			Method endWrite = method("endWrite", int.class);
+			beginWrite.invoke(_columns, _row);
+			try {
+				method(setter, types).invoke(_columns, args);
+			} finally {
+				endWrite.invoke(_columns, _row);
+			}
+		}
+
+		private Method method(String name, Class<?>... types) throws Exception {
+			Method method = _columns.getClass().getDeclaredMethod(name, types);
+			method.setAccessible(true);
+			return method;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// Checks: pass/fail bookkeeping for the functional tests (ParkedPaymentsTest and the like), which
+//			run as plain programs and exit with status 1 if any check failed
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+public class Checks {
+
+	private final String _name;
+	private int _passed = 0;
+	private int _failed = 0;
+
+	public Checks(String name) {
+		_name = name;
+	}
+
+	public void check(boolean ok, String what) {
+		if (ok) {
+			_passed++;
+		} else {
+			_failed++;
+			System.out.println("FAILED: " + _name + ": " + what);
+		}
+	}
+
+	// task must throw a RuntimeException whose message contains messagePart
+	public void checkThrows(Runnable task, String messagePart, String what) {
+		try {
+			task.run();
+			check(false, what + " (nothing thrown)");
+		} catch (RuntimeException e) {
+			check(e.getMessage() != null && e.getMessage().contains(messagePart), what + " (threw " + e + ")");
+		}
+	}
+
+	// print the totals and exit, with status 1 if anything failed
+	public void finish() {
+		System.out.println(_name + ": " + _passed + " passed, " + _failed + " failed");
+		System.exit(_failed == 0 ? 0 : 1);
+	}
+}
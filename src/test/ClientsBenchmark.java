@@ -0,0 +1,213 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ClientsBenchmark: many concurrent clients (10,000 by default), each served either by a platform
+//				thread of its own blocking in the PaymentSystem, or through the async API
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import main.Histogram;
+import main.Payment;
+import main.PaymentSystem;
+
+public class ClientsBenchmark {
+
+	// Every client loops: think for a while, request a payment between two random accounts, fulfill
+	// it, and record how long the request and fulfill took together. The same clients are run in
+	// each mode:
+	//	THREADS: one platform thread per client calling the synchronous API, like WorkerThread
+	//	ASYNC: no thread per client. A single timer thread starts each client's next round through
+	//		requestPaymentAsync/fulfillAsync, which run on the PaymentSystem's async executor
+	//		(virtual threads on Java 21 or later, a pool of platform threads before that).
+	static final int DEFAULT_CLIENTS = 10000;
+	static final int DEFAULT_THINK_MILLIS = 1000;	// 10,000 clients offer 10,000 rounds a second
+	static final int NUM_ACCOUNTS = 10000;
+	static final long STARTING_BALANCE = 1000000000L;	// minor units, enough to never run out
+	static final long AMOUNT = 100;
+	static final int LATENCY_SUB_BUCKET_BITS = 6;	// percentiles within about 1.5%, see Histogram
+
+	enum Mode {
+		THREADS,
+		ASYNC
+	}
+
+	private final int _runTimeSec;
+	private final int _numClients;
+	private final int _thinkMillis;
+	private volatile boolean _stopped;	// set to stop the clients at the end of a run
+	
+	private volatile Histogram _latencies;	// where clients record their rounds
+	
+	// what measure() recorded: rounds once every client was going, and how long that took
+	private Histogram _measured;
+	private long _elapsedNanos;
+	private long _heapUsed;
+
+	ClientsBenchmark(int runTimeSec, int numClients, int thinkMillis) {
+		_runTimeSec = runTimeSec;
+		_numClients = numClients;
+		_thinkMillis = thinkMillis;
+	}
+
+	// args: [run time per mode (secs)] [clients] [think time (millis)] [modes...]
+	public static void main(String[] args) {
+		try {
+			int runTimeSec = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+			int numClients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+			int thinkMillis = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THINK_MILLIS;
+			List<Mode> modes = new ArrayList<Mode>();
+			for (int i = 3; i < args.length; i++) {
+				modes.add(Mode.valueOf(args[i]));
+			}
+			if (modes.isEmpty()) {
+				modes.add(Mode.THREADS);
+				modes.add(Mode.ASYNC);
+			}
+
+			ClientsBenchmark bench = new ClientsBenchmark(runTimeSec, numClients, thinkMillis);
+			System.out.println(numClients + " clients, " + thinkMillis + " ms think time, " +
+					Runtime.getRuntime().availableProcessors() + " cores");
+			System.out.println(String.format("%-8s %10s %9s %9s %9s %9s %8s %9s", "mode", "rounds/s",
+					"p50 us", "p99 us", "p99.9 us", "max us", "threads", "heap MB"));
+			for (Mode mode : modes) {
+				bench.run(mode);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	void run(Mode mode) throws InterruptedException {
+		PaymentSystem ps = new PaymentSystem();
+		for (int i = 0; i < NUM_ACCOUNTS; i++) {
+			ps.addUser(i, STARTING_BALANCE);
+		}
+		System.gc();
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+
+		_stopped = false;
+		_latencies = new Histogram(LATENCY_SUB_BUCKET_BITS, false);
+		if (mode == Mode.THREADS) {
+			runThreads(ps);
+		} else {
+			runAsync(ps);
+		}
+		ps.shutdown();
+
+		Histogram latencies = _measured;
+		System.out.println(String.format("%-8s %10.0f %9.1f %9.1f %9.1f %9.1f %8d %9d", mode,
+				latencies.count() * 1e9 / _elapsedNanos, latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0,
+				latencies.percentile(99.9) / 1000.0, latencies.max() / 1000.0, threadBean.getPeakThreadCount(),
+				_heapUsed >> 20));
+	}
+
+	// Once all the clients have started (which takes a while for thousands of threads), throw away
+	// what was recorded so far and measure for the run time. Then stop the clients.
+	private void measure() throws InterruptedException {
+		Histogram measured = new Histogram(LATENCY_SUB_BUCKET_BITS, false);
+		_latencies = measured;
+		long start = System.nanoTime();
+		Thread.sleep(_runTimeSec * 1000L);
+		_heapUsed = heapUsed();
+		_elapsedNanos = System.nanoTime() - start;
+		_latencies = new Histogram(LATENCY_SUB_BUCKET_BITS, false);	// rounds finishing from here on don't count
+		_stopped = true;
+		_measured = measured;
+	}
+
+	private void runThreads(final PaymentSystem ps) throws InterruptedException {
+		Thread[] clients = new Thread[_numClients];
+		for (int c = 0; c < _numClients; c++) {
+			clients[c] = new Thread() {
+				public void run() {
+					Random rand = ThreadLocalRandom.current();
+					try {
+						Thread.sleep(rand.nextInt(_thinkMillis + 1));	// don't all start at once
+						while (!_stopped) {
+							int from = rand.nextInt(NUM_ACCOUNTS);
+							int to = otherAccount(from, rand);
+							long start = System.nanoTime();
+							ps.fulfill(ps.requestPayment(AMOUNT, ps.getUser(from), ps.getUser(to)));
+							_latencies.record(System.nanoTime() - start);
+							Thread.sleep(_thinkMillis);
+						}
+					} catch (InterruptedException e) {
+						// stopped early
+					}
+				}
+			};
+			clients[c].setDaemon(true);
+		}
+		for (Thread client : clients) {
+			client.start();
+		}
+		measure();
+		for (Thread client : clients) {
+			client.join();
+		}
+	}
+
+	private void runAsync(final PaymentSystem ps) throws InterruptedException {
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		final AtomicLong running = new AtomicLong(_numClients);	// clients that haven't stopped
+		final Function<Payment, CompletionStage<Boolean>> fulfill = new Function<Payment, CompletionStage<Boolean>>() {
+			public CompletionStage<Boolean> apply(Payment payment) {
+				return ps.fulfillAsync(payment);
+			}
+		};
+		Random rand = new Random();
+		for (int c = 0; c < _numClients; c++) {
+			timer.schedule(new Runnable() {
+				public void run() {
+					if (_stopped) {
+						running.decrementAndGet();
+						return;
+					}
+					final Runnable nextRound = this;
+					Random rand = ThreadLocalRandom.current();
+					int from = rand.nextInt(NUM_ACCOUNTS);
+					int to = otherAccount(from, rand);
+					final long start = System.nanoTime();
+					ps.requestPaymentAsync(AMOUNT, ps.getUser(from), ps.getUser(to)).thenCompose(fulfill)
+							.whenComplete(new BiConsumer<Boolean, Throwable>() {
+						public void accept(Boolean fulfilled, Throwable failure) {
+							_latencies.record(System.nanoTime() - start);
+							timer.schedule(nextRound, _thinkMillis, TimeUnit.MILLISECONDS);
+						}
+					});
+				}
+			}, rand.nextInt(_thinkMillis + 1), TimeUnit.MILLISECONDS);
+		}
+		measure();
+		while (running.get() > 0) {
+			Thread.sleep(10);
+		}
+		timer.shutdown();
+	}
+
+	// a random account other than this one
+	private static int otherAccount(int account, Random rand) {
+		return (account + 1 + rand.nextInt(NUM_ACCOUNTS - 1)) % NUM_ACCOUNTS;
+	}
+
+	private static long heapUsed() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
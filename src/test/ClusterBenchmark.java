@@ -0,0 +1,173 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ClusterBenchmark: request/fulfill throughput of a Cluster at increasing node counts, then a run
+//				with a node dropping in and out, checking that no money is lost or made
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Cluster;
+import main.Direction;
+
+public class ClusterBenchmark {
+
+	// Each thread loops: pick a random payer, a payee on another node (cross-shard) for the given
+	// share of rounds or on the payer's node otherwise, request a payment and fulfill it. One round
+	// in CANCEL_EVERY cancels instead. All nodes share this process (and its cores), so node counts
+	// show what cross-shard payments cost rather than how a real cluster would scale.
+	static final int NUM_ACCOUNTS = 10000;
+	static final long STARTING_BALANCE = 1000000000L;	// minor units, enough to never run out
+	static final long AMOUNT = 100;
+	static final int CANCEL_EVERY = 10;
+	static final long FLIP_MILLIS = 20;	// how often the failure run makes a node unreachable or reachable again
+
+	private final int _runTimeSec;
+	private final int _numThreads;
+	private final int _crossShardPercent;
+
+	// counts for the current run
+	private final AtomicLong _rounds = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();	// rounds that threw
+	private volatile boolean _stopped;
+
+	ClusterBenchmark(int runTimeSec, int numThreads, int crossShardPercent) {
+		_runTimeSec = runTimeSec;
+		_numThreads = numThreads;
+		_crossShardPercent = crossShardPercent;
+	}
+
+	// args: [run time per node count (secs)] [max nodes] [threads] [cross-shard %]
+	public static void main(String[] args) {
+		try {
+			int runTimeSec = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+			int maxNodes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+			int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+			int crossShardPercent = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+			ClusterBenchmark bench = new ClusterBenchmark(runTimeSec, numThreads, crossShardPercent);
+			System.out.println(numThreads + " threads, " + crossShardPercent + "% cross-shard, " +
+					Runtime.getRuntime().availableProcessors() + " cores");
+			System.out.println(String.format("%-6s %10s %9s %9s", "nodes", "rounds/s", "msgs/rnd", "failures"));
+			for (int nodes = 1; nodes <= maxNodes; nodes *= 2) {
+				bench.run(nodes, false);
+			}
+			if (maxNodes > 1) {
+				System.out.println("node 1 unreachable every other " + FLIP_MILLIS + " ms:");
+				bench.run(Math.min(maxNodes, 2), true);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	void run(final int numNodes, boolean flipNode) throws InterruptedException {
+		final Cluster cluster = new Cluster(numNodes);
+		for (int i = 0; i < NUM_ACCOUNTS; i++) {
+			cluster.addUser(i, STARTING_BALANCE);
+		}
+		_rounds.set(0);
+		_failures.set(0);
+		_stopped = false;
+
+		Thread[] threads = new Thread[_numThreads];
+		for (int t = 0; t < _numThreads; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					Random rand = ThreadLocalRandom.current();
+					while (!_stopped) {
+						round(cluster, numNodes, rand);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		long end = start + _runTimeSec * 1000000000L;
+		boolean reachable = true;
+		while (System.nanoTime() < end) {
+			Thread.sleep(FLIP_MILLIS);
+			if (flipNode) {
+				reachable = !reachable;
+				cluster.getTransport().setReachable(1, reachable);
+			}
+		}
+		_stopped = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		cluster.getTransport().setReachable(1 % numNodes, true);
+
+		System.out.println(String.format("%-6d %10.0f %9.2f %9d", numNodes, _rounds.get() * 1e9 / elapsed,
+				(double) cluster.getTransport().getMessageCount() / Math.max(1, _rounds.get()), _failures.get()));
+		if (flipNode) {
+			check(cluster, numNodes);
+		}
+		cluster.shutdown();
+	}
+
+	private void round(Cluster cluster, int numNodes, Random rand) {
+		int from = rand.nextInt(NUM_ACCOUNTS);
+		int to = payee(from, numNodes, rand);
+		try {
+			long id = cluster.requestPayment(AMOUNT, from, to);
+			if (rand.nextInt(CANCEL_EVERY) == 0) {
+				cluster.cancel(id);
+			} else {
+				cluster.fulfill(id);
+			}
+		} catch (RuntimeException e) {
+			_failures.incrementAndGet();
+		}
+		_rounds.incrementAndGet();
+	}
+
+	// a random account other than from, on another node for _crossShardPercent of calls
+	private int payee(int from, int numNodes, Random rand) {
+		int fromNode = from % numNodes;
+		int node = fromNode;
+		if (numNodes > 1 && rand.nextInt(100) < _crossShardPercent) {
+			node = (fromNode + 1 + rand.nextInt(numNodes - 1)) % numNodes;
+		}
+		int perNode = NUM_ACCOUNTS / numNodes;
+		while (true) {
+			int to = node + numNodes * rand.nextInt(perNode);
+			if (to != from) {
+				return to;
+			}
+		}
+	}
+
+	// Once every held-back commit and cancel has got through, every account's money is either in a
+	// balance or nowhere, and every unfulfilled OUT has its IN.
+	private static void check(Cluster cluster, int numNodes) throws InterruptedException {
+		for (int node = 0; node < numNodes; node++) {
+			while (cluster.getNode(node).getUndeliveredCount() > 0) {
+				Thread.sleep(10);
+			}
+		}
+		long balances = 0;
+		long out = 0;
+		long in = 0;
+		for (int i = 0; i < NUM_ACCOUNTS; i++) {
+			balances += cluster.getBalanceMinorUnits(i);
+			out += cluster.getUnfulfilledMinorUnits(i, Direction.OUT);
+			in += cluster.getUnfulfilledMinorUnits(i, Direction.IN);
+		}
+		long expected = NUM_ACCOUNTS * STARTING_BALANCE;
+		if (balances != expected) {
+			System.out.println("ERR: total balance " + balances + ", expected " + expected);
+		}
+		if (out != in) {
+			System.out.println("ERR: unfulfilled out " + out + " != unfulfilled in " + in);
+		}
+		System.out.println("total balance " + balances + ", unfulfilled out " + out + ", in " + in);
+	}
+}
@@ -0,0 +1,298 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// HotPathBenchmark: throughput, latency and allocation of single PaymentSystem operations, at
+//				several thread counts, with uniform or Zipf-skewed choice of accounts, and payees
+//				Zipf-skewed with and without hot accounts
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Direction;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+import main.User;
+
+public class HotPathBenchmark {
+
+	// Runs in rounds. Each thread picks BATCH_SIZE account pairs and prepares whatever the operation
+	// needs (untimed). Then all threads run the operation BATCH_SIZE times at once: that phase is
+	// timed from the barrier that starts it to the barrier that ends it (throughput), and each thread
+	// also times its own batch (ns/op) and counts the bytes it allocated (B/op). Payments left
+	// unfulfilled by a batch are cancelled (untimed) so runs don't grow the heap. Every run starts
+	// with a fresh PaymentSystem and a warmup of the same operation whose results are thrown away.
+	static final int BATCH_SIZE = 1024;
+	static final int DEFAULT_ACCOUNTS = 10000;
+	static final double ZIPF_EXPONENT = 1.0;
+	static final long STARTING_BALANCE = 1000000000L;	// minor units, enough to never run out
+	static final long AMOUNT = 100;
+	static final int HISTORY_PER_ACCOUNT = 20;
+	static final long IDEMPOTENCY_WINDOW_MILLIS = 60000;
+	static final int HOT_ACCOUNTS = 16;	// the most chosen payees, hot with ZIPF_PAYEE_HOT	// fulfilled payments per account before GET_RECENT_PAYMENTS
+
+	enum Operation {
+		REQUEST,
+		REQUEST_IDEMPOTENT,	// requestPayment with an idempotency key, a new one every call
+		FULFILL,
+		FULFILL_INSUFFICIENT,	// payer's balance too low, fulfill() returns false
+		GET_UNFULFILLED_AMT,
+		GET_RECENT_PAYMENTS
+	}
+
+	enum Skew {
+		UNIFORM,
+		ZIPF,
+		ZIPF_PAYEE,	// uniform payers paying Zipf-skewed payees (merchants)
+		ZIPF_PAYEE_HOT	// the same with the top HOT_ACCOUNTS payees configured as hot accounts
+	}
+
+	// results of the operations, so the JIT can't drop them
+	static volatile long _sink;
+	
+	private final AtomicLong _keyBlocks = new AtomicLong(1);
+
+	private final int _runTimeSec;
+	private final int[] _threadCounts;
+	private final int _numAccounts;
+	private final ZipfGenerator _zipf;
+
+	HotPathBenchmark(int runTimeSec, int[] threadCounts, int numAccounts) {
+		_runTimeSec = runTimeSec;
+		_threadCounts = threadCounts;
+		_numAccounts = numAccounts;
+		_zipf = new ZipfGenerator(numAccounts, ZIPF_EXPONENT);
+	}
+
+	// args: [run time per case (secs)] [thread counts, e.g. 1,4,16,64] [accounts] [operations...]
+	public static void main(String[] args) {
+		try {
+			int runTimeSec = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+			int[] threadCounts = { 1, 4, 16, 64 };
+			if (args.length > 1) {
+				String[] counts = args[1].split(",");
+				threadCounts = new int[counts.length];
+				for (int i = 0; i < counts.length; i++) {
+					threadCounts[i] = Integer.parseInt(counts[i]);
+				}
+			}
+			int numAccounts = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ACCOUNTS;
+			List<Operation> operations = new ArrayList<Operation>();
+			for (int i = 3; i < args.length; i++) {
+				operations.add(Operation.valueOf(args[i]));
+			}
+			if (operations.isEmpty()) {
+				for (Operation operation : Operation.values()) {
+					operations.add(operation);
+				}
+			}
+
+			HotPathBenchmark bench = new HotPathBenchmark(runTimeSec, threadCounts, numAccounts);
+			System.out.println(String.format("%-22s %-15s %7s %12s %10s %10s", "operation", "skew", "threads", "ops/sec", "ns/op", "B/op"));
+			for (Operation operation : operations) {
+				for (Skew skew : Skew.values()) {
+					for (int threads : bench._threadCounts) {
+						bench.run(operation, skew, threads);
+					}
+				}
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	void run(Operation operation, Skew skew, int numThreads) throws InterruptedException {
+		PaymentSystem ps = newPaymentSystem(operation, skew);
+		measure(ps, operation, skew, numThreads, Math.max(1, _runTimeSec / 2));	// warmup
+		Result result = measure(ps, operation, skew, numThreads, _runTimeSec);
+		ps.shutdown();
+
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		for (int t = 0; t < numThreads; t++) {
+			ops += result._ops[t];
+			nanos += result._nanos[t];
+			bytes += result._bytes[t];
+		}
+		double opsPerSec = result._phaseNanos == 0 ? 0 : ops * 1e9 / result._phaseNanos;
+		System.out.println(String.format("%-22s %-15s %7d %12.0f %10.1f %10.1f", operation, skew, numThreads, opsPerSec,
+				ops == 0 ? 0 : (double) nanos / ops, ops == 0 ? 0 : (double) bytes / ops));
+	}
+
+	// accounts [0, n) can pay anything, accounts [n, 2n) can pay nothing
+	private PaymentSystem newPaymentSystem(Operation operation, Skew skew) {
+		PaymentSystemConfig config = new PaymentSystemConfig();
+		if (skew == Skew.ZIPF_PAYEE_HOT) {
+			int[] hot = new int[Math.min(HOT_ACCOUNTS, _numAccounts)];
+			for (int i = 0; i < hot.length; i++) {
+				hot[i] = i;	// ZipfGenerator's most likely
+			}
+			config.setHotAccounts(hot);
+		}
+		if (operation == Operation.REQUEST_IDEMPOTENT) {
+			config.setIdempotencyWindowMillis(IDEMPOTENCY_WINDOW_MILLIS);
+		}
+		PaymentSystem ps = new PaymentSystem(config);
+		for (int i = 0; i < _numAccounts; i++) {
+			ps.addUser(i, STARTING_BALANCE);
+		}
+		for (int i = 0; i < _numAccounts; i++) {
+			ps.addUser(_numAccounts + i, 0L);
+		}
+		if (operation == Operation.GET_RECENT_PAYMENTS) {
+			Random rand = new Random(0);
+			for (int i = 0; i < _numAccounts * HISTORY_PER_ACCOUNT; i++) {
+				int from = rand.nextInt(_numAccounts);
+				ps.fulfill(ps.requestPayment(AMOUNT, from, (from + 1 + rand.nextInt(_numAccounts - 1)) % _numAccounts));
+			}
+		}
+		return ps;
+	}
+
+
+	static class Result {
+		final long[] _ops;
+		final long[] _nanos;	// timed nanos per thread
+		final long[] _bytes;	// allocated in the timed regions
+		long _phaseNanos;	// wall clock time of all timed phases
+		long _phaseStart;
+		boolean _stop;	// set between rounds, once the run time is up
+
+		Result(int numThreads) {
+			_ops = new long[numThreads];
+			_nanos = new long[numThreads];
+			_bytes = new long[numThreads];
+		}
+	}
+
+	private Result measure(final PaymentSystem ps, final Operation operation, final Skew skew, int numThreads,
+			int runTimeSec) throws InterruptedException {
+		final Result result = new Result(numThreads);
+		final long endTime = System.nanoTime() + runTimeSec * 1000000000L;
+		// barrier actions run on the last thread to arrive, before any thread is released
+		final CyclicBarrier startPhase = new CyclicBarrier(numThreads, new Runnable() {
+			public void run() {
+				result._phaseStart = System.nanoTime();
+			}
+		});
+		final CyclicBarrier endPhase = new CyclicBarrier(numThreads, new Runnable() {
+			public void run() {
+				long now = System.nanoTime();
+				result._phaseNanos += now - result._phaseStart;
+				result._stop = now >= endTime;
+			}
+		});
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						runThread(ps, operation, skew, thread, startPhase, endPhase, result);
+					} catch (InterruptedException | BrokenBarrierException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return result;
+	}
+
+	private void runThread(PaymentSystem ps, Operation operation, Skew skew, int thread, CyclicBarrier startPhase,
+			CyclicBarrier endPhase, Result result) throws InterruptedException, BrokenBarrierException {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Random rand = new Random(thread);
+		User[] from = new User[BATCH_SIZE];
+		User[] to = new User[BATCH_SIZE];
+		Payment[] payments = new Payment[BATCH_SIZE];
+		long nextKey = _keyBlocks.getAndAdd(1L << 40);	// idempotency keys, unique over threads and runs
+		long sink = 0;
+		while (!result._stop) {
+			// untimed: choose accounts and set up the batch
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				int fromAcct = choosePayer(skew, rand);
+				int toAcct = choosePayee(skew, rand);
+				while (toAcct == fromAcct) {
+					toAcct = choosePayee(skew, rand);
+				}
+				if (operation == Operation.FULFILL_INSUFFICIENT) {
+					fromAcct += _numAccounts;
+				}
+				from[i] = ps.getUser(fromAcct);
+				to[i] = ps.getUser(toAcct);
+				if (operation == Operation.FULFILL || operation == Operation.FULFILL_INSUFFICIENT) {
+					payments[i] = ps.requestPayment(AMOUNT, from[i], to[i]);
+				}
+			}
+
+			startPhase.await();
+			long startBytes = threadBean.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			switch (operation) {
+			case REQUEST:
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					payments[i] = ps.requestPayment(AMOUNT, from[i], to[i]);
+				}
+				break;
+			case REQUEST_IDEMPOTENT:
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					payments[i] = ps.requestPayment(AMOUNT, from[i], to[i], nextKey++);
+				}
+				break;
+			case FULFILL:
+			case FULFILL_INSUFFICIENT:
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					sink += ps.fulfill(payments[i]) ? 1 : 0;
+				}
+				break;
+			case GET_UNFULFILLED_AMT:
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					sink += ps.getUnfulfilledAmt(from[i], Direction.OUT).scale();
+				}
+				break;
+			case GET_RECENT_PAYMENTS:
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					sink += ps.getRecentPayments(from[i], Direction.OUT).size();
+				}
+				break;
+			}
+			long elapsed = System.nanoTime() - start;
+			result._bytes[thread] += threadBean.getCurrentThreadAllocatedBytes() - startBytes;
+			result._nanos[thread] += elapsed;
+			result._ops[thread] += BATCH_SIZE;
+			endPhase.await();
+
+			// untimed: don't let unfulfilled payments pile up
+			if (operation == Operation.REQUEST || operation == Operation.REQUEST_IDEMPOTENT 
+					|| operation == Operation.FULFILL_INSUFFICIENT) {
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					ps.cancel(payments[i].getId());
+				}
+			}
+		}
+		_sink += sink;
+	}
+
+	private int choosePayer(Skew skew, Random rand) {
+		return skew == Skew.ZIPF ? _zipf.next(rand) : rand.nextInt(_numAccounts);
+	}
+
+	private int choosePayee(Skew skew, Random rand) {
+		return skew == Skew.UNIFORM ? rand.nextInt(_numAccounts) : _zipf.next(rand);
+	}
+}
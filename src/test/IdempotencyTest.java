@@ -0,0 +1,170 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// IdempotencyTest: calls repeating an idempotency key, one after another, at the same time and
+//				after the window, and a call kept in progress while its generation is dropped
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import main.Direction;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+import main.User;
+
+public class IdempotencyTest {
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks("IdempotencyTest");
+		repeats(checks);
+		sameKeyAtOnce(checks);
+		window(checks);
+		rotationKeepsCallsInProgress(checks);
+		checks.finish();
+	}
+
+	// a repeated key returns the first call's result rather than calling again
+	static void repeats(Checks checks) {
+		final PaymentSystem ps = new PaymentSystem(new PaymentSystemConfig().setIdempotencyWindowMillis(60000));
+		final User a = ps.addUser(0, 1000L);
+		final User b = ps.addUser(1, 0L);
+		Payment first = ps.requestPayment(100, a, b, 7);
+		Payment again = ps.requestPayment(100, a, b, 7);
+		checks.check(again.getId() == first.getId(), "a repeated request returns the first payment");
+		checks.check(a.getUnfulfilledCount(Direction.OUT) == 1, "and requests nothing more, count "
+				+ a.getUnfulfilledCount(Direction.OUT));
+		checks.checkThrows(new Runnable() {
+			public void run() {
+				ps.requestPayment(200, a, b, 7);
+			}
+		}, "already used", "a repeated key with another amount throws");
+
+		checks.check(ps.fulfill(first, 8), "fulfill");
+		checks.check(ps.fulfill(first, 8), "a repeated fulfill returns true rather than throwing");
+		checks.check(a.getBalanceMinorUnits() == 900 && b.getBalanceMinorUnits() == 100,
+				"fulfilled once, balances " + a.getBalanceMinorUnits() + ", " + b.getBalanceMinorUnits());
+
+		Payment tooBig = ps.requestPayment(5000, a, b);
+		checks.check(!ps.fulfill(tooBig, 9) && !ps.fulfill(tooBig, 9), "a repeated failed fulfill returns false");
+		ps.shutdown();
+	}
+
+	// callers racing with one key all get the one payment
+	static void sameKeyAtOnce(Checks checks) throws Exception {
+		final PaymentSystem ps = new PaymentSystem(new PaymentSystemConfig().setIdempotencyWindowMillis(60000));
+		final User a = ps.addUser(0, 1000L);
+		final User b = ps.addUser(1, 0L);
+		int rounds = 200;
+		int threads = 8;
+		int different = 0;
+		for (int round = 0; round < rounds; round++) {
+			final long key = 1000 + round;
+			final CountDownLatch start = new CountDownLatch(1);
+			final Payment[] payments = new Payment[threads];
+			Thread[] callers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int index = t;
+				callers[t] = new Thread() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						payments[index] = ps.requestPayment(1, a, b, key);
+					}
+				};
+				callers[t].start();
+			}
+			start.countDown();
+			for (Thread caller : callers) {
+				caller.join();
+			}
+			for (Payment payment : payments) {
+				if (payment == null || payment.getId() != payments[0].getId()) {
+					different++;
+				}
+			}
+		}
+		checks.check(different == 0, "concurrent calls with one key get one payment, " + different + " didn't");
+		checks.check(a.getUnfulfilledCount(Direction.OUT) == rounds,
+				"one payment per key, " + a.getUnfulfilledCount(Direction.OUT) + " for " + rounds);
+		ps.shutdown();
+	}
+
+	// once the window is up the key is a new call
+	static void window(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem(new PaymentSystemConfig().setIdempotencyWindowMillis(100));
+		User a = ps.addUser(0, 1000L);
+		User b = ps.addUser(1, 0L);
+		Payment first = ps.requestPayment(100, a, b, 7);
+		checks.check(ps.requestPayment(100, a, b, 7).getId() == first.getId(), "within the window: the same payment");
+		Thread.sleep(250);
+		checks.check(ps.requestPayment(100, a, b, 7).getId() != first.getId(), "after the window: a new payment");
+		checks.check(a.getUnfulfilledCount(Direction.OUT) == 2, "two payments, " + a.getUnfulfilledCount(Direction.OUT));
+		ps.shutdown();
+	}
+
+	// A call still running when its generation is dropped (after many other keys) mustn't be
+	// forgotten: a repeat waits for it and gets its result. Driven through the
+	// package-private IdempotencyCache, as only it can keep a call in progress for this long.
+	static void rotationKeepsCallsInProgress(Checks checks) throws Exception {
+		Class<?> cacheClass = Class.forName("main.IdempotencyCache");
+		Constructor<?> constructor = cacheClass.getDeclaredConstructor(long.class, int.class);
+		constructor.setAccessible(true);
+		final Method begin = cacheClass.getDeclaredMethod("begin", long.class, long.class);
+		begin.setAccessible(true);
+		Method complete = cacheClass.getDeclaredMethod("complete", long.class, byte.class, Payment.class);
+		complete.setAccessible(true);
+		Field requested = cacheClass.getDeclaredField("REQUESTED");
+		requested.setAccessible(true);
+		Class<?> entryClass = Class.forName("main.IdempotencyCache$Entry");
+		Field entryState = entryClass.getDeclaredField("_state");
+		entryState.setAccessible(true);
+		Field entryPayment = entryClass.getDeclaredField("_payment");
+		entryPayment.setAccessible(true);
+
+		final Object cache = constructor.newInstance(60000L, 256);	// 4 keys per segment
+		final long key = 42;
+		checks.check(begin.invoke(cache, key, 0L) == null, "a new key is claimed");
+		// every segment fills up and rotates many times over, all within the window
+		for (long other = 1000; other < 21000; other++) {
+			if (begin.invoke(cache, other, 1L) == null) {
+				complete.invoke(cache, other, requested.get(null), null);
+			}
+		}
+		final long later = 2;
+		final AtomicReference<Object> repeat = new AtomicReference<Object>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread repeater = new Thread() {
+			public void run() {
+				try {
+					repeat.set(begin.invoke(cache, key, later));
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		};
+		repeater.start();
+		repeater.join(300);
+		checks.check(repeater.isAlive(), "a repeat of a call in progress waits for it, even generations later");
+
+		PaymentSystem ps = new PaymentSystem();
+		Payment payment = ps.requestPayment(5, ps.addUser(0, 10L), ps.addUser(1, 0L));
+		complete.invoke(cache, key, requested.get(null), payment);
+		repeater.join(10000);
+		Object entry = repeat.get();
+		checks.check(!repeater.isAlive() && failure.get() == null && entry != null, "and gets its result once it's over");
+		if (entry != null) {
+			checks.check(entryState.get(entry).equals(requested.get(null)) && entryPayment.get(entry) == payment,
+					"the result recorded by the first call");
+		}
+		ps.shutdown();
+	}
+}
@@ -0,0 +1,156 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// JournalBenchmark: throughput and latency of request+fulfill at each journal durability level,
+//				and a check that replaying each journal rebuilds the same balances
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import main.Direction;
+import main.JournalDurability;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+
+public class JournalBenchmark {
+
+	static final int NUM_USERS = 1000;
+	static final long STARTING_BALANCE = 1000000;	// minor units
+	static final int MAX_SAMPLES_PER_THREAD = 1 << 20;
+
+	private final int _runTimeSec;
+	private final int _numThreads;
+	private final Path _dir;
+
+	JournalBenchmark(int runTimeSec, int numThreads, Path dir) {
+		_runTimeSec = runTimeSec;
+		_numThreads = numThreads;
+		_dir = dir;
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length < 1) {
+				throw new RuntimeException("usage: JournalBenchmark <run time per level (secs)> [threads] [journal dir]");
+			}
+			int runTimeSec = Integer.parseInt(args[0]);
+			int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+			Path dir = args.length > 2 ? new File(args[2]).toPath() : Files.createTempDirectory("journal-bench");
+
+			JournalBenchmark bench = new JournalBenchmark(runTimeSec, numThreads, dir);
+			System.out.println("level                       ops/sec      p50 us      p99 us    p99.9 us      max us");
+			bench.run("no journal", null, 0, 0);
+			bench.run("BUFFERED", JournalDurability.BUFFERED, 256, 1000);
+			bench.run("GROUP 64 recs / 200us", JournalDurability.GROUP, 64, 200);
+			bench.run("GROUP 256 recs / 1000us", JournalDurability.GROUP, 256, 1000);
+			bench.run("GROUP 1024 recs / 5000us", JournalDurability.GROUP, 1024, 5000);
+			bench.run("SYNC", JournalDurability.SYNC, 1, 0);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	// one op is a requestPayment immediately followed by its fulfill, i.e. two journal records
+	void run(String name, JournalDurability durability, int groupRecords, long groupMicros) throws Exception {
+		PaymentSystemConfig config = new PaymentSystemConfig();
+		Path journal = null;
+		if (durability != null) {
+			journal = _dir.resolve("bench-" + durability + "-" + groupRecords + "-" + groupMicros + ".journal");
+			Files.deleteIfExists(journal);
+			config.setJournalPath(journal)
+				.setJournalDurability(durability)
+				.setGroupCommitRecords(groupRecords)
+				.setGroupCommitMicros(groupMicros);
+		}
+		final PaymentSystem ps = new PaymentSystem(config);
+		for (int i = 0; i < NUM_USERS; i++) {
+			ps.addUser(i, STARTING_BALANCE);
+		}
+
+		final long endTime = System.nanoTime() + _runTimeSec * 1000000000L;
+		final long[][] samples = new long[_numThreads][MAX_SAMPLES_PER_THREAD];
+		final int[] counts = new int[_numThreads];
+		final long[] ops = new long[_numThreads];
+		Thread[] threads = new Thread[_numThreads];
+		for (int t = 0; t < _numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(thread);
+					while (System.nanoTime() < endTime) {
+						int from = rand.nextInt(NUM_USERS);
+						int to = (from + 1 + rand.nextInt(NUM_USERS - 1)) % NUM_USERS;
+						long start = System.nanoTime();
+						Payment payment = ps.requestPayment(1 + rand.nextInt(100), from, to);
+						ps.fulfill(payment);
+						long latency = System.nanoTime() - start;
+						if (counts[thread] < MAX_SAMPLES_PER_THREAD) {
+							samples[thread][counts[thread]++] = latency;
+						}
+						ops[thread]++;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double elapsedSec = (System.nanoTime() - start) / 1e9;
+
+		long totalOps = 0;
+		int totalSamples = 0;
+		for (int t = 0; t < _numThreads; t++) {
+			totalOps += ops[t];
+			totalSamples += counts[t];
+		}
+		long[] all = new long[totalSamples];
+		int next = 0;
+		for (int t = 0; t < _numThreads; t++) {
+			System.arraycopy(samples[t], 0, all, next, counts[t]);
+			next += counts[t];
+		}
+		Arrays.sort(all);
+		System.out.println(String.format("%-24s %10d %11.1f %11.1f %11.1f %11.1f", name, (long) (totalOps / elapsedSec),
+				percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all.length == 0 ? 0 : all[all.length - 1] / 1000.0));
+
+		long[] balances = new long[NUM_USERS];
+		for (int i = 0; i < NUM_USERS; i++) {
+			balances[i] = ps.getUser(i).getBalanceMinorUnits();
+		}
+		ps.shutdown();
+		if (journal != null) {
+			verifyReplay(journal, balances);
+		}
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * fraction))] / 1000.0;
+	}
+
+	private static void verifyReplay(Path journal, long[] balances) throws IOException {
+		PaymentSystem replayed = new PaymentSystem(new PaymentSystemConfig().setJournalPath(journal));
+		for (int i = 0; i < NUM_USERS; i++) {
+			if (replayed.getUser(i).getBalanceMinorUnits() != balances[i]
+					|| replayed.getUser(i).getSumUnfulfilledMinorUnits(Direction.OUT) != 0) {
+				System.out.println("ERR: replay of " + journal + " disagrees for account " + i);
+			}
+		}
+		replayed.shutdown();
+		Files.deleteIfExists(journal);
+	}
+}
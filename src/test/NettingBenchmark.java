@@ -0,0 +1,106 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// NettingBenchmark: payments settled per second by PaymentSystem.settleNetted compared with
+//				fulfilling the same payments one at a time
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.util.Random;
+
+import main.Direction;
+import main.Payment;
+import main.PaymentSystem;
+
+public class NettingBenchmark {
+
+	// Each case requests the same payments between random accounts (so they form chains and cycles)
+	// in a new PaymentSystem, then settles them either with fulfill(id) one at a time or with one
+	// settleNetted(). "funded" accounts can afford all of their payments. "tight" accounts start
+	// with about one payment's worth, so one at a time only payments paid for by earlier ones go
+	// through, while netting settles every payment whose payer's net position is covered.
+	static final long FUNDED_BALANCE = 1000000000L;	// minor units
+	static final long TIGHT_BALANCE = 100;
+	static final int MAX_AMOUNT = 100;
+
+	private final int _numAccounts;
+	private final int _numPayments;
+
+	NettingBenchmark(int numAccounts, int numPayments) {
+		_numAccounts = numAccounts;
+		_numPayments = numPayments;
+	}
+
+	// args: [accounts] [payments] [rounds]
+	public static void main(String[] args) {
+		try {
+			int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+			int numPayments = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+			int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+			NettingBenchmark bench = new NettingBenchmark(numAccounts, numPayments);
+			System.out.println("case                       settled   payments/sec        ms");
+			for (int round = 0; round < rounds; round++) {
+				bench.run("funded, one at a time", FUNDED_BALANCE, false);
+				bench.run("funded, netted", FUNDED_BALANCE, true);
+				bench.run("tight, one at a time", TIGHT_BALANCE, false);
+				bench.run("tight, netted", TIGHT_BALANCE, true);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private void run(String label, long balance, boolean netted) {
+		PaymentSystem ps = new PaymentSystem();
+		for (int i = 0; i < _numAccounts; i++) {
+			ps.addUser(i, balance);
+		}
+		Random rand = new Random(1);
+		long[] ids = new long[_numPayments];
+		for (int i = 0; i < _numPayments; i++) {
+			int from = rand.nextInt(_numAccounts);
+			int to = (from + 1 + rand.nextInt(_numAccounts - 1)) % _numAccounts;
+			Payment payment = ps.requestPayment(1 + rand.nextInt(MAX_AMOUNT), from, to);
+			ids[i] = payment.getId();
+		}
+		long total = totalBalance(ps);
+
+		long start = System.nanoTime();
+		int settled = 0;
+		if (netted) {
+			settled = ps.settleNetted();
+		} else {
+			for (long id : ids) {
+				settled += ps.fulfill(id) ? 1 : 0;
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-24s %10d %14.0f %9.0f", label, settled, settled / (nanos / 1e9), nanos / 1e6));
+
+		if (totalBalance(ps) != total) {
+			System.out.println("ERR: total balance changed from " + total + " to " + totalBalance(ps));
+		}
+		if (settled + pendingCount(ps) != _numPayments) {
+			System.out.println("ERR: " + settled + " settled and " + pendingCount(ps) + " pending of " + _numPayments);
+		}
+		ps.shutdown();
+	}
+
+	private long totalBalance(PaymentSystem ps) {
+		long total = 0;
+		for (int i = 0; i < _numAccounts; i++) {
+			total += ps.getUser(i).getBalanceMinorUnits();
+		}
+		return total;
+	}
+
+	private int pendingCount(PaymentSystem ps) {
+		int count = 0;
+		for (int i = 0; i < _numAccounts; i++) {
+			count += ps.getUser(i).getUnfulfilledCount(Direction.OUT);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,164 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// NetworkBenchmark: calls through PaymentClient to a PaymentServer on the loopback interface,
+//				with different numbers of calls outstanding (pipelined) per connection
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+import main.Direction;
+import main.Histogram;
+import main.PaymentClient;
+import main.PaymentServer;
+import main.PaymentSystem;
+
+public class NetworkBenchmark {
+
+	// Each connection has a thread sending calls in turn (request, fulfill of a payment it
+	// requested, balance, unfulfilled amount, recent payments) as fast as it can while keeping at
+	// most window calls outstanding. Latency is from sending a call to its future completing.
+	static final int NUM_ACCOUNTS = 10000;
+	static final long STARTING_BALANCE = 1000000000L;	// minor units, enough to never run out
+	static final long AMOUNT = 100;
+	static final int NUM_OPS = 5;
+	static final int LATENCY_SUB_BUCKET_BITS = 6;	// percentiles within about 1.5%, see Histogram
+
+	private final int _runTimeSec;
+	private final int _numConnections;
+	private volatile boolean _stopped;
+	private volatile Histogram _latencies;
+
+	NetworkBenchmark(int runTimeSec, int numConnections) {
+		_runTimeSec = runTimeSec;
+		_numConnections = numConnections;
+	}
+
+	// args: [run time per window (secs)] [connections] [windows, e.g. 1,16,128] [server event loops]
+	public static void main(String[] args) {
+		try {
+			int runTimeSec = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+			int numConnections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+			String[] windows = (args.length > 2 ? args[2] : "1,16,128").split(",");
+			int eventLoops = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+			PaymentSystem ps = new PaymentSystem();
+			for (int i = 0; i < NUM_ACCOUNTS; i++) {
+				ps.addUser(i, STARTING_BALANCE);
+			}
+			PaymentServer server = new PaymentServer(ps, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+					eventLoops);
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+			NetworkBenchmark bench = new NetworkBenchmark(runTimeSec, numConnections);
+			System.out.println(numConnections + " connections, " + eventLoops + " event loops, " +
+					Runtime.getRuntime().availableProcessors() + " cores");
+			System.out.println(String.format("%-7s %10s %9s %9s %9s %9s", "window", "calls/s", "p50 us", "p99 us",
+					"p99.9 us", "max us"));
+			for (String window : windows) {
+				bench.run(address, Integer.parseInt(window.trim()));
+			}
+			server.close();
+			ps.shutdown();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	void run(final InetSocketAddress address, final int window) throws Exception {
+		_stopped = false;
+		_latencies = new Histogram(LATENCY_SUB_BUCKET_BITS, false);
+		final PaymentClient[] clients = new PaymentClient[_numConnections];
+		Thread[] threads = new Thread[_numConnections];
+		for (int c = 0; c < _numConnections; c++) {
+			final PaymentClient client = new PaymentClient(address);
+			clients[c] = client;
+			threads[c] = new Thread() {
+				public void run() {
+					send(client, window);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(_runTimeSec * 1000L);
+		Histogram latencies = _latencies;
+		long elapsed = System.nanoTime() - start;
+		_latencies = new Histogram(LATENCY_SUB_BUCKET_BITS, false);	// calls finishing from here on don't count
+		_stopped = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (PaymentClient client : clients) {
+			client.close();
+		}
+		System.out.println(String.format("%-7d %10.0f %9.1f %9.1f %9.1f %9.1f", window,
+				latencies.count() * 1e9 / elapsed, latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0,
+				latencies.percentile(99.9) / 1000.0, latencies.max() / 1000.0));
+	}
+
+	private void send(PaymentClient client, int window) {
+		final Semaphore slots = new Semaphore(window);
+		final ConcurrentLinkedQueue<Long> requested = new ConcurrentLinkedQueue<Long>();	// ids to fulfill
+		final BiConsumer<Long, Throwable> remember = new BiConsumer<Long, Throwable>() {
+			public void accept(Long id, Throwable failure) {
+				if (id != null) {
+					requested.add(id);
+				}
+			}
+		};
+		Random rand = ThreadLocalRandom.current();
+		int op = 0;
+		try {
+			while (!_stopped) {
+				slots.acquire();
+				int from = rand.nextInt(NUM_ACCOUNTS);
+				final long start = System.nanoTime();
+				CompletableFuture<?> call;
+				Long id = op == 1 ? requested.poll() : null;
+				switch (op) {
+				case 0:
+					int to = (from + 1 + rand.nextInt(NUM_ACCOUNTS - 1)) % NUM_ACCOUNTS;
+					call = client.requestPayment(AMOUNT, from, to).whenComplete(remember);
+					break;
+				case 1:
+					call = id != null ? client.fulfill(id) : client.getBalance(from);
+					break;
+				case 2:
+					call = client.getBalance(from);
+					break;
+				case 3:
+					call = client.getUnfulfilledAmt(from, Direction.OUT);
+					break;
+				default:
+					call = client.getRecentPayments(from, Direction.IN);
+					break;
+				}
+				op = (op + 1) % NUM_OPS;
+				call.whenComplete(new BiConsumer<Object, Throwable>() {
+					public void accept(Object result, Throwable failure) {
+						if (failure != null) {
+							System.out.println("ERR: " + failure);
+						}
+						_latencies.record(System.nanoTime() - start);
+						slots.release();
+					}
+				});
+			}
+			slots.acquire(window);	// wait for the last calls
+		} catch (InterruptedException e) {
+			// stopped early
+		}
+	}
+}
@@ -0,0 +1,231 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ParkedPaymentsTest: PaymentSystem.fulfillWhenFunded(): parking, draining on credit, payments
+//				that leave the queue some other way, shutdown, and a concurrent run
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import main.Direction;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+import main.User;
+
+public class ParkedPaymentsTest {
+
+	static final long WAIT_SECS = 10;
+
+	// a payment parked by the concurrent run, and its future
+	static class Parked {
+		final Payment _payment;
+		final CompletableFuture<Boolean> _result;
+
+		Parked(Payment payment, CompletableFuture<Boolean> result) {
+			_payment = payment;
+			_result = result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks("ParkedPaymentsTest");
+		parkAndDrain(checks);
+		headLeaves(checks);
+		netting(checks);
+		expiry(checks);
+		shutdown(checks);
+		for (int round = 0; round < 2; round++) {
+			concurrent(checks, round);
+		}
+		checks.finish();
+	}
+
+	// parked in order, fulfilled by credits as far as they go
+	static void parkAndDrain(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem();
+		User a = ps.addUser(0, 0L);
+		User b = ps.addUser(1, 0L);
+		User rich = ps.addUser(2, 100000L);
+		Payment p1 = ps.requestPayment(100, a, b);
+		Payment p2 = ps.requestPayment(50, a, b);
+		Payment p3 = ps.requestPayment(200, a, b);
+		CompletableFuture<Boolean> f1 = ps.fulfillWhenFunded(p1);
+		CompletableFuture<Boolean> f2 = ps.fulfillWhenFunded(p2);
+		CompletableFuture<Boolean> f3 = ps.fulfillWhenFunded(p3);
+		checks.check(!f1.isDone() && !f2.isDone() && !f3.isDone(), "underfunded payments are parked");
+
+		ps.fulfill(ps.requestPayment(120, rich, a));
+		checks.check(get(f1), "first fulfilled after a credit covering it");
+		Thread.sleep(100);
+		checks.check(!f2.isDone() && a.getBalanceMinorUnits() == 20,
+				"second waits for the next credit, balance " + a.getBalanceMinorUnits());
+
+		ps.fulfill(ps.requestPayment(250, rich, a));
+		checks.check(get(f2) && get(f3), "the rest fulfilled after the next credit");
+		checks.check(a.getBalanceMinorUnits() == 20 && b.getBalanceMinorUnits() == 350,
+				"balances " + a.getBalanceMinorUnits() + ", " + b.getBalanceMinorUnits());
+		List<Payment> out = new ArrayList<Payment>(a.getRecentPayments(Direction.OUT));
+		checks.check(out.size() == 3 && out.get(0).getId() == p1.getId() && out.get(1).getId() == p2.getId()
+				&& out.get(2).getId() == p3.getId(), "fulfilled in the order they were parked");
+
+		checks.check(get(ps.fulfillWhenFunded(ps.requestPayment(10, rich, a))), "a covered payment is fulfilled at once");
+
+		// the payee of a drained payment is credited in turn
+		User c = ps.addUser(3, 0L);
+		User d = ps.addUser(4, 0L);
+		CompletableFuture<Boolean> g1 = ps.fulfillWhenFunded(ps.requestPayment(500, c, d));
+		CompletableFuture<Boolean> g2 = ps.fulfillWhenFunded(ps.requestPayment(400, d, b));
+		ps.fulfill(ps.requestPayment(500, rich, c));
+		checks.check(get(g1) && get(g2), "a drain credits the payee, which drains its own");
+		ps.shutdown();
+	}
+
+	// The first parked payment is cancelled: the one behind it, covered by the balance all along,
+	// goes without waiting for a credit (see expiry for the first expiring)
+	static void headLeaves(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem();
+		User a = ps.addUser(0, 100L);
+		User b = ps.addUser(1, 0L);
+		Payment big = ps.requestPayment(500, a, b);
+		CompletableFuture<Boolean> f1 = ps.fulfillWhenFunded(big);
+		CompletableFuture<Boolean> f2 = ps.fulfillWhenFunded(ps.requestPayment(10, a, b));
+		Thread.sleep(50);
+		checks.check(!f2.isDone(), "parks behind the first even if covered");
+		ps.fulfill(big);	// still too little, stays parked
+		checks.check(!f1.isDone() && !f2.isDone(), "a failed fulfill leaves both parked");
+		checks.check(ps.cancel(big.getId()), "cancel the first");
+		checks.check(!get(f1), "cancelled completes with false");
+		checks.check(get(f2), "cancelling the first drains the one behind it");
+		checks.check(a.getBalanceMinorUnits() == 90, "balance " + a.getBalanceMinorUnits());
+		ps.shutdown();
+	}
+
+	// netting fulfills a parked payment, whose future completes
+	static void netting(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem();
+		User a = ps.addUser(0, 0L);
+		User b = ps.addUser(1, 0L);
+		CompletableFuture<Boolean> f = ps.fulfillWhenFunded(ps.requestPayment(5000, a, b));
+		ps.requestPayment(5000, b, a);
+		checks.check(!f.isDone(), "parked before netting");
+		int settled = ps.settleNetted();
+		checks.check(settled == 2 && get(f), "netting completes the parked payment, settled " + settled);
+		ps.shutdown();
+	}
+
+	// the first expires: the one behind it, covered, is fulfilled
+	static void expiry(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem(new PaymentSystemConfig().setPaymentTtlMillis(300));
+		User a = ps.addUser(0, 100L);
+		User b = ps.addUser(1, 0L);
+		CompletableFuture<Boolean> f1 = ps.fulfillWhenFunded(ps.requestPayment(500, a, b));
+		Thread.sleep(150);
+		CompletableFuture<Boolean> f2 = ps.fulfillWhenFunded(ps.requestPayment(10, a, b));
+		checks.check(!get(f1), "the first expires, completing with false");
+		checks.check(f2.get(WAIT_SECS, TimeUnit.SECONDS), "the one behind it is fulfilled before it expires too");
+		ps.shutdown();
+	}
+
+	static void shutdown(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem();
+		User a = ps.addUser(0, 0L);
+		User b = ps.addUser(1, 0L);
+		CompletableFuture<Boolean> f = ps.fulfillWhenFunded(ps.requestPayment(100, a, b));
+		ps.shutdown();
+		try {
+			f.get(WAIT_SECS, TimeUnit.SECONDS);
+			checks.check(false, "shutdown fails a parked payment");
+		} catch (ExecutionException e) {
+			checks.check(true, "shutdown fails a parked payment");
+		}
+		f = ps.fulfillWhenFunded(ps.requestPayment(100, a, b));
+		checks.check(f.isCompletedExceptionally(), "a payment parked after shutdown fails too");
+	}
+
+	// Threads park, fulfill and cancel at random. Money is conserved, every future agrees with its
+	// payment, and once every account has been credited enough nothing is left parked.
+	static void concurrent(Checks checks, int round) throws Exception {
+		final PaymentSystem ps = new PaymentSystem();
+		final int accounts = 50;
+		for (int i = 0; i < accounts; i++) {
+			ps.addUser(i, 1000L);
+		}
+		final ConcurrentLinkedQueue<Parked> parked = new ConcurrentLinkedQueue<Parked>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final long seed = t * 31 + round;
+			threads[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					for (int k = 0; k < 10000; k++) {
+						int from = rand.nextInt(accounts);
+						int to = rand.nextInt(accounts);
+						if (from == to) {
+							continue;
+						}
+						Payment payment = ps.requestPayment(1 + rand.nextInt(300), from, to);
+						int choice = rand.nextInt(10);
+						try {
+							if (choice < 7) {
+								parked.add(new Parked(payment, ps.fulfillWhenFunded(payment)));
+							} else if (choice < 9) {
+								ps.fulfill(payment);
+							} else {
+								ps.cancel(payment.getId());
+							}
+							if (round == 1 && rand.nextInt(1000) == 0) {
+								ps.settleNetted();
+							}
+						} catch (RuntimeException e) {
+							// fulfilled by a drain or netting before this got to it
+							if (!e.getMessage().startsWith("payment") && !e.getMessage().startsWith("no unfulfilled")) {
+								throw e;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// drains may still be running, so the balances are read at one cut
+		long total = ps.audit().getTotalBalanceMinorUnits();
+		checks.check(total == 1000L * accounts, "round " + round + ": money conserved, total " + total);
+
+		// enough for every payment still parked
+		User rich = ps.addUser(accounts, Long.MAX_VALUE / 4);
+		for (int i = 0; i < accounts; i++) {
+			ps.fulfill(ps.requestPayment(10000000L, rich, ps.getUser(i)));
+		}
+		int wrong = 0;
+		int stuck = 0;
+		for (Parked entry : parked) {
+			try {
+				boolean fulfilled = get(entry._result);
+				if (fulfilled ? !entry._payment.isFulfilled() : !entry._payment.isCancelled()) {
+					wrong++;
+				}
+			} catch (TimeoutException e) {
+				stuck++;
+			}
+		}
+		checks.check(wrong == 0, "round " + round + ": futures agree with their payments, " + wrong + " don't");
+		checks.check(stuck == 0, "round " + round + ": nothing left parked once funded, " + stuck + " are");
+		ps.shutdown();
+	}
+
+	private static boolean get(CompletableFuture<Boolean> future) throws Exception {
+		return future.get(WAIT_SECS, TimeUnit.SECONDS);
+	}
+}
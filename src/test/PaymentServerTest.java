@@ -0,0 +1,170 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PaymentServerTest: requests a PaymentServer has to refuse, sent both as raw frames and through
+//				a PaymentClient, and an event loop failing
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import main.Direction;
+import main.PaymentClient;
+import main.PaymentServer;
+import main.PaymentSystem;
+
+public class PaymentServerTest {
+
+	// see WireProtocol
+	static final byte OP_REQUEST = 1;
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_ERROR = 1;
+
+	static final long BALANCE = 100000;
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks("PaymentServerTest");
+		PaymentSystem ps = new PaymentSystem();
+		ps.addUser(0, BALANCE);
+		ps.addUser(1, BALANCE);
+		PaymentServer server = new PaymentServer(ps, new InetSocketAddress("127.0.0.1", 0), 1);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+		try {
+			SocketChannel channel = SocketChannel.open(address);
+			try {
+				// a negative payment would move money from the payee to the payer once fulfilled
+				checkRefused(checks, channel, 1, -500, "negative amount");
+				checkRefused(checks, channel, 2, 0, "zero amount");
+				checkRefused(checks, channel, 3, Long.MIN_VALUE, "most negative amount");
+				ByteBuffer response = request(channel, 4, 500, 0, 1);
+				checks.check(response.get() == STATUS_OK, "positive amount is accepted");
+			} finally {
+				channel.close();
+			}
+
+			PaymentClient client = new PaymentClient(address);
+			try {
+				try {
+					client.requestPayment(-500, 1, 0).get(10, TimeUnit.SECONDS);
+					checks.check(false, "client: negative amount fails");
+				} catch (ExecutionException e) {
+					checks.check(e.getCause().getMessage().contains("invalid payment amount"),
+							"client: negative amount fails with the server's message, got " + e.getCause());
+				}
+				checks.check(client.getBalance(0).get(10, TimeUnit.SECONDS) == BALANCE
+						&& client.getBalance(1).get(10, TimeUnit.SECONDS) == BALANCE, "balances unchanged");
+				checks.check(client.getUnfulfilledAmt(1, Direction.OUT).get(10, TimeUnit.SECONDS) == 0,
+						"nothing unfulfilled from refused requests");
+			} finally {
+				client.close();
+			}
+			checks.check(ps.getUnfulfilledMinorUnits(ps.getUser(0), Direction.OUT) == 500, "only the valid request was added");
+		} finally {
+			server.close();
+			ps.shutdown();
+		}
+		loopFails(checks);
+		checks.finish();
+	}
+
+	// A loop that throws closes the whole server, connections handed to it but not yet registered
+	// included, and the failure is kept. Made to fail by handing it a connection that is already
+	// closed, through its package-private queue.
+	static void loopFails(Checks checks) throws Exception {
+		PaymentSystem ps = new PaymentSystem();
+		ps.addUser(0, BALANCE);
+		ps.addUser(1, BALANCE);
+		PaymentServer server = new PaymentServer(ps, new InetSocketAddress("127.0.0.1", 0), 2);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+		SocketChannel client = SocketChannel.open(address);	// on the first loop
+		try {
+			checks.check(request(client, 1, 500, 0, 1).get() == STATUS_OK, "served before the failure");
+
+			Field loopsField = PaymentServer.class.getDeclaredField("_loops");
+			loopsField.setAccessible(true);
+			Object loop = ((Object[]) loopsField.get(server))[1];
+			Field acceptedField = loop.getClass().getDeclaredField("_accepted");
+			acceptedField.setAccessible(true);
+			Field selectorField = loop.getClass().getDeclaredField("_selector");
+			selectorField.setAccessible(true);
+			@SuppressWarnings("unchecked")
+			Queue<SocketChannel> accepted = (Queue<SocketChannel>) acceptedField.get(loop);
+			SocketChannel closed = SocketChannel.open();
+			closed.close();
+			SocketChannel waiting = SocketChannel.open();
+			accepted.add(closed);
+			accepted.add(waiting);
+			((Selector) selectorField.get(loop)).wakeup();
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!server.isClosed() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			checks.check(server.isClosed() && server.getFailures() == 1, "a failed loop closes the server, failures "
+					+ server.getFailures());
+			checks.check(server.getLastFailure() instanceof ClosedChannelException, "and keeps what it threw, "
+					+ server.getLastFailure());
+			server.close();	// waits for the loops
+			checks.check(client.read(ByteBuffer.allocate(1)) < 0, "the other loop's connections are closed");
+			checks.check(!waiting.isOpen(), "connections waiting for the failed loop are closed");
+			try {
+				SocketChannel.open(address).close();
+				checks.check(false, "no new connections once closed");
+			} catch (IOException e) {
+				checks.check(true, "no new connections once closed");
+			}
+		} finally {
+			client.close();
+			server.close();
+			ps.shutdown();
+		}
+	}
+
+	private static void checkRefused(Checks checks, SocketChannel channel, int correlationId, long amount, String what)
+			throws IOException {
+		ByteBuffer response = request(channel, correlationId, amount, 0, 1);
+		checks.check(response.get() == STATUS_ERROR, what + ": error status");
+		byte[] message = new byte[response.getShort()];
+		response.get(message);
+		checks.check(new String(message, StandardCharsets.UTF_8).contains("invalid payment amount"),
+				what + ": message says why, got \"" + new String(message, StandardCharsets.UTF_8) + "\"");
+	}
+
+	// send one OP_REQUEST frame and return its response, positioned at the status
+	private static ByteBuffer request(SocketChannel channel, int correlationId, long amount, int fromAcct, int toAcct)
+			throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + 8 + 4 + 4);
+		frame.putInt(frame.capacity() - 4).putInt(correlationId).put(OP_REQUEST).putLong(amount).putInt(fromAcct).putInt(toAcct);
+		frame.flip();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		ByteBuffer length = readFully(channel, 4);
+		ByteBuffer response = readFully(channel, length.getInt());
+		if (response.getInt() != correlationId) {
+			throw new RuntimeException("response for another request");
+		}
+		return response;
+	}
+
+	private static ByteBuffer readFully(SocketChannel channel, int bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("connection closed by the server");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -17,30 +17,45 @@ import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import main.AuditReport;
+import main.AuditViolation;
+import main.Histogram;
 import main.PaymentSystem;
-import main.User;
+import main.PaymentSystemConfig;
 
 
 public class PaymentSystemTest {
 	
-	static final int REQUESTS_PER_SEC = 5000;
+	static final int REQUESTS_PER_SEC = 5000;	// offered load, over all threads
 	static final int NUM_USERS = 500;
 	static final int NUM_THREADS = Runtime.getRuntime().availableProcessors(); 
 	static final int MAX_STARTING_BALANCE = 1000;
+	static final double ZIPF_EXPONENT = 0;	// 0 picks accounts uniformly, 1 makes a few accounts hot
+	static final String OPERATION_MIX = "request=20,fulfill=10,fulfill_by_id=5,cancel=5,balance=20,owed=15,owing=15,recent=10";
+	static final double[] PERCENTILES = { 50, 99, 99.9 };
+	static final String[] PERCENTILE_NAMES = { "p50", "p99", "p99.9" };
 	
 	private TestUser[] _users;
 	private String _errLogPath;
 	private BufferedWriter _errLogWriter;
 	private WorkerThread[] _threads;
 	private int _runTimeSec;
+	private int _numPartitions;
 	private PaymentSystem _ps;
+	private double _requestsPerSec;
+	private double[] _mix;
+	private ZipfGenerator _accounts;
+	private Histogram[] _totalLatencies;	// per operation, over the whole run
 	
-	PaymentSystemTest(int runTimeSec, int numThreads) {
+	PaymentSystemTest(int runTimeSec, int numThreads, int numPartitions, double requestsPerSec, double zipfExponent,
+			String mix) {
+		// 0 partitions: the default engine, which locks Users on the calling threads
+		_ps = new PaymentSystem(new PaymentSystemConfig().setPartitions(numPartitions));
 		_users = new TestUser[NUM_USERS];
 		Random rand = new Random();
 		for (int i = 0; i < NUM_USERS; i++) {
 			_users[i] = new TestUser(
-				new User(i, new BigDecimal(rand.nextDouble() * MAX_STARTING_BALANCE).setScale(2, RoundingMode.HALF_UP)));
+				_ps.addUser(i, new BigDecimal(rand.nextDouble() * MAX_STARTING_BALANCE).setScale(2, RoundingMode.HALF_UP)));
 		}
 
 		
@@ -55,12 +70,15 @@ public class PaymentSystemTest {
 		}
 		
 		_runTimeSec = runTimeSec;
-		_ps = new PaymentSystem();
+		_numPartitions = numPartitions;
 
-		int requestsPerSecPerThread = REQUESTS_PER_SEC/NUM_THREADS;
+		_requestsPerSec = requestsPerSec;
+		_mix = WorkerThread.parseMix(mix);
+		_accounts = new ZipfGenerator(NUM_USERS, zipfExponent);
 		_threads = new WorkerThread[numThreads];
-		for (int thread = 0; thread < numThreads; thread++) {
-			_threads[thread] = new WorkerThread(_ps, requestsPerSecPerThread, _users);
+		_totalLatencies = new Histogram[WorkerThread.Operation.values().length];
+		for (int i = 0; i < _totalLatencies.length; i++) {
+			_totalLatencies[i] = new Histogram(WorkerThread.LATENCY_SUB_BUCKET_BITS, false);
 		}
 	}
 	
@@ -78,6 +96,14 @@ public class PaymentSystemTest {
 		
 		Date startTime = new Date();
 		
+		// each thread offers an equal share of the load, their schedules staggered so they don't
+		// all send at once (0 requests per sec: every thread runs flat out)
+		double requestsPerSecPerThread = _requestsPerSec / _threads.length;
+		long scheduleStart = System.nanoTime();
+		for (int thread = 0; thread < _threads.length; thread++) {
+			long offset = _requestsPerSec > 0 ? (long) (thread * 1e9 / _requestsPerSec) : 0;
+			_threads[thread] = new WorkerThread(_ps, requestsPerSecPerThread, scheduleStart + offset, _mix, _accounts, _users);
+		}
 		for (int thread = 0; thread < _threads.length; thread++) {
 			_threads[thread].start();
 		}
@@ -86,11 +112,19 @@ public class PaymentSystemTest {
 		Timer progressTimer = new Timer(); 
 		progressTimer.schedule(new ReportProgressTask(startTime), 1000, 1000);
 		
+		// audit the system's invariants while it runs (not with the partitioned engine, which 
+		// can't take a cut)
+		Timer auditTimer = new Timer();
+		if (_numPartitions == 0) {
+			auditTimer.schedule(new AuditTask(), 1000, 1000);
+		}
+		
 		// wait until end of run time to terminate the threads
 		try {
 			Thread.sleep(_runTimeSec * 1000L);
 			
 			progressTimer.cancel();
+			auditTimer.cancel();
 			
 			// interrupt our threads
 			for (int thread = 0; thread < _threads.length; thread++) {
@@ -100,6 +134,11 @@ public class PaymentSystemTest {
 			for (int thread = 0; thread < _threads.length; thread++) {
 				_threads[thread].join();
 			}
+			_ps.shutdown();
+			
+			drainLatencies();
+			System.out.println("latencies over the whole run, from when each request was scheduled (micros):");
+			printLatencies(_totalLatencies);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -107,6 +146,39 @@ public class PaymentSystemTest {
 		
 	}
 	
+	// move what the threads recorded since the last call into the run's totals, and return it
+	synchronized Histogram[] drainLatencies() {
+		Histogram[] interval = new Histogram[_totalLatencies.length];
+		for (int i = 0; i < interval.length; i++) {
+			interval[i] = new Histogram(WorkerThread.LATENCY_SUB_BUCKET_BITS, false);
+			for (int thread = 0; thread < _threads.length; thread++) {
+				_threads[thread].latencies(WorkerThread.Operation.values()[i]).drainInto(interval[i]);
+			}
+			_totalLatencies[i].add(interval[i]);
+		}
+		return interval;
+	}
+	
+	private static void printLatencies(Histogram[] latencies) {
+		StringBuilder sb = new StringBuilder(String.format("  %-14s %9s", "operation", "count"));
+		for (String name : PERCENTILE_NAMES) {
+			sb.append(String.format(" %9s", name));
+		}
+		sb.append(String.format(" %9s", "max"));
+		for (WorkerThread.Operation operation : WorkerThread.Operation.values()) {
+			Histogram histogram = latencies[operation.ordinal()];
+			if (histogram.count() == 0) {
+				continue;
+			}
+			sb.append(String.format("%n  %-14s %9d", operation, histogram.count()));
+			for (double percentile : PERCENTILES) {
+				sb.append(String.format(" %9.1f", histogram.percentile(percentile) / 1000.0));
+			}
+			sb.append(String.format(" %9.1f", histogram.max() / 1000.0));
+		}
+		System.out.println(sb);
+	}
+	
 	int getRequestCounts() {
 		int countSum = 0;
 		for (int thread = 0; thread < _threads.length; thread++) {
@@ -142,7 +214,8 @@ public class PaymentSystemTest {
 	public static void main(String[] args) {
 		try {
 			if (args.length < 1) {
-				throw new RuntimeException("PaymentSystemTest requires argument run time (secs)");
+				throw new RuntimeException("usage: PaymentSystemTest <run time (secs)> [threads] [partitions] " +
+						"[requests per sec, 0 for no pacing] [zipf exponent] [operation mix, e.g. " + OPERATION_MIX + "]");
 			}
 			int runTimeSec = Integer.parseInt(args[0]);
 			
@@ -150,9 +223,16 @@ public class PaymentSystemTest {
 			if (args.length > 1) {
 				numThreads = Integer.parseInt(args[1]);
 			}
+			int numPartitions = 0;
+			if (args.length > 2) {
+				numPartitions = Integer.parseInt(args[2]);
+			}
+			double requestsPerSec = args.length > 3 ? Double.parseDouble(args[3]) : REQUESTS_PER_SEC;
+			double zipfExponent = args.length > 4 ? Double.parseDouble(args[4]) : ZIPF_EXPONENT;
+			String mix = args.length > 5 ? args[5] : OPERATION_MIX;
 			
 			// run the system for the indicated time
-			PaymentSystemTest pst = new PaymentSystemTest(runTimeSec, numThreads);
+			PaymentSystemTest pst = new PaymentSystemTest(runTimeSec, numThreads, numPartitions, requestsPerSec, zipfExponent, mix);
 			pst.run();
 			
 			// only after the run assess it (this way we don't have to worry about concurrency during the 
@@ -167,6 +247,23 @@ public class PaymentSystemTest {
 	}
 
 	
+	private class AuditTask extends TimerTask {
+		public void run() {
+			try {
+				AuditReport report = _ps.audit();
+				System.out.println(String.format("audited %d accounts and %d unfulfilled payments in %.1f ms: %d violations", 
+						report.getAccountsChecked(), report.getPaymentsChecked(), report.getDurationNanos() / 1e6, 
+						report.getViolations().size()));
+				for (AuditViolation violation : report.getViolations()) {
+					_errLogWriter.write("ERR: audit: " + violation);
+					_errLogWriter.newLine();
+				}
+			} catch (Exception ex) {
+				System.out.println("error running audit " + ex.getMessage());
+			}
+		}
+	}
+	
 	private class ReportProgressTask extends TimerTask  {
 		private Date _time;
 		int _requestCounts;
@@ -187,6 +284,7 @@ public class PaymentSystemTest {
 				_requestCounts += newRequestCounts;
 
 				System.out.println("sent " + countsPerSec + " requests in the last second");
+				printLatencies(drainLatencies());
 	        } catch (Exception ex) {
 
 	        	System.out.println("error running thread " + ex.getMessage());
@@ -0,0 +1,101 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// PendingMemoryBenchmark: heap per unfulfilled payment, and how long a full GC takes with that
+//				many payments pending
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import main.JournalDurability;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+
+public class PendingMemoryBenchmark {
+
+	// Requests the payments while holding on to what requestPayment returns, then lets go of it,
+	// then cancels half of them and requests as many again (which should reuse their memory).
+	// Cancelling rather than fulfilling keeps the history out of the numbers.
+	// Last the system is restarted from its journal, which rebuilds the pending payments without
+	// any caller holding a Payment. Memory is measured after a full GC at each step, relative to
+	// the accounts alone.
+	static final long STARTING_BALANCE = 1000000000L;	// minor units, enough to never run out
+	static final long AMOUNT = 100;
+
+	// args: [accounts] [pending payments]
+	public static void main(String[] args) {
+		try {
+			int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+			int numPending = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+			Path dir = Files.createTempDirectory("pending-memory");
+			PaymentSystemConfig config = new PaymentSystemConfig().setJournalPath(dir.resolve("journal"))
+					.setJournalDurability(JournalDurability.BUFFERED);
+
+			long[] ids = new long[numPending];
+			long heapBefore = heapUsedAfterGc();
+			PaymentSystem ps = new PaymentSystem(config);
+			for (int i = 0; i < numAccounts; i++) {
+				ps.addUser(i, STARTING_BALANCE);
+			}
+			long accountsHeap = heapUsedAfterGc() - heapBefore;
+
+			Random rand = new Random(1);
+			Payment[] payments = new Payment[numPending];
+			long start = System.nanoTime();
+			for (int i = 0; i < numPending; i++) {
+				int from = rand.nextInt(numAccounts);
+				int to = (from + 1 + rand.nextInt(numAccounts - 1)) % numAccounts;
+				payments[i] = ps.requestPayment(AMOUNT, from, to);
+				ids[i] = payments[i].getId();
+			}
+			long requestNanos = System.nanoTime() - start;
+			report("held", numPending, heapBefore + accountsHeap);
+			System.out.println(String.format("  requested %d payments in %.0f ms", numPending, requestNanos / 1e6));
+
+			payments = null;
+			report("not held", numPending, heapBefore + accountsHeap);
+
+			for (int i = 0; i < numPending; i += 2) {
+				ps.cancel(ids[i]);
+			}
+			for (int i = 0; i < numPending; i += 2) {
+				int from = rand.nextInt(numAccounts);
+				ps.requestPayment(AMOUNT, from, (from + 1 + rand.nextInt(numAccounts - 1)) % numAccounts);
+			}
+			report("half renewed", numPending, heapBefore + accountsHeap);
+			ps.shutdown();
+			ps = null;
+
+			start = System.nanoTime();
+			ps = new PaymentSystem(config);
+			long replayNanos = System.nanoTime() - start;
+			report("replayed", numPending, heapBefore + accountsHeap);
+			System.out.println(String.format("  replayed the journal in %.0f ms", replayNanos / 1e6));
+			if (ps.getUserCount() != numAccounts) {
+				System.out.println("ERR: " + ps.getUserCount() + " accounts");
+			}
+			ps.shutdown();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private static void report(String label, int numPending, long heapBase) {
+		long start = System.nanoTime();
+		long heap = heapUsedAfterGc() - heapBase;
+		long gcNanos = System.nanoTime() - start;
+		System.out.println(String.format("%-13s heap %6.0f MB (%4d B/payment), full GC %4.0f ms",
+				label, heap / 1048576.0, heap / numPending, gcNanos / 1e6));
+	}
+
+	private static long heapUsedAfterGc() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
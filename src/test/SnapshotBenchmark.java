@@ -0,0 +1,156 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// SnapshotBenchmark: time to write a snapshot of many accounts (while payments keep running) and
+//				to restart from it rather than from the whole journal, and a check that both
+//				restarted systems have the same balances
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import main.Direction;
+import main.JournalDurability;
+import main.Payment;
+import main.PaymentSystem;
+import main.PaymentSystemConfig;
+import main.User;
+
+public class SnapshotBenchmark {
+
+	static final long STARTING_BALANCE = 1000000;	// minor units
+
+	private final int _numUsers;
+	private final int _historyPerUser;
+	private final int _numThreads;
+	private final Path _journal;
+	private final Path _snapshot;
+
+	// what every restart has to agree with
+	private long[] _balances;
+	private long[] _sumsOut;
+
+	SnapshotBenchmark(int numUsers, int historyPerUser, int numThreads, Path dir) {
+		_numUsers = numUsers;
+		_historyPerUser = historyPerUser;
+		_numThreads = numThreads;
+		_journal = dir.resolve("bench.journal");
+		_snapshot = dir.resolve("bench.snapshot");
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length < 1) {
+				throw new RuntimeException("usage: SnapshotBenchmark <accounts> [fulfilled payments per account before the snapshot] [threads] [dir]");
+			}
+			int numUsers = Integer.parseInt(args[0]);
+			int historyPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+			int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+			Path dir = args.length > 3 ? new File(args[3]).toPath() : Files.createTempDirectory("snapshot-bench");
+
+			SnapshotBenchmark bench = new SnapshotBenchmark(numUsers, historyPerUser, numThreads, dir);
+			bench.run();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	void run() throws Exception {
+		Files.deleteIfExists(_journal);
+		Files.deleteIfExists(_snapshot);
+		PaymentSystemConfig config = new PaymentSystemConfig()
+			.setJournalPath(_journal)
+			.setJournalDurability(JournalDurability.BUFFERED)
+			.setSnapshotPath(_snapshot);
+
+		// each system is shut down and dropped before the next one starts, they may not fit in the heap together
+		writeSnapshot(config);
+		restart("restart from snapshot + journal tail", config);
+		restart("restart from journal only", new PaymentSystemConfig().setJournalPath(_journal));
+
+		Files.deleteIfExists(_journal);
+		Files.deleteIfExists(_snapshot);
+	}
+
+	private void writeSnapshot(PaymentSystemConfig config) throws Exception {
+		final PaymentSystem ps = new PaymentSystem(config);
+		long start = System.nanoTime();
+		for (int i = 0; i < _numUsers; i++) {
+			ps.addUser(i, STARTING_BALANCE);
+		}
+		// history that a restart without the snapshot has to replay
+		Random rand = new Random(0);
+		for (long i = 0; i < (long) _numUsers * _historyPerUser; i++) {
+			int from = rand.nextInt(_numUsers);
+			ps.fulfill(ps.requestPayment(1 + rand.nextInt(100), from, otherAccount(rand, from)));
+		}
+		// leave about one unfulfilled payment per account
+		for (int i = 0; i < _numUsers; i++) {
+			ps.requestPayment(1 + rand.nextInt(100), i, otherAccount(rand, i));
+		}
+		System.out.println(String.format("setup of %d accounts: %.0f ms", _numUsers, (System.nanoTime() - start) / 1e6));
+
+		// payments carry on while the snapshot is written
+		final boolean[] stop = new boolean[1];
+		final long[] ops = new long[_numThreads];
+		Thread[] threads = new Thread[_numThreads];
+		for (int t = 0; t < _numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(thread + 1);
+					while (!stop[0]) {
+						int from = rand.nextInt(_numUsers);
+						Payment payment = ps.requestPayment(1 + rand.nextInt(100), from, otherAccount(rand, from));
+						ps.fulfill(payment);
+						ops[thread]++;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start = System.nanoTime();
+		ps.writeSnapshot(_snapshot);
+		double writeMs = (System.nanoTime() - start) / 1e6;
+		stop[0] = true;
+		long totalOps = 0;
+		for (int t = 0; t < _numThreads; t++) {
+			threads[t].join();
+			totalOps += ops[t];
+		}
+		System.out.println(String.format("snapshot write: %.0f ms, %d bytes (journal %d bytes), %d payments fulfilled meanwhile",
+				writeMs, Files.size(_snapshot), Files.size(_journal), totalOps));
+
+		_balances = new long[_numUsers];
+		_sumsOut = new long[_numUsers];
+		for (int i = 0; i < _numUsers; i++) {
+			_balances[i] = ps.getUser(i).getBalanceMinorUnits();
+			_sumsOut[i] = ps.getUser(i).getSumUnfulfilledMinorUnits(Direction.OUT);
+		}
+		ps.shutdown();
+	}
+
+	private void restart(String name, PaymentSystemConfig config) {
+		System.gc();
+		long start = System.nanoTime();
+		PaymentSystem ps = new PaymentSystem(config);
+		System.out.println(String.format("%s: %.0f ms", name, (System.nanoTime() - start) / 1e6));
+		for (int i = 0; i < _numUsers; i++) {
+			User user = ps.getUser(i);
+			if (user == null || user.getBalanceMinorUnits() != _balances[i]
+					|| user.getSumUnfulfilledMinorUnits(Direction.OUT) != _sumsOut[i]) {
+				System.out.println("ERR: " + name + " disagrees for account " + i);
+				break;
+			}
+		}
+		ps.shutdown();
+	}
+
+	private int otherAccount(Random rand, int account) {
+		return (account + 1 + rand.nextInt(_numUsers - 1)) % _numUsers;
+	}
+}
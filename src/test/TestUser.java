@@ -8,31 +8,27 @@ package test;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.HashSet;
 
 import main.Direction;
+import main.Money;
 import main.Payment;
-import main.PaymentSystem;
 import main.User;
 
 public class TestUser {
 	User _user;
 	
-	BigDecimal _startingBalance;
-	BigDecimal _balance;
-	BigDecimal[] _oweAmount;
+	// amounts in minor units, see main.Money
+	long _startingBalance;
+	long _balance;
+	long[] _oweAmount;
 	int[] _numPaymentsUnfulfilled; // not currently doing any assessment with this: keep it?
 	int[] _numPaymentsFulfilled;
 	
 	public TestUser(User user) {
 		_user = user;
-		_startingBalance = _user.getBalance();
+		_startingBalance = _user.getBalanceMinorUnits();
 		_balance = _startingBalance;
-		_oweAmount = new BigDecimal[2];
-		_oweAmount[Direction.OUT._val] = new BigDecimal(0);
-		_oweAmount[Direction.IN._val] = new BigDecimal(0);
+		_oweAmount = new long[2];
 		_numPaymentsFulfilled = new int[2];
 		_numPaymentsFulfilled[Direction.OUT._val] = 0;
 		_numPaymentsFulfilled[Direction.IN._val] = 0;
@@ -42,36 +38,41 @@ public class TestUser {
 	}
 	
 	synchronized void addUnfulfilled(Payment payment, Direction direction) {
-		_oweAmount[direction._val] = _oweAmount[direction._val].add(payment.getAmount());
+		_oweAmount[direction._val] += payment.getAmountMinorUnits();
 		_numPaymentsUnfulfilled[direction._val] += 1;
 	}
 	
 	synchronized void setFulfilled(Payment payment, Direction direction) {
 		int dir = direction._val;
-		_oweAmount[dir] = _oweAmount[dir].subtract(payment.getAmount());
+		_oweAmount[dir] -= payment.getAmountMinorUnits();
 		_numPaymentsUnfulfilled[dir] -= 1;
 		_numPaymentsFulfilled[dir] += 1;
 	}
 	
+	synchronized void setCancelled(Payment payment, Direction direction) {
+		_oweAmount[direction._val] -= payment.getAmountMinorUnits();
+		_numPaymentsUnfulfilled[direction._val] -= 1;
+	}
+	
 	synchronized void setFulfilledOutgoing(Payment payment) {
-		_balance = _balance.subtract(payment.getAmount());
+		_balance -= payment.getAmountMinorUnits();
 		setFulfilled(payment, Direction.OUT);
 	}
 	
 	synchronized void setFulfilledIncoming(Payment payment) {
-		_balance = _balance.add(payment.getAmount());
+		_balance += payment.getAmountMinorUnits();
 		setFulfilled(payment, Direction.IN);
 	}
 	
 	// make sure all the data agrees with the underlying user's data
 	synchronized void check(BufferedWriter errLog) throws IOException {
-		if (_balance.compareTo(_user.getBalance()) != 0) {
-			writeToErrorLog(errLog, "ERR: (balance) " + _balance + " != " + _user.getBalance());
+		if (_balance != _user.getBalanceMinorUnits()) {
+			writeToErrorLog(errLog, "ERR: (balance) " + Money.toBigDecimal(_balance) + " != " + _user.getBalance());
 		}
 		for (Direction direction : Direction.values()) {
-			if (_oweAmount[direction._val].compareTo(_user.getSumUnfulfilled(direction)) != 0) {
+			if (_oweAmount[direction._val] != _user.getSumUnfulfilledMinorUnits(direction)) {
 				writeToErrorLog(errLog, "ERR: (owe amount, direction = " + direction + ") " + 
-						_oweAmount[direction._val] + " != " + _user.getSumUnfulfilled(direction));
+						Money.toBigDecimal(_oweAmount[direction._val]) + " != " + _user.getSumUnfulfilled(direction));
 			}
 			
 		}
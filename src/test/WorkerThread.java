@@ -5,139 +5,195 @@
 
 package test;
 
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Date;
 import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 import main.Direction;
+import main.Histogram;
 import main.Payment;
 import main.PaymentSystem;
 
 public class WorkerThread extends Thread {
-	private int _requestsPerSec;
-	private double _timeInterval;
+
+	enum Operation {
+		REQUEST,
+		FULFILL,
+		FULFILL_BY_ID,
+		CANCEL,
+		BALANCE,
+		OWED,	// sum of unfulfilled incoming payments
+		OWING,	// sum of unfulfilled outgoing payments
+		RECENT	// recent outgoing payments
+	}
+
+	static final long PARK_MARGIN_NANOS = 200000;
+	static final int LATENCY_SUB_BUCKET_BITS = 6;	// percentiles within about 1.5%, see Histogram
+
+	private long _intervalNanos;	// 0: no pacing, run flat out
+	private long _nextStart;	// nanoTime the next request is scheduled for
+	private double[] _mix;	// cumulative probability of each Operation, see parseMix
+	private ZipfGenerator _accounts;
 	private TestUser[] _users;
 	private LinkedList<Payment> _paymentRequests; // future enhancement: consider having this be shared between threads
 	private PaymentSystem _paymentSystem;
-	private boolean _timeToStop; // for the parent thread to tell this thread to stop
+	private volatile boolean _timeToStop; // for the parent thread to tell this thread to stop
 	private volatile int _requestCount;
-	
-	public WorkerThread(PaymentSystem paymentSystem, int requestsPerSec, TestUser[] users) {
+	private Histogram[] _latencies;	// per Operation, drained by the progress reports
+
+	// Open loop: requests are scheduled at a fixed rate from startTime (a System.nanoTime) whether or
+	// not earlier ones have finished, and latency is measured from when a request was scheduled, not
+	// when it got sent. A stall then shows up in the latency of every request it held back, rather
+	// than just the one that stalled (coordinated omission).
+	public WorkerThread(PaymentSystem paymentSystem, double requestsPerSec, long startTime, double[] mix,
+			ZipfGenerator accounts, TestUser[] users) {
 		_paymentSystem = paymentSystem;
-		_requestsPerSec = requestsPerSec;
-		_timeInterval = 1.0/requestsPerSec;
-		System.out.println("time interval:" + _timeInterval);
+		_intervalNanos = requestsPerSec > 0 ? (long) (1e9 / requestsPerSec) : 0;
+		_nextStart = startTime;
+		_mix = mix;
+		_accounts = accounts;
 		_users = users;
-		
+
 		// this is where we'll maintain the payments that are still unfulfilled
 		_paymentRequests = new LinkedList<Payment>();
 		_timeToStop = false;
 		_requestCount = 0;
+		_latencies = new Histogram[Operation.values().length];
+		for (int i = 0; i < _latencies.length; i++) {
+			_latencies[i] = new Histogram(LATENCY_SUB_BUCKET_BITS, false);
+		}
 	}
-	
+
 	public void stopThread() {
 		_timeToStop = true;
 	}
-	
+
 	public int requestCount() {
 		return _requestCount;
 	}
-	
+
+	Histogram latencies(Operation operation) {
+		return _latencies[operation.ordinal()];
+	}
+
+	// spec is a comma separated list of operation=weight, e.g. "request=2,fulfill=1,balance=1"
+	// (operations left out get no requests); return the cumulative probabilities, by Operation
+	static double[] parseMix(String spec) {
+		double[] weights = new double[Operation.values().length];
+		for (String entry : spec.split(",")) {
+			String[] parts = entry.split("=");
+			if (parts.length != 2) {
+				throw new RuntimeException("invalid operation mix entry: " + entry);
+			}
+			double weight = Double.parseDouble(parts[1].trim());
+			if (weight < 0) {
+				throw new RuntimeException("negative weight in operation mix: " + entry);
+			}
+			weights[Operation.valueOf(parts[0].trim().toUpperCase()).ordinal()] = weight;
+		}
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			weights[i] = sum;
+		}
+		if (sum == 0) {
+			throw new RuntimeException("empty operation mix: " + spec);
+		}
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] /= sum;
+		}
+		return weights;
+	}
+
 	public void run() {
-		
-        
-        Random rand = new Random();
-        
-        Date startTime = new Date();
-        
-        while (true) {
-        	try {
-                // randomly generate a test case
-        		int testCase = rand.nextInt(5);
-        		// randomly generate a couple of users
-        		TestUser user1 = _users[rand.nextInt(_users.length)];
-        		TestUser user2 = _users[rand.nextInt(_users.length)];
-        		Payment payment;
-        		
-        		switch (testCase) {
-        		case 0: // Request payment
-        			BigDecimal amount = new BigDecimal(rand.nextDouble() * 100).setScale(2, RoundingMode.HALF_UP);
-        			try {
-        				payment = _paymentSystem.requestPayment(amount, user1._user, user2._user);
-        			} catch (Exception e) {
-        				break;
-        			}
-        			_paymentRequests.add(payment);
-        			user1.addUnfulfilled(payment, Direction.OUT);
-        			user2.addUnfulfilled(payment, Direction.IN);
-        			break;
-        		
-        		
-        		case 1: // Fulfill payment
-        			if (_paymentRequests.isEmpty()) {
-        				break;
-        			}
-        			payment = _paymentRequests.removeFirst();
-        			
-        			//todo: may want to check that fulfill returns expected value
-        			if (_paymentSystem.fulfill(payment)) {
-	        			TestUser from = _users[payment.from().getAccountNumber()];
-	        			TestUser to = _users[payment.to().getAccountNumber()];
-	        			from.setFulfilledOutgoing(payment);
-	        			to.setFulfilledIncoming(payment);
-        			} 
-        			
-        			break;
-        		
-        		
-        		case 2: // Check balance
-        			user1._user.getBalance();
-        			break;
-        		case 3: // Check amount owed
-        			user1._user.getSumUnfulfilled(Direction.IN);
-        			break;
-        		case 4: // Check amount owing
-        			user1._user.getSumUnfulfilled(Direction.OUT);
-        			break;
-        		case 5: // view recent payments
-        			user1._user.getRecentPayments(Direction.OUT);
-        			break;
-        		}
-        		
-        		_requestCount++;
-        		
-        		// pause if we're ahead of schedule
-        		if (_requestCount % 100 == 0) {	// only do this periodically
-        			sleep(startTime, _requestCount);
-        		}
-        		if (_timeToStop) {
-                	System.out.println(this.getName() + ": complete");
-        			return;
-        		}
-        		
-            } catch (InterruptedException e) {
-                // We've been interrupted: no more messages.
-            	System.out.println(this.getName() + ": returning after interrupt exception");
-                return;
-            }
-        }
-    }
-	
-	// attempt to stay on predetermined schedule
-	private void sleep(Date startTime, int msgCountSoFar) throws InterruptedException {
-		double secPassedSoFar = (new Date().getTime() - startTime.getTime())/1000.0;
-				
-		// based on the current number of requests we've generated, how long should that have taken?
-		double waitUntil = msgCountSoFar * _timeInterval;
-		
-		if (waitUntil > secPassedSoFar) {
-			double sleepFor = waitUntil - secPassedSoFar;
-			//System.out.println("sleeping for " + sleepFor + " seconds");
-			Thread.sleep((int)(sleepFor)*1000);
+		Random rand = new Random();
+		Operation[] operations = Operation.values();
+
+		while (!_timeToStop) {
+			// wait for the next request's scheduled time, unless we're behind
+			long now = System.nanoTime();
+			if (_intervalNanos == 0) {
+				_nextStart = now;
+			} else if (now < _nextStart) {
+				// parking oversleeps by tens of micros, which would count as latency: park until just
+				// before the scheduled time, then yield until it comes
+				if (_nextStart - now > PARK_MARGIN_NANOS) {
+					LockSupport.parkNanos(_nextStart - now - PARK_MARGIN_NANOS);
+				} else {
+					Thread.yield();
+				}
+				continue;	// may wake early, and may have been told to stop meanwhile
+			}
+
+			// randomly generate a test case
+			double pick = rand.nextDouble();
+			int testCase = 0;
+			while (testCase < operations.length - 1 && pick >= _mix[testCase]) {
+				testCase++;
+			}
+			Operation operation = operations[testCase];
+			if (_paymentRequests.isEmpty() &&
+					(operation == Operation.FULFILL || operation == Operation.FULFILL_BY_ID || operation == Operation.CANCEL)) {
+				operation = Operation.REQUEST;	// nothing to fulfill yet
+			}
+			// randomly generate a couple of users, hot ones more often
+			TestUser user1 = _users[_accounts.next(rand)];
+			TestUser user2 = _users[_accounts.next(rand)];
+			Payment payment;
+
+			switch (operation) {
+			case REQUEST:
+				long amount = 1 + rand.nextInt(10000); // 0.01 - 100.00 in minor units
+				try {
+					payment = _paymentSystem.requestPayment(amount,
+							user1._user.getAccountNumber(), user2._user.getAccountNumber());
+				} catch (Exception e) {
+					break;
+				}
+				_paymentRequests.add(payment);
+				user1.addUnfulfilled(payment, Direction.OUT);
+				user2.addUnfulfilled(payment, Direction.IN);
+				break;
+
+			case CANCEL:
+				payment = _paymentRequests.removeFirst();
+				if (_paymentSystem.cancel(payment.getId())) {
+					_users[payment.from().getAccountNumber()].setCancelled(payment, Direction.OUT);
+					_users[payment.to().getAccountNumber()].setCancelled(payment, Direction.IN);
+				}
+				break;
+
+			case FULFILL:
+			case FULFILL_BY_ID:
+				payment = _paymentRequests.removeFirst();
+				//todo: may want to check that fulfill returns expected value
+				if (operation == Operation.FULFILL_BY_ID ?
+						_paymentSystem.fulfill(payment.getId()) : _paymentSystem.fulfill(payment)) {
+					TestUser from = _users[payment.from().getAccountNumber()];
+					TestUser to = _users[payment.to().getAccountNumber()];
+					from.setFulfilledOutgoing(payment);
+					to.setFulfilledIncoming(payment);
+				}
+				break;
+
+			case BALANCE:
+				_paymentSystem.getAccountSnapshot(user1._user);
+				break;
+			case OWED:
+				user1._user.getSumUnfulfilled(Direction.IN);
+				break;
+			case OWING:
+				user1._user.getSumUnfulfilled(Direction.OUT);
+				break;
+			case RECENT:
+				_paymentSystem.getRecentPayments(user1._user, Direction.OUT);
+				break;
+			}
+
+			_latencies[operation.ordinal()].record(System.nanoTime() - _nextStart);
+			_nextStart += _intervalNanos;
+			_requestCount++;
 		}
+		System.out.println(this.getName() + ": complete");
 	}
 }
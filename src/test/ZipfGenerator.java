@@ -0,0 +1,38 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////
+// ZipfGenerator: picks integers in [0, n) with P(k) proportional to 1 / (k + 1)^exponent, so a few
+//				low numbers (hot accounts) come up far more often than the rest
+//////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+package test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ZipfGenerator {
+
+	// cumulative probabilities, _cdf[k] = P(result <= k)
+	private final double[] _cdf;
+
+	public ZipfGenerator(int n, double exponent) {
+		if (n < 1 || exponent < 0) {
+			throw new RuntimeException("invalid Zipf parameters: n = " + n + ", exponent = " + exponent);
+		}
+		_cdf = new double[n];
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			sum += 1.0 / Math.pow(k + 1, exponent);
+			_cdf[k] = sum;
+		}
+		for (int k = 0; k < n; k++) {
+			_cdf[k] /= sum;
+		}
+		_cdf[n - 1] = 1.0;
+	}
+
+	// thread safe, as long as each thread passes its own Random
+	public int next(Random rand) {
+		int k = Arrays.binarySearch(_cdf, rand.nextDouble());
+		return k >= 0 ? k : -k - 1;
+	}
+}